@@ -0,0 +1,175 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times the ways a package can be decrypted, on a device. Run it on its own and read the times
+ * from the log, under the tag {@link #TAG}:
+ *
+ * <pre>
+ * ./gradlew connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.eggwall.android.photoviewer.DecryptBenchmark
+ * </pre>
+ *
+ * Nothing is asserted about the times, since they depend on the device. Each way is timed on
+ * the same file, best of {@link #RUNS}, so that all of them are warmed up. For the parallel
+ * decryption, the times with 1, 2, 4, ... threads show how it scales with the cores of the
+ * device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DecryptBenchmark {
+    private static final String TAG = "DecryptBenchmark";
+
+    /** Large enough that the buffers and the caches don't decide the result. */
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    private static final int RUNS = 3;
+
+    /** What ZipInputStream asks for at a time, more or less. */
+    private static final int READ_SIZE = 8 * 1024;
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    private final byte[] iv = new byte[16];
+    private File cipherFile;
+
+    @Before
+    public void setUp() throws Exception {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        cipherFile = File.createTempFile(TAG, ".asc", dir);
+        Random random = new Random(42);
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(CryptoRoutines.AES_CBC_PKCS5_PADDING);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        OutputStream out = new CipherOutputStream(new FileOutputStream(cipherFile), cipher);
+        try {
+            byte[] plain = new byte[1024 * 1024];
+            for (int done = 0; done < SIZE; done += plain.length) {
+                random.nextBytes(plain);
+                out.write(plain);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        cipherFile.delete();
+    }
+
+    /** Read a stream to the end, the way the unzipper does, and close it. */
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        long total = 0;
+        try {
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+        return total;
+    }
+
+    /** Opens the stream being timed. */
+    private interface Opener {
+        InputStream open() throws Exception;
+    }
+
+    /**
+     * Time reading a stream to the end.
+     * @return the best time of {@link #RUNS}, in milliseconds.
+     */
+    private long time(String name, Opener opener) throws Exception {
+        long bestNs = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long startNs = System.nanoTime();
+            assertEquals(SIZE, drain(opener.open()));
+            bestNs = Math.min(bestNs, System.nanoTime() - startNs);
+        }
+        long bestMs = bestNs / 1000000;
+        Log.i(TAG, name + ": " + bestMs + "ms, "
+                + (SIZE / 1024) * 1000L / Math.max(1, bestMs) / 1024 + " MB/s");
+        return bestMs;
+    }
+
+    @Test
+    public void streamAgainstChannel() throws Exception {
+        long streamMs = time("CipherInputStream", new Opener() {
+            @Override
+            public InputStream open() throws Exception {
+                return CryptoRoutines.decryptingStream(
+                        new BufferedInputStream(new FileInputStream(cipherFile), 4 * 1024 * 1024),
+                        iv, key);
+            }
+        });
+        long channelMs = time("ChannelCbcInputStream", new Opener() {
+            @Override
+            public InputStream open() throws Exception {
+                return new ChannelCbcInputStream(cipherFile, iv, key);
+            }
+        });
+        Log.i(TAG, "Channel takes " + channelMs * 100 / Math.max(1, streamMs)
+                + "% of the stream's time");
+    }
+
+    @Test
+    public void parallelAgainstCores() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        long oneMs = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            final ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                final int readAhead = threads + 2;
+                long ms = time("ParallelCbcInputStream, " + threads + " of " + cores + " threads",
+                        new Opener() {
+                            @Override
+                            public InputStream open() throws Exception {
+                                return new ParallelCbcInputStream(cipherFile, iv, key,
+                                        ParallelCbcInputStream.DEFAULT_CHUNK_SIZE, pool,
+                                        readAhead);
+                            }
+                        });
+                if (threads == 1) {
+                    oneMs = ms;
+                } else {
+                    Log.i(TAG, threads + " threads are " + oneMs * 100 / Math.max(1, ms) / 100.0
+                            + " times as fast as one");
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            if (threads == cores) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.SecretKey;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Brings an existing gallery directory up to date with a sync manifest, fetching only the images
+ * that are missing or have changed.
+ *
+ * A sync manifest describes every image in an album, one on each line:
+ * <pre>
+ *     # Comments and blank lines are ignored.
+ *     &lt;sha-256 of the image, hex&gt; &lt;size in bytes&gt; &lt;file name&gt;
+ * </pre>
+ * For an encrypted album, every image is encrypted on its own with
+ * {@link CryptoRoutines#AES_CBC_PKCS5_PADDING}, and the initialization vector for the image comes
+ * before the file name:
+ * <pre>
+ *     &lt;sha-256&gt; &lt;size&gt; &lt;initialization vector, base64&gt; &lt;file name&gt;
+ * </pre>
+ * The hash and the size are those of the plain image, so they can be compared with the files
+ * that are already on disk. The images are fetched from the file name, relative to the manifest
+ * URL.
+ *
+ * Images already on disk with the same size and hash are left alone. Files on disk that the
+ * manifest doesn't mention are also left alone: a sync only ever adds or replaces images.
+ * Every image is written to a temporary file outside the gallery, checked against its hash,
+ * and only then renamed into the gallery, so the gallery never holds a partial image.
+ */
+class AlbumSync {
+    private static final String TAG = "AlbumSync";
+
+    /** Size of the buffer used to read images and hash files. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** A single image listed in a sync manifest. */
+    static class Entry {
+        /** SHA-256 of the plain image, lowercase hex. */
+        final String hash;
+        /** Size of the plain image in bytes. */
+        final long size;
+        /** The file name within the gallery, and relative to the manifest URL. */
+        final String name;
+        /** The initialization vector if the album is encrypted, null otherwise. */
+        final String iv;
+
+        Entry(String hash, long size, String name, String iv) {
+            this.hash = hash;
+            this.size = size;
+            this.name = name;
+            this.iv = iv;
+        }
+    }
+
+    /** What a sync did. */
+    static class Result {
+        /** Number of images fetched, either because they were missing or had changed. */
+        int fetched = 0;
+        /** Number of images that were already on disk. */
+        int unchanged = 0;
+        /** Bytes fetched over the network. */
+        long bytesFetched = 0;
+    }
+
+    /** Where the manifest is. Images are relative to this. */
+    private final URL manifest;
+
+    /** The gallery directory that is updated. */
+    private final File galleryDir;
+
+    /** Directory for the temporary files, on the same file system as {@link #galleryDir}. */
+    private final File workDir;
+
+    /** The key to decrypt images with, null if the album isn't encrypted. */
+    private final SecretKey key;
+
+    /** Where the space for the images is reserved. */
+    private final SpaceLedger ledger;
+
+    /**
+     * Create an object to sync a single album. Nothing happens till {@link #sync()} is called.
+     * @param manifest the URL of the sync manifest.
+     * @param galleryDir the directory that holds the images for this album. Created if required.
+     * @param workDir a directory for temporary files. This needs to be on the same file system as
+     *                the gallery, and must not be the gallery itself.
+     * @param key the key to decrypt images with, or null if the album isn't encrypted.
+     * @param ledger where to reserve disk space for the images that are fetched.
+     */
+    AlbumSync(@NonNull URL manifest, @NonNull File galleryDir, @NonNull File workDir,
+              @Nullable SecretKey key, @NonNull SpaceLedger ledger) {
+        this.manifest = manifest;
+        this.galleryDir = galleryDir;
+        this.workDir = workDir;
+        this.key = key;
+        this.ledger = ledger;
+    }
+
+    /**
+     * Fetch the manifest, and fetch every image on it that isn't already on disk.
+     *
+     * If an image fails to download, the sync stops there. The images fetched till then stay in
+     * the gallery, so the next sync only fetches what's left.
+     * @return what was done.
+     * @throws IOException if the manifest or any image could not be fetched, or an image didn't
+     *          match its hash.
+     */
+    @WorkerThread
+    @NonNull Result sync() throws IOException {
+        List<Entry> entries = parseManifest(fetchManifest(), key != null);
+        if (!galleryDir.isDirectory() && !galleryDir.mkdirs()) {
+            throw new IOException("Could not create " + galleryDir);
+        }
+
+        // Find what needs to be fetched before fetching anything, so we know it fits on disk.
+        List<Entry> missing = new ArrayList<>();
+        long needed = 0;
+        Result result = new Result();
+        for (Entry entry : entries) {
+            if (isCurrent(new File(galleryDir, entry.name), entry)) {
+                result.unchanged++;
+            } else {
+                missing.add(entry);
+                needed += entry.size;
+            }
+        }
+        Log.d(TAG, "Sync " + manifest + ": " + missing.size() + " of " + entries.size()
+                + " images to fetch, " + needed + " bytes");
+        if (missing.isEmpty()) {
+            return result;
+        }
+        SpaceLedger.Reservation reservation = ledger.reserve(galleryDir, needed);
+        if (reservation == null) {
+            throw new IOException("Out of disk space: Expected: " + needed
+                    + " Available: " + ledger.available(galleryDir));
+        }
+        try {
+            for (Entry entry : missing) {
+                fetch(entry);
+                reservation.consume(entry.size);
+                result.fetched++;
+                result.bytesFetched += entry.size;
+            }
+        } finally {
+            reservation.release();
+        }
+        return result;
+    }
+
+    /**
+     * Read the manifest into memory. Manifests are small: a line per image.
+     * @return the lines of the manifest, without comments or duplicates.
+     */
+    private List<String> fetchManifest() throws IOException {
+        HttpURLConnection connection = HttpConnections.open(manifest);
+        InputStream body = null;
+        try {
+            checkResponse(connection, manifest);
+            InputStream in = connection.getInputStream();
+            List<String> lines = NetworkRoutines.readManifest(new BufferedReader(
+                    new InputStreamReader(in, StandardCharsets.UTF_8)));
+            body = in;
+            return lines;
+        } finally {
+            HttpConnections.release(connection, body);
+        }
+    }
+
+    /**
+     * Fetch a single image into the gallery, decrypting it if required.
+     * @param entry the image to fetch.
+     * @throws IOException if it could not be fetched, or did not match its size and hash.
+     */
+    private void fetch(Entry entry) throws IOException {
+        URL source = resolve(entry.name);
+        File partial = new File(workDir, galleryDir.getName() + "-" + entry.name + ".part");
+        MessageDigest md = CryptoRoutines.sha256Digest();
+        long total = 0;
+
+        HttpURLConnection connection = HttpConnections.open(source);
+        InputStream body = null;
+        try {
+            checkResponse(connection, source);
+            InputStream raw = connection.getInputStream();
+            InputStream in = new BufferedInputStream(raw, BUFFER_SIZE);
+            if (key != null) {
+                try {
+                    in = CryptoRoutines.decryptingStream(in, CryptoRoutines.STob(entry.iv), key);
+                } catch (Exception e) {
+                    throw new IOException("Could not decrypt " + entry.name, e);
+                }
+            }
+            in = new DigestInputStream(in, md);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(partial),
+                    BUFFER_SIZE);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) > 0) {
+                    total += count;
+                    if (total > entry.size) {
+                        break;
+                    }
+                    out.write(buffer, 0, count);
+                }
+            } finally {
+                out.close();
+            }
+            if (total <= entry.size) {
+                // Read to the end, so the connection can be used for the next image.
+                body = raw;
+            }
+        } finally {
+            HttpConnections.release(connection, body);
+            if (body == null) {
+                partial.delete();
+            }
+        }
+
+        String hash = CryptoRoutines.toHex(md.digest());
+        if (total != entry.size || !hash.equalsIgnoreCase(entry.hash)) {
+            partial.delete();
+            throw new IOException(entry.name + " does not match the manifest: " + total
+                    + " bytes, hash " + hash);
+        }
+        File destination = new File(galleryDir, entry.name);
+        if (!partial.renameTo(destination)) {
+            partial.delete();
+            throw new IOException("Could not move " + partial + " to " + destination);
+        }
+        Log.d(TAG, "Fetched " + entry.name + ", " + total + " bytes");
+    }
+
+    /**
+     * Whether the file on disk is the one the manifest describes. The size is compared first,
+     * so a changed image is usually found without reading it.
+     */
+    private static boolean isCurrent(File file, Entry entry) throws IOException {
+        if (!file.isFile() || file.length() != entry.size) {
+            return false;
+        }
+        MessageDigest md = CryptoRoutines.sha256Digest();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                md.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return CryptoRoutines.toHex(md.digest()).equalsIgnoreCase(entry.hash);
+    }
+
+    /**
+     * The URL of an image: its name relative to the manifest, with any characters that can't
+     * appear in a URL escaped.
+     */
+    private URL resolve(String name) throws IOException {
+        try {
+            String path = new URI(null, null, name, null).getRawPath();
+            return new URL(manifest, path);
+        } catch (URISyntaxException e) {
+            throw new IOException("Bad image name: " + name, e);
+        }
+    }
+
+    /** Throw unless the response is a 200. */
+    private static void checkResponse(HttpURLConnection connection, URL url) throws IOException {
+        int code = connection.getResponseCode();
+        if (code != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP " + code + " for " + url);
+        }
+    }
+
+    /**
+     * Parse the lines of a sync manifest. Lines that can't be parsed, and lines with file names
+     * that could escape the gallery directory, are logged and skipped.
+     * @param lines the lines, as returned by {@link NetworkRoutines#readManifest(java.io.Reader)}
+     * @param encrypted true if every line has an initialization vector.
+     * @return all the valid entries, in order.
+     */
+    static @NonNull List<Entry> parseManifest(@NonNull List<String> lines, boolean encrypted) {
+        int fields = encrypted ? 4 : 3;
+        List<Entry> entries = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            // The name is last, so it can contain spaces.
+            String[] parts = line.split("\\s+", fields);
+            if (parts.length != fields) {
+                Log.d(TAG, "Ignoring manifest line: " + line);
+                continue;
+            }
+            String hash = parts[0];
+            String name = parts[fields - 1];
+            long size;
+            try {
+                size = Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                Log.d(TAG, "Ignoring manifest line with bad size: " + line);
+                continue;
+            }
+            if (hash.length() != 64 || size < 0 || !isSafeName(name)) {
+                Log.d(TAG, "Ignoring manifest line: " + line);
+                continue;
+            }
+            entries.add(new Entry(hash, size, name, encrypted ? parts[2] : null));
+        }
+        return entries;
+    }
+
+    /**
+     * Whether this name stays inside the gallery directory, and is visible in it.
+     * Galleries are flat, so there are no directories in names.
+     */
+    private static boolean isSafeName(String name) {
+        return name.length() > 0 && !name.startsWith(".") && name.indexOf('/') < 0
+                && name.indexOf('\\') < 0;
+    }
+}
@@ -0,0 +1,228 @@
+package com.eggwall.android.photoviewer;
+
+import java.io.InterruptedIOException;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Limits how fast packages are downloaded, so that downloads don't take the whole link, or the
+ * disk and CPU that the slideshow needs to show the next image on time.
+ *
+ * There are two limits. The global rate is shared by every download running at the same time,
+ * and the per-download rate applies to each download on its own, however many connections it
+ * uses. Each is a bucket that fills at its rate and holds up to {@link #BURST_MS} of it: a
+ * download takes from both buckets before it writes what it read, and waits when either is
+ * empty. Data that isn't read from the socket stays in the server's buffers, so TCP slows the
+ * server down to match.
+ *
+ * While a slideshow is playing, the global rate drops to the playing rate. Once the viewer is
+ * idle again it goes back up, and the downloads in progress speed up without being restarted.
+ * Whenever the limits change, downloads that are waiting stop waiting, and go on at the new rate:
+ * a wait that was worked out at the old rate could be far too long at the new one.
+ *
+ * A rate of {@link #UNLIMITED} turns that limit off. With every limit off, nothing waits.
+ */
+class BandwidthGovernor {
+    /** A rate that doesn't limit anything. */
+    static final long UNLIMITED = 0;
+
+    /** How far ahead of its rate a download can get after being idle. */
+    static final long BURST_MS = 250;
+
+    /** Bytes per second shared by every download while the viewer is idle. */
+    private long globalRate = UNLIMITED;
+
+    /** Bytes per second for each download. */
+    private long eachRate = UNLIMITED;
+
+    /** Bytes per second shared by every download while a slideshow is playing. */
+    private long playingRate = UNLIMITED;
+
+    /** Set while a slideshow is playing. */
+    private boolean playing = false;
+
+    /** Counts the changes to the limits, so that downloads can tell that they changed. */
+    private long changes = 0;
+
+    /** The shared bucket. Guarded by this. */
+    private final Bucket global = new Bucket();
+
+    /**
+     * Tokens that fill up at a steady rate. Rather than counting tokens, this keeps the time at
+     * which everything taken so far has been paid for, which is the same thing.
+     */
+    private static class Bucket {
+        /** When the bytes taken so far are paid for, in {@link System#nanoTime()}. */
+        private long paidNs = Long.MIN_VALUE;
+
+        /**
+         * Take bytes from the bucket.
+         * @param bytes how many bytes were read.
+         * @param rate bytes per second, or {@link #UNLIMITED}.
+         * @param nowNs the current time.
+         * @return how long to wait, in nanoseconds, till the bytes are paid for.
+         */
+        long take(int bytes, long rate, long nowNs) {
+            if (rate <= UNLIMITED) {
+                paidNs = Long.MIN_VALUE;
+                return 0;
+            }
+            // An idle bucket is full, but holds no more than a burst.
+            long fullNs = nowNs - BURST_MS * 1000000;
+            if (paidNs < fullNs) {
+                paidNs = fullNs;
+            }
+            paidNs += bytes * 1000000000L / rate;
+            return Math.max(0, paidNs - nowNs);
+        }
+    }
+
+    /**
+     * The per-download limit, for a single download. All the connections of a download share
+     * the same meter.
+     */
+    class Meter {
+        /** Guarded by this meter. */
+        private final Bucket own = new Bucket();
+
+        /** {@link #changes} when {@link #own} was last taken from. Guarded by this meter. */
+        private long seenChanges = 0;
+
+        /**
+         * Account for bytes that were just read, and wait till the limits allow them.
+         * @param bytes how many bytes were read.
+         * @throws InterruptedIOException if the thread was interrupted while waiting.
+         */
+        @WorkerThread
+        void consume(int bytes) throws InterruptedIOException {
+            long nowNs = System.nanoTime();
+            long changesNow = getChanges();
+            long ownWaitNs;
+            synchronized (this) {
+                if (seenChanges != changesNow) {
+                    // Bytes already taken at the old rate shouldn't hold up the new one.
+                    own.paidNs = Long.MIN_VALUE;
+                    seenChanges = changesNow;
+                }
+                ownWaitNs = own.take(bytes, getEachRate(), nowNs);
+            }
+            long globalWaitNs = takeGlobal(bytes, nowNs);
+            long waitNs = Math.max(ownWaitNs, globalWaitNs);
+            if (waitNs <= 0) {
+                return;
+            }
+            pause(waitNs, changesNow);
+        }
+    }
+
+    /**
+     * Wait for this long, or till the limits change.
+     * @param waitNs how long to wait, in nanoseconds.
+     * @param changesSeen {@link #changes} when the wait was worked out.
+     * @throws InterruptedIOException if the thread was interrupted while waiting.
+     */
+    @WorkerThread
+    private synchronized void pause(long waitNs, long changesSeen)
+            throws InterruptedIOException {
+        long untilNs = System.nanoTime() + waitNs;
+        long leftNs = waitNs;
+        while (leftNs > 0 && changes == changesSeen) {
+            try {
+                wait(leftNs / 1000000, (int) (leftNs % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+            leftNs = untilNs - System.nanoTime();
+        }
+    }
+
+    /** Note that the limits changed, and wake the downloads that are waiting. */
+    private void changed() {
+        // Bytes already taken at the old rate shouldn't hold up the new one.
+        global.paidNs = Long.MIN_VALUE;
+        changes++;
+        notifyAll();
+    }
+
+    /**
+     * Create a meter for a new download.
+     * @return a meter that all the connections of the download should consume from.
+     */
+    @AnyThread
+    @NonNull Meter newMeter() {
+        return new Meter();
+    }
+
+    /**
+     * Change the limits. Downloads in progress use the new ones from the next bytes they read,
+     * and the ones that are waiting stop waiting.
+     * @param globalRate bytes per second for all downloads together while the viewer is idle.
+     * @param eachRate bytes per second for each download.
+     * @param playingRate bytes per second for all downloads together while a slideshow plays.
+     */
+    @AnyThread
+    synchronized void setRates(long globalRate, long eachRate, long playingRate) {
+        if (this.globalRate == globalRate && this.eachRate == eachRate
+                && this.playingRate == playingRate) {
+            return;
+        }
+        this.globalRate = globalRate;
+        this.eachRate = eachRate;
+        this.playingRate = playingRate;
+        changed();
+    }
+
+    /**
+     * Tell the governor whether a slideshow is playing.
+     * @param playing true while the slideshow is playing, false when the viewer is idle.
+     */
+    @AnyThread
+    synchronized void setPlaying(boolean playing) {
+        if (this.playing != playing) {
+            this.playing = playing;
+            changed();
+        }
+    }
+
+    /**
+     * Whether any limit applies right now. The playing rate only counts while a slideshow is
+     * playing. Downloads that can't be metered, like the ones the system runs, should only be
+     * started when this is false, and aren't slowed down if a slideshow starts later.
+     * @return true if a download started now could have to wait.
+     */
+    @AnyThread
+    synchronized boolean isLimited() {
+        return getGlobalRate() > UNLIMITED || eachRate > UNLIMITED;
+    }
+
+    /**
+     * The global rate that applies right now.
+     * @return bytes per second, or {@link #UNLIMITED}.
+     */
+    @AnyThread
+    synchronized long getGlobalRate() {
+        if (!playing) {
+            return globalRate;
+        }
+        // Playing never allows more than idle does.
+        if (globalRate <= UNLIMITED) {
+            return playingRate;
+        }
+        return (playingRate <= UNLIMITED) ? globalRate : Math.min(globalRate, playingRate);
+    }
+
+    private synchronized long getChanges() {
+        return changes;
+    }
+
+    private synchronized long getEachRate() {
+        return eachRate;
+    }
+
+    private synchronized long takeGlobal(int bytes, long nowNs) {
+        return global.take(bytes, getGlobalRate(), nowNs);
+    }
+}
@@ -0,0 +1,206 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.List;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Reads a single beacon, conditionally, and remembers the validators for the next read.
+ *
+ * The beacon is a manifest: one URL per line, as many lines as required, with blank lines
+ * and lines starting with '#' ignored. A beacon with a single URL is a manifest with a single
+ * entry. No fancy HTML. The manifest is parsed as it streams in, with duplicates removed.
+ *
+ * The beacon is fetched conditionally: the ETag and Last-Modified from the previous read are
+ * sent back to the server, and a 304 response ends the read. If the server doesn't support
+ * those, a body identical to the previous one (by SHA-256) is ignored as well, so reading
+ * often costs nothing downstream.
+ *
+ * A read can ask the server to hold on to the request till the beacon changes, with the
+ * {@code Prefer: wait} header from RFC 7240. A server that supports this answers as soon as
+ * there is something new, or with a 304 once the wait is over. A server that doesn't answers
+ * right away, as it always did. {@link LongPoller} reads a beacon like this over and over.
+ *
+ * A single reader is only used by one thread at a time, except for {@link #abort()}.
+ */
+class BeaconReader {
+    private static final String TAG = "BeaconReader";
+
+    /** The URL of the manifest. */
+    private final URL url;
+
+    /** The ETag the server sent the last time this was read, or empty. */
+    private String etag;
+
+    /** The Last-Modified time the server sent the last time this was read, or empty. */
+    private String lastModified;
+
+    /** SHA-256 of the manifest the last time it was read, or empty. */
+    private String hash;
+
+    /** The connection of the read in progress, if any, so it can be aborted. */
+    private volatile HttpURLConnection current = null;
+
+    /** Set once {@link #abort()} has been called. */
+    private volatile boolean aborted = false;
+
+    /**
+     * Create a reader that continues from an earlier read.
+     * @param url the URL of the manifest.
+     * @param etag the ETag from the last read, or empty.
+     * @param lastModified the Last-Modified time from the last read, or empty.
+     * @param hash SHA-256 of the manifest from the last read, or empty.
+     */
+    BeaconReader(@NonNull URL url, @NonNull String etag, @NonNull String lastModified,
+                 @NonNull String hash) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Read the beacon, and return its entries if it changed.
+     * @param waitSeconds how long the server can hold the request till the beacon changes.
+     *                    Zero to ask for an answer right away.
+     * @param entries where the entries of a changed beacon are added.
+     * @return {@link BeaconScheduler#CHANGED} if the beacon had something new,
+     *          {@link BeaconScheduler#UNCHANGED} if it didn't, and {@link BeaconScheduler#FAILED}
+     *          if it could not be read, or the read was aborted.
+     */
+    @WorkerThread
+    int read(int waitSeconds, @NonNull List<String> entries) {
+        HttpURLConnection connection;
+        try {
+            connection = HttpConnections.open(url);
+        } catch (IOException e) {
+            Log.d(TAG, "Beacon could not be read: " + e.getMessage());
+            return BeaconScheduler.FAILED;
+        }
+        List<String> read;
+        String newHash;
+        String newEtag;
+        String newLastModified;
+        // Only set once the response has been read, so the connection can be reused by the
+        // downloads that the beacon is about to start.
+        InputStream body = null;
+        current = connection;
+        try {
+            if (aborted) {
+                // Aborted before there was a connection to drop.
+                throw new IOException("Aborted");
+            }
+            // Ask the server to only send the body if it changed since we last read it.
+            if (etag.length() > 0) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified.length() > 0) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+            if (waitSeconds > 0) {
+                // And to wait for it to change. The response can take that much longer.
+                connection.setRequestProperty("Prefer", "wait=" + waitSeconds);
+                connection.setReadTimeout(HttpConnections.READ_TIMEOUT_MS + waitSeconds * 1000);
+            }
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.d(TAG, "Beacon not modified: " + url);
+                body = HttpConnections.responseBody(connection);
+                return BeaconScheduler.UNCHANGED;
+            }
+            // Read the response body here, not the headers. The body is hashed as it is
+            // parsed, so it is only read once.
+            MessageDigest md = CryptoRoutines.sha256Digest();
+            InputStream in = connection.getInputStream();
+            read = NetworkRoutines.readManifest(new BufferedReader(
+                    new InputStreamReader(new DigestInputStream(in, md), Charsets.UTF_8)));
+            body = in;
+            newHash = CryptoRoutines.toHex(md.digest());
+
+            // Remember the validators for the next read.
+            newEtag = connection.getHeaderField("ETag");
+            newLastModified = connection.getHeaderField("Last-Modified");
+        } catch (IOException e) {
+            // Had trouble reading from the beacon. Mark an error.
+            Log.d(TAG, "Failed to read from beacon: " + e.getMessage());
+            return BeaconScheduler.FAILED;
+        } catch (RuntimeException e) {
+            // A connection dropped from another thread can fail in odd ways.
+            if (!aborted) {
+                throw e;
+            }
+            return BeaconScheduler.FAILED;
+        } finally {
+            current = null;
+            HttpConnections.release(connection, body);
+        }
+
+        etag = (newEtag == null) ? "" : newEtag;
+        lastModified = (newLastModified == null) ? "" : newLastModified;
+        // Servers that don't support validators send the same body every time. Nothing to do
+        // if it is what we saw last time.
+        if (newHash.equals(hash)) {
+            Log.d(TAG, "Beacon unchanged: " + url);
+            return BeaconScheduler.UNCHANGED;
+        }
+        hash = newHash;
+        // An empty beacon is still a change: more could follow soon.
+        entries.addAll(read);
+        return BeaconScheduler.CHANGED;
+    }
+
+    /**
+     * Go back to the validators of an earlier read, so that the next read gives the entries
+     * again if the beacon changed since. For entries that were read but couldn't be handled.
+     * @param etag the ETag from the earlier read, or empty.
+     * @param lastModified the Last-Modified time from the earlier read, or empty.
+     * @param hash SHA-256 of the manifest from the earlier read, or empty.
+     */
+    void rewind(@NonNull String etag, @NonNull String lastModified, @NonNull String hash) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.hash = hash;
+    }
+
+    /**
+     * Drop the connection of the read in progress, if any. That read fails right away instead
+     * of waiting for the server to answer. Only call this when the reader won't be used again.
+     */
+    @AnyThread
+    void abort() {
+        aborted = true;
+        HttpURLConnection connection = current;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    @NonNull URL getUrl() {
+        return url;
+    }
+
+    @NonNull String getEtag() {
+        return etag;
+    }
+
+    @NonNull String getLastModified() {
+        return lastModified;
+    }
+
+    @NonNull String getHash() {
+        return hash;
+    }
+}
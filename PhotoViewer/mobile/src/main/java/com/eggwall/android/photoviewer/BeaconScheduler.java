@@ -0,0 +1,118 @@
+package com.eggwall.android.photoviewer;
+
+import java.util.Random;
+
+import androidx.annotation.AnyThread;
+
+/**
+ * Decides when the beacon is read next, from what happened the last time it was read.
+ *
+ * A beacon that just changed is likely to change again soon: an album is often published in
+ * several parts, or corrected right after. So a change brings the interval down to
+ * {@link #MIN_INTERVAL_MS}. Every read that finds nothing new doubles it, up to
+ * {@link #MAX_QUIET_INTERVAL_MS}, which is how often the beacon was always read. A beacon that
+ * rarely changes is read as often as before, and one that is changing is read much sooner.
+ *
+ * A failed read doubles the interval as well, but up to {@link #MAX_FAILURE_INTERVAL_MS}, so a
+ * server that is down isn't asked every hour by every device.
+ *
+ * Every delay is spread by {@link #JITTER} in either direction, so that devices which started
+ * together, say after the server came back, don't keep reading the beacon at the same moment.
+ *
+ * This only does the arithmetic. {@link NetworkController} keeps the interval and the time of
+ * the next read for every beacon in the database, so that they survive the activity being
+ * restarted, and {@link MainController} runs the timer.
+ *
+ * This is thread-safe.
+ */
+class BeaconScheduler {
+    /** The beacon was read, and had something new. */
+    static final int CHANGED = 0;
+
+    /** The beacon was the same as last time, or the server said it hadn't changed. */
+    static final int UNCHANGED = 1;
+
+    /** The beacon could not be read. */
+    static final int FAILED = 2;
+
+    /** No beacon is set, so nothing was read. */
+    static final int NO_BEACON = 3;
+
+    /** The interval right after the beacon changed. */
+    static final long MIN_INTERVAL_MS = 2 * 60 * 1000;
+
+    /** The longest interval while the beacon can be read but isn't changing. */
+    static final long MAX_QUIET_INTERVAL_MS = 60 * 60 * 1000;
+
+    /** The longest interval while the beacon can't be read. */
+    static final long MAX_FAILURE_INTERVAL_MS = 6 * 60 * 60 * 1000;
+
+    /** Every delay is randomly moved by up to this fraction of the interval. */
+    static final double JITTER = 0.2;
+
+    /** The current interval, without jitter. */
+    private long intervalMs;
+
+    private final Random random;
+
+    /**
+     * Create a scheduler that continues from an earlier interval.
+     * @param intervalMs the interval from before, or zero if there was none.
+     */
+    BeaconScheduler(long intervalMs) {
+        this(intervalMs, new Random());
+    }
+
+    /**
+     * Create a scheduler with a specific source of jitter, for tests.
+     * @param intervalMs the interval from before, or zero if there was none.
+     * @param random where the jitter comes from.
+     */
+    BeaconScheduler(long intervalMs, Random random) {
+        this.intervalMs = clamp(intervalMs, MAX_FAILURE_INTERVAL_MS);
+        this.random = random;
+    }
+
+    /**
+     * Record what happened when the beacon was read, and find when to read it next.
+     * @param outcome one of {@link #CHANGED}, {@link #UNCHANGED}, {@link #FAILED} or
+     *                {@link #NO_BEACON}.
+     * @return milliseconds till the beacon should be read again.
+     */
+    @AnyThread
+    synchronized long next(int outcome) {
+        switch (outcome) {
+            case CHANGED:
+                intervalMs = MIN_INTERVAL_MS;
+                break;
+            case UNCHANGED:
+                intervalMs = clamp(intervalMs * 2, MAX_QUIET_INTERVAL_MS);
+                break;
+            case FAILED:
+                intervalMs = clamp(intervalMs * 2, MAX_FAILURE_INTERVAL_MS);
+                break;
+            case NO_BEACON:
+            default:
+                intervalMs = MAX_QUIET_INTERVAL_MS;
+                break;
+        }
+        return delay();
+    }
+
+    /** The current interval, without jitter. */
+    @AnyThread
+    synchronized long getIntervalMs() {
+        return intervalMs;
+    }
+
+    /** The current interval, moved randomly by up to {@link #JITTER} of it. */
+    private long delay() {
+        double spread = (random.nextDouble() * 2 - 1) * JITTER;
+        return Math.round(intervalMs * (1 + spread));
+    }
+
+    /** Keep an interval between {@link #MIN_INTERVAL_MS} and the maximum. */
+    private static long clamp(long intervalMs, long maxMs) {
+        return Math.max(MIN_INTERVAL_MS, Math.min(intervalMs, maxMs));
+    }
+}
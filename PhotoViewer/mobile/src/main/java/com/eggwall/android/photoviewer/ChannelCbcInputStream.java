@@ -0,0 +1,151 @@
+package com.eggwall.android.photoviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decrypts a file encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING} on the reading
+ * thread, and reads like {@link CryptoRoutines#decryptingStream(InputStream, byte[], SecretKey)}.
+ *
+ * A {@link javax.crypto.CipherInputStream} over a buffered file copies every byte through
+ * several arrays on the Java heap, and hands the cipher a few hundred bytes at a time. Here the
+ * file's channel reads a megabyte of cipher text at a time into a direct buffer, and
+ * {@link Cipher#update(ByteBuffer, ByteBuffer)} decrypts it into another direct buffer, which
+ * the reader copies out of. That is a single copy onto the heap, into the reader's own array.
+ *
+ * The buffers and the cipher are borrowed from {@link CryptoRoutines}, and given back when the
+ * stream is closed, so a package after the first allocates neither.
+ */
+class ChannelCbcInputStream extends InputStream {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Cipher cipher;
+    private final ByteBuffer[] buffers;
+    /** Cipher text read from the file, that the cipher hasn't taken yet. Ready to be filled. */
+    private final ByteBuffer cipherText;
+    /** Plain text the reader hasn't taken yet. Ready to be read. */
+    private final ByteBuffer plainText;
+
+    /** Set once the end of the file has been decrypted, and the padding taken off. */
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * Open a file to decrypt.
+     * @param cipherFile a file encrypted with AES/CBC and PKCS5 padding.
+     * @param iv the initialization vector it was encrypted with.
+     * @param key the key it was encrypted with.
+     * @throws IOException if the file can't be read.
+     * @throws GeneralSecurityException if the cipher can't be created.
+     */
+    ChannelCbcInputStream(@NonNull File cipherFile, @NonNull byte[] iv, @NonNull SecretKey key)
+            throws IOException, GeneralSecurityException {
+        this.file = new RandomAccessFile(cipherFile, "r");
+        this.channel = file.getChannel();
+        try {
+            this.cipher = CryptoRoutines.borrowCipher(CryptoRoutines.AES_CBC_PKCS5_PADDING);
+        } catch (GeneralSecurityException e) {
+            file.close();
+            throw e;
+        }
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        } catch (GeneralSecurityException e) {
+            CryptoRoutines.giveBack(cipher);
+            file.close();
+            throw e;
+        }
+        this.buffers = CryptoRoutines.borrowBuffers();
+        this.cipherText = buffers[0];
+        this.plainText = buffers[1];
+        cipherText.clear();
+        plainText.clear();
+        plainText.flip();
+    }
+
+    /**
+     * Decrypt more of the file, till there is plain text to read.
+     * @return false at the end of the file.
+     * @throws IOException if the file can't be read, or the padding is wrong, which usually
+     *          means the wrong key.
+     */
+    private boolean fill() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (!plainText.hasRemaining()) {
+            if (finished) {
+                return false;
+            }
+            int count = channel.read(cipherText);
+            cipherText.flip();
+            plainText.clear();
+            try {
+                if (count < 0) {
+                    cipher.doFinal(cipherText, plainText);
+                    finished = true;
+                } else {
+                    cipher.update(cipherText, plainText);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Cannot decrypt", e);
+            }
+            // Whatever the cipher didn't take is read again along with the next bytes.
+            cipherText.compact();
+            plainText.flip();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return plainText.get() & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(len, plainText.remaining());
+        plainText.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return closed ? 0 : plainText.remaining();
+    }
+
+    /** Close the file, and give back the cipher and the buffers. */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            file.close();
+        } finally {
+            CryptoRoutines.giveBack(cipher);
+            CryptoRoutines.giveBack(buffers);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.eggwall.android.photoviewer;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Remembers a set of strings approximately, in a fraction of the memory the strings take.
+ *
+ * {@link #mightContain(String)} never says no for a string that was added and not removed
+ * since. It says yes for a string that was never added with a small probability, which is
+ * chosen when the filter is created. So a no can be trusted, and a yes has to be confirmed
+ * wherever the strings are really kept.
+ *
+ * Every string sets {@link #hashes} counters, picked by hashing it. Counters rather than bits
+ * allow strings to be removed again: removing a string decrements the same counters. Only
+ * remove strings that were added, otherwise counters that belong to other strings go down and
+ * they can be missed. A counter that reaches {@link #MAX_COUNT} stays there, so it can't wrap
+ * around; that only makes the filter say yes more often.
+ *
+ * This is thread-safe.
+ */
+class CountingBloomFilter {
+    /** The largest value of a counter. Counters are stored in bytes, unsigned. */
+    static final int MAX_COUNT = 0xff;
+
+    /** One counter per slot. */
+    private final byte[] counters;
+
+    /** The number of counters each string sets. */
+    private final int hashes;
+
+    /** The number of strings the filter was sized for. */
+    private final int capacity;
+
+    /** Strings added minus strings removed. Guarded by this. */
+    private int size = 0;
+
+    /**
+     * Create an empty filter.
+     * @param capacity the number of strings it should hold. More can be added, at the cost of a
+     *                 higher false positive rate.
+     * @param falsePositiveRate the chance of saying yes for a string that isn't there, once the
+     *                          filter holds capacity strings. Between 0 and 1.
+     */
+    CountingBloomFilter(int capacity, double falsePositiveRate) {
+        this.capacity = Math.max(1, capacity);
+        // The usual sizes: m = -n ln(p) / (ln 2)^2 slots, and k = (m / n) ln 2 hashes.
+        double ln2 = Math.log(2);
+        long slots = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        counters = new byte[(int) Math.max(64, Math.min(slots, Integer.MAX_VALUE - 8))];
+        hashes = (int) Math.max(1, Math.round((double) counters.length / this.capacity * ln2));
+    }
+
+    /**
+     * Add a string. Adding it more than once needs as many removals to remove it.
+     * @param s the string to add.
+     */
+    @AnyThread
+    synchronized void add(@NonNull String s) {
+        long h = hash(s);
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(h, i);
+            int count = counters[slot] & 0xff;
+            if (count < MAX_COUNT) {
+                counters[slot] = (byte) (count + 1);
+            }
+        }
+        size++;
+    }
+
+    /**
+     * Remove a string that was added earlier.
+     * @param s the string to remove.
+     */
+    @AnyThread
+    synchronized void remove(@NonNull String s) {
+        long h = hash(s);
+        for (int i = 0; i < hashes; i++) {
+            int slot = slot(h, i);
+            int count = counters[slot] & 0xff;
+            // A full counter has lost track of its count, and has to stay full.
+            if (count > 0 && count < MAX_COUNT) {
+                counters[slot] = (byte) (count - 1);
+            }
+        }
+        size = Math.max(0, size - 1);
+    }
+
+    /**
+     * Check for a string.
+     * @param s the string to look for.
+     * @return false if the string is definitely not in the filter, true if it probably is.
+     */
+    @AnyThread
+    synchronized boolean mightContain(@NonNull String s) {
+        long h = hash(s);
+        for (int i = 0; i < hashes; i++) {
+            if (counters[slot(h, i)] == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The number of strings the filter holds: added minus removed. */
+    @AnyThread
+    synchronized int size() {
+        return size;
+    }
+
+    /** The number of strings the filter was sized for. */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The i-th slot of a string. All of them come from a single 64-bit hash: the low and high
+     * halves are combined as h1 + i * h2, which is as good as k independent hashes.
+     */
+    private int slot(long h, int i) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32) | 1;
+        int slot = (h1 + i * h2) % counters.length;
+        return (slot < 0) ? slot + counters.length : slot;
+    }
+
+    /** 64-bit FNV-1a over the characters, mixed so that every bit depends on every input bit. */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // The finalizer of MurmurHash3.
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93e1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -12,7 +12,15 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -22,6 +30,8 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import androidx.annotation.NonNull;
+
 /**
  * A collection of routines that are required to encrypt and decrypt a file. Most of this is
  * not specific to Android, except for some String to Base64 encoding / decoding.
@@ -41,6 +51,37 @@ public class CryptoRoutines {
     /** AES Encryption with Block Cipher and PKCS5 padding */
     static final String AES_CBC_PKCS5_PADDING = "AES/CBC/PKCS5PADDING";
 
+    /** Digest used for content hashes. */
+    static final String SHA_256 = "SHA-256";
+
+    /** Files at least this large are decrypted on every core. */
+    static final long PARALLEL_DECRYPT_MIN_SIZE = 8 * 1024 * 1024;
+
+    /** Size of the direct buffers that cipher text is read into from a channel. */
+    static final int NIO_BUFFER_SIZE = 1024 * 1024;
+
+    /** The most ciphers of each transformation kept for reuse. */
+    private static final int MAX_IDLE_CIPHERS = 8;
+
+    /** The most pairs of direct buffers kept for reuse. */
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    /**
+     * Ciphers that nobody is using, by transformation. Looking up a provider for every package
+     * and every image costs more than decrypting a small one, so ciphers are given back here
+     * when they are done with, and initialized again by the next user.
+     */
+    private static final ConcurrentHashMap<String, ConcurrentLinkedQueue<Cipher>> IDLE_CIPHERS =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Pairs of cipher text and plain text buffers that nobody is using. Direct buffers are
+     * expensive to create and are only freed by the garbage collector, so they are given back
+     * here when they are done with, like ciphers.
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer[]> IDLE_BUFFERS =
+            new ConcurrentLinkedQueue<>();
+
     /**
      * Decrypt a byte array using AES with CBC, PKC5_PADDING.
      *
@@ -51,10 +92,15 @@ public class CryptoRoutines {
      * @throws Exception crypto exceptions if it can't find the right algorithm.
      */
     private static byte[] decrypt(byte[] cipherText, byte[] iv, SecretKey key) throws Exception {
-        Cipher cipher = Cipher.getInstance(AES_CBC_PKCS5_PADDING);
+        Cipher cipher = borrowCipher(AES_CBC_PKCS5_PADDING);
         IvParameterSpec ivspec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, ivspec);
-        byte[] plainText = cipher.doFinal(cipherText);
+        byte[] plainText;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, ivspec);
+            plainText = cipher.doFinal(cipherText);
+        } finally {
+            giveBack(cipher);
+        }
         Log.d(TAG, "plainText: " + bToS(plainText) + ", cipherText: " + bToS(cipherText));
         return plainText;
     }
@@ -97,32 +143,243 @@ public class CryptoRoutines {
         // Open the input file
         File cipherFile = new File(cipherPath);
 
-        Cipher cipher = Cipher.getInstance(AES_CBC_PKCS5_PADDING);
-        IvParameterSpec ivspec = new IvParameterSpec(iv);
-        cipher.init(Cipher.DECRYPT_MODE, key, ivspec);
-        FileInputStream fis = new FileInputStream(cipherFile);
-        BufferedInputStream bis = new BufferedInputStream(fis);
-        CipherInputStream cis = new CipherInputStream(bis, cipher);
-
         // Create a file to write to.
         File toWrite = new File(plainPath);
-        final int fourMegs = 4 * 1024 * 1024;
-        byte[] buffer = new byte[fourMegs];
         boolean couldCreate = toWrite.createNewFile();
         if (!couldCreate) {
             Log.d(TAG, "Could not create file " + plainPath);
             return false;
         }
-        BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(toWrite));
-        int numBytes;
-        while ((numBytes = cis.read(buffer)) > 0) {
-            out.write(buffer, 0, numBytes);
+        FileInputStream in = new FileInputStream(cipherFile);
+        FileOutputStream out = new FileOutputStream(toWrite);
+        try {
+            if (Runtime.getRuntime().availableProcessors() > 1
+                    && cipherFile.length() >= PARALLEL_DECRYPT_MIN_SIZE) {
+                // Large files are decrypted on every core instead.
+                InputStream cis = new ParallelCbcInputStream(cipherFile, iv, key);
+                try {
+                    copy(cis, out.getChannel());
+                } finally {
+                    cis.close();
+                }
+            } else {
+                decrypt(in.getChannel(), out.getChannel(), iv, key);
+            }
+        } finally {
+            in.close();
+            out.close();
         }
-        out.close();
         Log.d(TAG, "Wrote plainText: " + plainPath);
         return true;
     }
 
+    /**
+     * Decrypt everything from one channel into another, through direct buffers.
+     *
+     * Unlike a {@link CipherInputStream}, the bytes are never copied into the Java heap: the
+     * channels read and write the direct buffers, and the cipher works on them where they are.
+     * The buffers are borrowed and given back, so decrypting a file allocates nothing that is
+     * as large as the file or the buffers.
+     *
+     * Downloaded packages aren't decrypted to another file, but read through a
+     * {@link ChannelCbcInputStream} which works the same way.
+     *
+     * @param in the cipher text, read from its current position till the end.
+     * @param out where the plain text is written, from its current position.
+     * @param iv the initialization vector to use to decrypt
+     * @param key the secret key used to decrypt
+     * @return the number of plain text bytes written.
+     * @throws IOException if the channels can't be read or written.
+     * @throws GeneralSecurityException if the cipher can't be created, or the padding is wrong.
+     */
+    static long decrypt(FileChannel in, FileChannel out, byte[] iv, SecretKey key)
+            throws IOException, GeneralSecurityException {
+        Cipher cipher = borrowCipher(AES_CBC_PKCS5_PADDING);
+        ByteBuffer[] buffers = borrowBuffers();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+            ByteBuffer cipherText = buffers[0];
+            ByteBuffer plainText = buffers[1];
+            cipherText.clear();
+            long total = 0;
+            while (in.read(cipherText) >= 0) {
+                cipherText.flip();
+                plainText.clear();
+                cipher.update(cipherText, plainText);
+                total += writeAll(plainText, out);
+                // Whatever the cipher didn't take is read again along with the next bytes.
+                cipherText.compact();
+            }
+            cipherText.flip();
+            plainText.clear();
+            cipher.doFinal(cipherText, plainText);
+            total += writeAll(plainText, out);
+            return total;
+        } finally {
+            giveBack(cipher);
+            giveBack(buffers);
+        }
+    }
+
+    /**
+     * A cipher for this transformation, not initialized. Reuses one that was given back, if
+     * there is one. Give it back with {@link #giveBack(Cipher)} once it isn't used any more.
+     *
+     * Call from any thread.
+     * @param transformation for {@link Cipher#getInstance(String)}.
+     * @return a cipher that nothing else is using.
+     * @throws GeneralSecurityException if no provider has this transformation.
+     */
+    static @NonNull Cipher borrowCipher(@NonNull String transformation)
+            throws GeneralSecurityException {
+        ConcurrentLinkedQueue<Cipher> idle = IDLE_CIPHERS.get(transformation);
+        Cipher cipher = (idle == null) ? null : idle.poll();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+        }
+        return cipher;
+    }
+
+    /**
+     * Give back a cipher from {@link #borrowCipher(String)}, to be reused. It must not be used
+     * after this. A cipher that isn't given back is simply collected.
+     * @param cipher a cipher, in any state. It is initialized again before it is reused.
+     */
+    static void giveBack(@NonNull Cipher cipher) {
+        String transformation = cipher.getAlgorithm();
+        ConcurrentLinkedQueue<Cipher> idle = IDLE_CIPHERS.get(transformation);
+        if (idle == null) {
+            ConcurrentLinkedQueue<Cipher> created = new ConcurrentLinkedQueue<>();
+            idle = IDLE_CIPHERS.putIfAbsent(transformation, created);
+            if (idle == null) {
+                idle = created;
+            }
+        }
+        // Only roughly bounded, since others can give back at the same time.
+        if (idle.size() < MAX_IDLE_CIPHERS) {
+            idle.offer(cipher);
+        }
+    }
+
+    /**
+     * A cipher text buffer of {@link #NIO_BUFFER_SIZE} bytes and a plain text buffer, both
+     * direct. The plain text buffer has room for the block the cipher holds back, and the
+     * padding. Reuses a pair that was given back, if there is one. Give them back with
+     * {@link #giveBack(ByteBuffer[])} once they aren't used any more.
+     *
+     * Call from any thread.
+     * @return the cipher text buffer, then the plain text buffer. Neither is cleared.
+     */
+    static @NonNull ByteBuffer[] borrowBuffers() {
+        ByteBuffer[] buffers = IDLE_BUFFERS.poll();
+        if (buffers == null) {
+            buffers = new ByteBuffer[] {
+                    ByteBuffer.allocateDirect(NIO_BUFFER_SIZE),
+                    ByteBuffer.allocateDirect(NIO_BUFFER_SIZE + 32)
+            };
+        }
+        return buffers;
+    }
+
+    /**
+     * Give back buffers from {@link #borrowBuffers()}, to be reused. They must not be used
+     * after this.
+     * @param buffers the pair that was borrowed, in any state.
+     */
+    static void giveBack(@NonNull ByteBuffer[] buffers) {
+        // Only roughly bounded, since others can give back at the same time.
+        if (IDLE_BUFFERS.size() < MAX_IDLE_BUFFERS) {
+            IDLE_BUFFERS.offer(buffers);
+        }
+    }
+
+    /**
+     * Write out everything that was put in a buffer.
+     * @return the number of bytes written.
+     */
+    private static int writeAll(ByteBuffer buffer, FileChannel out) throws IOException {
+        buffer.flip();
+        int count = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return count;
+    }
+
+    /** Copy a stream into a channel, till the end of the stream. */
+    private static void copy(InputStream in, FileChannel out) throws IOException {
+        byte[] buffer = new byte[NIO_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, count);
+            while (wrapped.hasRemaining()) {
+                out.write(wrapped);
+            }
+        }
+    }
+
+    /**
+     * Wrap a stream of cipher text so that reading from the returned stream produces plain text.
+     *
+     * Nothing is written to disk: the caller can hand the result straight to a
+     * {@link java.util.zip.ZipInputStream} so that a downloaded package is read exactly once,
+     * rather than decrypting it to a temporary file first like
+     * {@link #decrypt(String, byte[], SecretKey, String)} does.
+     *
+     * @param cipherIn the encrypted input, ideally buffered. Closing the returned stream closes
+     *                 this stream as well.
+     * @param iv the initialization vector to use to decrypt
+     * @param key the secret key used to decrypt
+     * @return a stream that produces the decrypted bytes.
+     * @throws Exception crypto exceptions when creating the cipher.
+     */
+    static InputStream decryptingStream(InputStream cipherIn, byte[] iv, SecretKey key)
+            throws Exception {
+        final Cipher cipher = borrowCipher(AES_CBC_PKCS5_PADDING);
+        IvParameterSpec ivspec = new IvParameterSpec(iv);
+        cipher.init(Cipher.DECRYPT_MODE, key, ivspec);
+        // The cipher is given back when the stream is closed.
+        return new CipherInputStream(cipherIn, cipher) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    giveBack(cipher);
+                }
+            }
+        };
+    }
+
+    /**
+     * Open a file of cipher text so that reading from the returned stream produces plain text.
+     *
+     * Large files are decrypted on every core with a {@link ParallelCbcInputStream}. Small files,
+     * and devices with a single core, use a {@link ChannelCbcInputStream}, which decrypts
+     * between direct buffers rather than through a {@link CipherInputStream}.
+     *
+     * @param cipherFile the encrypted file.
+     * @param iv the initialization vector to use to decrypt
+     * @param key the secret key used to decrypt
+     * @return a stream that produces the decrypted bytes. Closing it closes the file.
+     * @throws IOException if the file can't be read.
+     * @throws GeneralSecurityException if the cipher can't be created.
+     */
+    static InputStream decryptingStream(File cipherFile, byte[] iv, SecretKey key)
+            throws IOException, GeneralSecurityException {
+        if (Runtime.getRuntime().availableProcessors() > 1
+                && cipherFile.length() >= PARALLEL_DECRYPT_MIN_SIZE) {
+            return new ParallelCbcInputStream(cipherFile, iv, key);
+        }
+        return new ChannelCbcInputStream(cipherFile, iv, key);
+    }
+
     /**
      * Encrypt a file.
      *
@@ -174,6 +431,61 @@ public class CryptoRoutines {
         return Base64.encodeToString(in, Base64.DEFAULT);
     }
 
+    /**
+     * SHA-256 digest of the first few bytes of a byte array, as a lowercase hex string.
+     * @param in the bytes to digest
+     * @param length how many bytes, from the start of the array, to digest
+     * @return 64 hex characters.
+     */
+    static String sha256(byte[] in, int length) {
+        MessageDigest md = sha256Digest();
+        md.update(in, 0, length);
+        return toHex(md.digest());
+    }
+
+    /**
+     * SHA-256 digest of everything in a stream, as a lowercase hex string.
+     * @param in the stream, read till the end but not closed.
+     * @return 64 hex characters.
+     * @throws IOException if the stream could not be read.
+     */
+    static String sha256(InputStream in) throws IOException {
+        MessageDigest md = sha256Digest();
+        byte[] buffer = new byte[64 * 1024];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            md.update(buffer, 0, count);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * A fresh SHA-256 digest, for hashing content as it streams past.
+     * @return a digest that hasn't been updated yet.
+     */
+    static MessageDigest sha256Digest() {
+        try {
+            return MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Lowercase hex encoding of a byte array, which is how content hashes are written in URIs.
+     * @param in a byte array
+     * @return two hex characters for every byte.
+     */
+    static String toHex(byte[] in) {
+        StringBuilder out = new StringBuilder(in.length * 2);
+        for (byte b : in) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16));
+            out.append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+
     /**
      * Decode a string into its byte array.
      * @param in a String to be transformed
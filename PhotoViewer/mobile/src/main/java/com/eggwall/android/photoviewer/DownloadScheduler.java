@@ -0,0 +1,173 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+
+/**
+ * Decides when queued downloads are allowed to start.
+ *
+ * Every album that is requested is queued here rather than being handed to the network right
+ * away. At most {@link #getLimit()} downloads run at the same time, and each running download
+ * holds its slot until it has been completely handled (downloaded, decrypted and unpacked) so
+ * that concurrent albums share the bandwidth and the disk rather than fighting over them.
+ *
+ * When a slot frees up, the most recently requested album is started first. The newest request
+ * is the one the user (or the beacon) is most likely waiting for, and older requests in a large
+ * batch will still finish in a predictable order behind it.
+ *
+ * Downloads are started on a background thread of their own, never on the thread that
+ * schedules one or finishes one: that can be the main thread, and starting a download reads and
+ * writes the database.
+ *
+ * This is thread-safe: requests can be scheduled and finished from any thread.
+ */
+class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    /** The default number of downloads that can run at the same time. */
+    static final int DEFAULT_LIMIT = 2;
+
+    /** A download that is waiting for a slot. */
+    private static class Pending {
+        /** Monotonically increasing: higher numbers were requested later. */
+        final long sequence;
+        /** What to run when this download is given a slot. */
+        final Runnable start;
+
+        Pending(long sequence, Runnable start) {
+            this.sequence = sequence;
+            this.start = start;
+        }
+    }
+
+    /** Newest request first. */
+    private final PriorityQueue<Pending> queue = new PriorityQueue<>(11,
+            new Comparator<Pending>() {
+                @Override
+                public int compare(Pending a, Pending b) {
+                    return Long.compare(b.sequence, a.sequence);
+                }
+            });
+
+    /** Number of downloads that have been started but not {@link #finished()}. */
+    private int running = 0;
+
+    /** Maximum number of downloads that can run at once. Always at least one. */
+    private int limit = DEFAULT_LIMIT;
+
+    /** Sequence number given to the next request. */
+    private long nextSequence = 0;
+
+    /** The thread every scheduler starts downloads on, created the first time it is needed. */
+    private static Executor sharedStarter = null;
+
+    /** Runs the downloads that are given a slot. */
+    private final Executor starter;
+
+    /** Create a scheduler that starts downloads on the thread that every scheduler shares. */
+    DownloadScheduler() {
+        this(sharedStarter());
+    }
+
+    /**
+     * Create a scheduler that starts downloads with an executor.
+     * @param starter runs the downloads that are given a slot. Shouldn't run them on the
+     *                calling thread.
+     */
+    DownloadScheduler(@NonNull Executor starter) {
+        this.starter = starter;
+    }
+
+    /**
+     * Queue a download. The runnable is called on a background thread when a slot is
+     * available. Whatever the runnable starts <b>must</b> call {@link #finished()} exactly once
+     * when it is done, whether it succeeded or not, otherwise the slot is never released.
+     *
+     * @param start starts the download. Called on a thread that starts every download, so it
+     *              should return quickly.
+     */
+    @AnyThread
+    void schedule(@NonNull Runnable start) {
+        synchronized (this) {
+            queue.add(new Pending(nextSequence++, start));
+            Log.d(TAG, "Queued download. Waiting = " + queue.size() + ", running = " + running);
+        }
+        startAvailable();
+    }
+
+    /**
+     * Mark a download complete, releasing its slot and starting the next queued download if any.
+     */
+    @AnyThread
+    void finished() {
+        synchronized (this) {
+            if (running <= 0) {
+                AndroidRoutines.crashDuringDev("DownloadScheduler.finished called too often");
+                return;
+            }
+            running--;
+        }
+        startAvailable();
+    }
+
+    /**
+     * Change the number of downloads that can run at once. Reducing the limit does not stop
+     * running downloads, it only holds back queued downloads till enough have finished.
+     * @param newLimit the maximum concurrent downloads. Values smaller than one are treated as one.
+     */
+    @AnyThread
+    void setLimit(int newLimit) {
+        synchronized (this) {
+            limit = Math.max(1, newLimit);
+        }
+        startAvailable();
+    }
+
+    /** The maximum number of downloads that can run at once. */
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    /** The single thread that starts downloads, shared so that schedulers don't each hold one. */
+    private static synchronized Executor sharedStarter() {
+        if (sharedStarter == null) {
+            sharedStarter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable r) {
+                    Thread t = new Thread(r, "DownloadStart");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return sharedStarter;
+    }
+
+    /**
+     * Start as many downloads as there are free slots. The downloads are started outside the
+     * lock and on the {@link #starter}, because starting a download can call back into this
+     * object, and can be slow.
+     */
+    private void startAvailable() {
+        List<Runnable> toStart = new ArrayList<>();
+        synchronized (this) {
+            while (running < limit && !queue.isEmpty()) {
+                toStart.add(queue.poll().start);
+                running++;
+            }
+        }
+        for (Runnable start : toStart) {
+            starter.execute(start);
+        }
+    }
+}
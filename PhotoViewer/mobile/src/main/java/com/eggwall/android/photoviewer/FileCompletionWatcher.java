@@ -0,0 +1,129 @@
+package com.eggwall.android.photoviewer;
+
+import android.os.FileObserver;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Waits for a file to be completely written, without polling.
+ *
+ * When the {@link android.app.DownloadManager} says that a download is complete, the file can
+ * still appear empty or short for a short while. Rather than sleeping and checking again, this
+ * watches the file with a {@link FileObserver} and returns the moment the file is complete:
+ * <ul>
+ *     <li>If the expected size is known, as soon as the file reaches that size.</li>
+ *     <li>Otherwise, as soon as the file is non-empty and the writer has closed it, or no
+ *     writes have happened for {@link #QUIET_MS}.</li>
+ * </ul>
+ * In the common case the file is already complete and this returns immediately.
+ */
+class FileCompletionWatcher {
+    private static final String TAG = "FileCompletionWatcher";
+
+    /**
+     * When the size is not known, a non-empty file that hasn't been written to in this long is
+     * considered complete.
+     */
+    private static final long QUIET_MS = 250;
+
+    /** The events that tell us something happened to the file. */
+    private static final int EVENTS = FileObserver.MODIFY | FileObserver.CLOSE_WRITE
+            | FileObserver.ATTRIB;
+
+    /** Guards the fields below, and is notified when any event arrives. */
+    private final Object lock = new Object();
+
+    /** Time of the last event, in {@link SystemClock#elapsedRealtime()} millis. */
+    private long lastEventMs;
+
+    /** True once a writer has closed the file. */
+    private boolean closed = false;
+
+    private FileCompletionWatcher() {
+        lastEventMs = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Block till the file is completely written, or the timeout expires.
+     *
+     * @param file the file to wait for.
+     * @param expectedSize the size of the complete file in bytes, or a negative number if it isn't
+     *                     known.
+     * @param timeoutMs the maximum time to wait.
+     * @return true if the file is complete, false if it wasn't complete within the timeout, or if
+     *          it grew larger than the expected size.
+     */
+    @WorkerThread
+    static boolean await(@NonNull File file, long expectedSize, long timeoutMs) {
+        // Don't pay for an observer if the file is already there. This is the usual case.
+        if (expectedSize >= 0 && file.length() == expectedSize) {
+            return true;
+        }
+        return new FileCompletionWatcher().watch(file, expectedSize, timeoutMs);
+    }
+
+    /**
+     * Watch the file till it is complete.
+     * @see #await(File, long, long)
+     */
+    private boolean watch(final File file, long expectedSize, long timeoutMs) {
+        FileObserver observer = new FileObserver(file.getPath(), EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                synchronized (lock) {
+                    lastEventMs = SystemClock.elapsedRealtime();
+                    if ((event & FileObserver.CLOSE_WRITE) != 0) {
+                        closed = true;
+                    }
+                    lock.notifyAll();
+                }
+            }
+        };
+        observer.startWatching();
+
+        final long startMs = SystemClock.elapsedRealtime();
+        final long deadlineMs = startMs + timeoutMs;
+        try {
+            synchronized (lock) {
+                while (true) {
+                    // Checked after starting the observer so that no write can slip in between.
+                    long size = file.length();
+                    long nowMs = SystemClock.elapsedRealtime();
+                    if (expectedSize >= 0) {
+                        if (size == expectedSize) {
+                            break;
+                        }
+                        if (size > expectedSize) {
+                            Log.e(TAG, file + " is " + size + " bytes, expected " + expectedSize);
+                            return false;
+                        }
+                    } else if (size > 0 && (closed || nowMs - lastEventMs >= QUIET_MS)) {
+                        break;
+                    }
+                    long remainingMs = deadlineMs - nowMs;
+                    if (remainingMs <= 0) {
+                        Log.e(TAG, "Timed out waiting for " + file + ", size = " + size);
+                        return false;
+                    }
+                    // Woken up by the next event. The bound is only needed to notice a file
+                    // going quiet when the size isn't known.
+                    try {
+                        lock.wait(Math.min(remainingMs, QUIET_MS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            observer.stopWatching();
+        }
+        Log.d(TAG, file + " complete after " + (SystemClock.elapsedRealtime() - startMs) + "ms");
+        return true;
+    }
+}
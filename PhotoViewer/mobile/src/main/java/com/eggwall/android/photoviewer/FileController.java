@@ -1,11 +1,15 @@
 package com.eggwall.android.photoviewer;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.os.SystemClock;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
 import androidx.annotation.WorkerThread;
 
 import android.util.Log;
@@ -13,26 +17,33 @@ import android.util.Log;
 import com.eggwall.android.photoviewer.data.Album;
 import com.eggwall.android.photoviewer.data.AlbumDao;
 import com.eggwall.android.photoviewer.data.AlbumDatabase;
+import com.eggwall.android.photoviewer.data.IngestJob;
+import com.eggwall.android.photoviewer.data.IngestJobDao;
 import com.eggwall.android.photoviewer.data.Key;
 import com.eggwall.android.photoviewer.data.KeyDao;
 import com.eggwall.android.photoviewer.data.KeyDatabase;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
 import javax.crypto.SecretKey;
 
-import static com.eggwall.android.photoviewer.CryptoRoutines.keyFromString;
 import static java.io.File.separatorChar;
 
 /**
@@ -84,6 +95,12 @@ class FileController {
      */
     private ArrayList<String> mCurrentGalleryList = null;
 
+    /**
+     * The package of the current gallery, if its images are kept encrypted on disk. Null if
+     * the gallery holds plain images. Replaced when another album is shown, from any thread.
+     */
+    private volatile SegmentedPackage mCurrentPackage = null;
+
     /**
      * Index in the gallery that is guaranteed never to be valid.
      */
@@ -103,12 +120,40 @@ class FileController {
      */
     private int mCurrentImageIndex = INVALID_INDEX;
 
+    /**
+     * Name of the package in a gallery directory whose images are kept encrypted. The images
+     * are read from it, one at a time, as they are shown.
+     */
+    static final String AT_REST_PACKAGE = "album.pvseg";
+
     /**
      * Just for the purpose of saving state in {@link #onSaveInstanceState(Bundle)}, we need to
      * remember what the current Album is.
      */
     private long mCurrentAlbumId;
 
+    /**
+     * Disk space promised to downloads and syncs that are in progress, in this process. Shared by
+     * every file controller, since they outlive the activity that started them: a reservation
+     * made after the activity is recreated has to count the space promised before.
+     */
+    private static final SpaceLedger ledger = new SpaceLedger();
+
+    /**
+     * Packages that are being downloaded or unpacked right now, in this process. Shared by every
+     * file controller: downloads outlive the activity that started them, so an activity created
+     * later must see them to join them rather than download the same package again.
+     */
+    private static final InFlightRegistry<NetworkRoutines.DownloadInfo> inFlight =
+            new InFlightRegistry<>();
+
+    /**
+     * Set once the unfinished ingest jobs have been picked up. That is only done once for each
+     * process: an activity that is created later in the same process would find the jobs still
+     * running.
+     */
+    private static final AtomicBoolean ingestsResumed = new AtomicBoolean(false);
+
     /**
      * Creates a new file controller and all the other objects it needs.
      * @param context The context that the Activity was started with (Application context should
@@ -123,7 +168,24 @@ class FileController {
         this.mc = mainController;
     }
 
+    /**
+     * The albums in the database. Use this rather than the DAO of {@link #albumDb}, so that
+     * every album that is added or removed is seen by {@link KnownAlbums}.
+     */
+    private @NonNull AlbumDao albumDao() {
+        return KnownAlbums.of(albumDb.albumDao());
+    }
+
+    /**
+     * The keys in the database. Use this rather than the DAO of {@link #keyDb}, so that every
+     * key that is added or removed is seen by {@link KeyCache}.
+     */
+    private @NonNull KeyCache keyDao() {
+        return KeyCache.of(keyDb.keyDao());
+    }
+
     void destroy() {
+        closeCurrentPackage();
         albumDb = null;
         keyDb = null;
         mc = null;
@@ -230,6 +292,22 @@ class FileController {
         return "";
     }
 
+    /**
+     * Close a stream, ignoring any errors. Only for use in cleanup, where an error has already
+     * been reported and there is nothing more to do.
+     * @param stream a stream to close, possibly null
+     */
+    private static void closeQuietly(Closeable stream) {
+        if (stream == null) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Ignoring error on close: " + e.getMessage());
+        }
+    }
+
     /**
      * Given a relative path for the gallery, this prepares a path that is relative to the
      * Android Pictures directory (like /sdcard/Pictures) that we will write to.
@@ -255,7 +333,7 @@ class FileController {
         AndroidRoutines.checkBackgroundThread();
 
         Album album;
-        AlbumDao albumDao = albumDb.albumDao();
+        AlbumDao albumDao = albumDao();
 
         if (icicle != null) {
             mCurrentAlbumId = icicle.getLong(SS_ALBUMID, INVALID_ALBUMID);
@@ -297,7 +375,7 @@ class FileController {
      * @return a list of albums, possibly empty but never null.
      */
     @NonNull List<Album> getAlbumList() {
-        return albumDb.albumDao().getAll();
+        return albumDao().getAll();
     }
 
     /**
@@ -324,16 +402,34 @@ class FileController {
             mc.toast("showAlbum: non-existent dir: " + location);
             return false;
         }
-        final String[] fileNames = galleryDir.list();
-        if (fileNames.length <= 0) {
+        // Albums that are kept encrypted list the images in their package instead.
+        final List<String> fileNames;
+        SegmentedPackage atRest = null;
+        final File packageFile = new File(galleryDir, AT_REST_PACKAGE);
+        if (album.getKeyUid() != null && packageFile.isFile()) {
+            atRest = openAtRest(album, packageFile);
+            if (atRest == null) {
+                return false;
+            }
+            fileNames = new ArrayList<>();
+            for (SegmentedPackage.Entry entry : atRest.getEntries()) {
+                fileNames.add(entry.name);
+            }
+        } else {
+            fileNames = Arrays.asList(galleryDir.list());
+        }
+        if (fileNames.size() <= 0) {
             // Empty directory.
+            closeQuietly(atRest);
             mc.toast("showAlbum: empty dir: " + location);
             return false;
         }
         // Everything checks out, let's set our current directory here.
+        closeCurrentPackage();
+        mCurrentPackage = atRest;
         mCurrentGallery = galleryDir;
         mCurrentAlbumId = album.getId();
-        mCurrentGalleryList = new ArrayList<>(Arrays.asList(fileNames));
+        mCurrentGalleryList = new ArrayList<>(fileNames);
         for (String file : mCurrentGalleryList) {
             Log.d(TAG, "Found file: " + file);
         }
@@ -352,7 +448,7 @@ class FileController {
 
         // Update the database to modify last-viewed-timestamp
         album.setLastViewedTimeMs(SystemClock.elapsedRealtime());
-        albumDb.albumDao().update(album);
+        albumDao().update(album);
 
         // Now I need to ask the main controller to advance to next.
         mc.updateImage(UiConstants.NEXT, false);
@@ -360,6 +456,107 @@ class FileController {
         return true;
     }
 
+    /**
+     * Open the package of an album whose images are kept encrypted.
+     *
+     * Call from a background thread, since it reads the key database and the package index.
+     * @param album an album with a key.
+     * @param packageFile the package in its gallery directory.
+     * @return the open package, or null if the key is missing or the package can't be read.
+     */
+    @WorkerThread
+    private @Nullable SegmentedPackage openAtRest(@NonNull Album album, @NonNull File packageFile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            // Never kept encrypted on these devices, so it was copied from somewhere else.
+            mc.toast("Cannot read encrypted album on this device");
+            return null;
+        }
+        SecretKey key = albumKey(album);
+        if (key == null) {
+            mc.toast("Did NOT find key with uuid = " + album.getKeyUid());
+            return null;
+        }
+        try {
+            return SegmentedPackage.open(packageFile, key);
+        } catch (IOException | GeneralSecurityException e) {
+            String message = "showAlbum: cannot read " + packageFile.getAbsolutePath();
+            mc.toast(message);
+            Log.e(TAG, message, e);
+            return null;
+        }
+    }
+
+    /**
+     * The key an album is encrypted with. Only the first lookup for each key reads the key
+     * database.
+     * @return the key, or null if the album has no key or it isn't in the key database.
+     */
+    @WorkerThread
+    private @Nullable SecretKey albumKey(@NonNull Album album) {
+        return keyDao().secretKey(album.getKeyUid());
+    }
+
+    /** Close the package of the current gallery, if it has one. */
+    private void closeCurrentPackage() {
+        SegmentedPackage current = mCurrentPackage;
+        mCurrentPackage = null;
+        closeQuietly(current);
+    }
+
+    /**
+     * Thrown by {@link #readImage(String)} when another album was shown while the image was
+     * read, closing the package it was read from. Nothing is wrong with the image: it just
+     * isn't wanted any more.
+     */
+    static class StaleImageException extends IOException {
+        StaleImageException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Read an image of the current gallery, if the gallery is kept encrypted. Only the image
+     * is decrypted, so the cost of decrypting is only paid for images that are shown.
+     *
+     * Call from a background thread since it reads disk. {@link #showAlbum(Album)} can close
+     * the package on another thread while it is read: that read fails with a
+     * {@link StaleImageException}, which should be ignored.
+     * @param path a path returned by {@link #getFile(int)}.
+     * @return the encoded image, or null if it is a plain file that can be read at that path.
+     * @throws StaleImageException if the package was closed while reading, since another album
+     *          is shown now.
+     * @throws IOException if the image is kept encrypted, but can't be read or decrypted.
+     */
+    @WorkerThread
+    @Nullable byte[] readImage(@NonNull String path) throws IOException {
+        final SegmentedPackage current = mCurrentPackage;
+        final File gallery = mCurrentGallery;
+        if (current == null || gallery == null) {
+            return null;
+        }
+        String prefix = gallery.getAbsolutePath() + File.separator;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !path.startsWith(prefix)) {
+            // From a gallery that was shown before, which held plain images.
+            return null;
+        }
+        SegmentedPackage.Entry entry = current.find(path.substring(prefix.length()));
+        if (entry == null) {
+            throw new IOException("Not in the package: " + path);
+        }
+        try {
+            return current.read(entry);
+        } catch (IOException | GeneralSecurityException e) {
+            if (mCurrentPackage != current) {
+                // Closed under us: this image belongs to an album that is no longer shown.
+                throw new StaleImageException("Album changed while reading " + path, e);
+            }
+            if (e instanceof IOException) {
+                throw (IOException) e;
+            }
+            throw new IOException("Cannot decrypt " + path, e);
+        }
+    }
+
     /**
      * Returns the absolute path for the file to read next.
      *
@@ -424,7 +621,7 @@ class FileController {
     void importKey(NetworkRoutines.KeyImportInfo key) {
         AndroidRoutines.checkBackgroundThread();
 
-        KeyDao keyDao = keyDb.keyDao();
+        KeyDao keyDao = keyDao();
         if (keyDao.forUuid(key.keyId) != null) {
             // Key exists, so disallow imports.
             Log.d(TAG, "Secret with UUID uuid=" + key.keyId + " EXISTS with name=" + key.name
@@ -482,7 +679,7 @@ class FileController {
         if (totalUsage > limit) {
             Log.d(TAG, "Disk Pruning STARTS: " + totalUsage + " > " + limit);
             // Prune. Go through the last used albums, and delete them.
-            List<Album> albums = albumDb.albumDao().getAll();
+            List<Album> albums = albumDao().getAll();
             List <Album> toDelete = new ArrayList<>(7);
 
             for (Album a : albums) {
@@ -507,6 +704,7 @@ class FileController {
             // needs to tell the user that there weren't enough candidates to delete.
             Log.d(TAG, "Disk Pruning DONE. Usage now = " + totalUsage);
         }
+        albumDb.ingestJobDao().deleteDone();
         mc.refreshAlbumList();
     }
 
@@ -515,14 +713,33 @@ class FileController {
      * @param toDelete a list, possibly empty of albums to remove permanently.
      */
     private void delete(@NonNull  List<Album> toDelete) {
+        AlbumDao dao = albumDao();
         for (Album x : toDelete) {
-            // Delete the local location as well.
-            delete(new File(x.getLocalLocation()));
-            // Now sweep up the database entry.
-            albumDb.albumDao().delete(x);
+            // Sweep up the database entry.
+            dao.delete(x);
+            // Delete the local location as well, unless another album with the same content
+            // still uses it.
+            String localLocation = x.getLocalLocation();
+            if (localLocation != null && dao.countAt(localLocation) == 0) {
+                delete(new File(localLocation));
+            }
         }
     }
 
+    /**
+     * Whether the album has been unpacked: its directory exists and has images.
+     * @param album an album from the database.
+     * @return true if the album can be shown right away.
+     */
+    private static boolean isUnpacked(@NonNull Album album) {
+        String localLocation = album.getLocalLocation();
+        if (localLocation == null) {
+            return false;
+        }
+        String[] files = new File(localLocation).list();
+        return files != null && files.length > 0;
+    }
+
     /**
      * Recursively delete everything here, and in sub-directories, if any.
      * @param target a file or directory to delete.
@@ -583,10 +800,20 @@ class FileController {
      *
      * The critical method here is {@link #handleFile(String, ParcelFileDescriptor)}.
      *
+     * Every unzipper has an {@link IngestJob} in the database, which records how far it got.
+     * An unzipper for a job that a previous process didn't finish comes from
+     * {@link FileController#resumeIngests()}.
      */
     static class Unzipper implements DownloadHandler {
         NetworkRoutines.DownloadInfo dlInfo;
         private final Album album;
+        /** Space reserved for this album, released once the package has been handled. */
+        private final SpaceLedger.Reservation reservation;
+        /** The claim on this package, released once the package has been handled. */
+        private final InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim;
+        /** The job for this package, updated as it moves through its stages. */
+        private final IngestJob job;
+        private final IngestJobDao jobDao;
         final AlbumDao albumDao;
         final KeyDao keyDao;
         private final MainController mc;
@@ -594,6 +821,12 @@ class FileController {
         static String FILENAME_ERROR = "";
         static ParcelFileDescriptor PFD_ERROR = null;
 
+        /**
+         * Size of the buffers used to read the package and to extract files from it. Packages
+         * are hundreds of megabytes, so large reads keep the number of system calls down.
+         */
+        private static final int PACKAGE_BUFFER_SIZE = 4 * 1024 * 1024;
+
         @NonNull
         private String createAbsolutePath(String relativePath) {
             return Environment.getExternalStoragePublicDirectory(
@@ -620,144 +853,264 @@ class FileController {
          */
         @Override
         public void handleFile(String filename, ParcelFileDescriptor Uri) {
-            // Check if we failed and the error handling should be invoked
-            if (filename.equals(FILENAME_ERROR) && Uri == PFD_ERROR) {
-                // Modify the database to remove a record of the download.
-                albumDao.delete(album);
+            boolean unpacked = false;
+            try {
+                unpacked = unpack(filename, Uri);
+                if (!unpacked) {
+                    abandon();
+                }
+            } finally {
+                // The images that were written now count against the free space on disk.
+                if (reservation != null) {
+                    reservation.release();
+                }
+                if (claim != null) {
+                    List<NetworkRoutines.DownloadInfo> joined = claim.release();
+                    if (unpacked) {
+                        linkJoined(joined);
+                    } else if (!joined.isEmpty()) {
+                        mc.toast("Failed to download " + joined.size() + " more albums");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Give back the space and the claim of a package that this process won't download,
+         * because the controller that was to start it has been destroyed. The job stays in the
+         * database as it is, and is resumed the next time the process starts.
+         */
+        void putBack() {
+            Log.d(TAG, "Putting back " + job);
+            if (reservation != null) {
+                reservation.release();
+            }
+            if (claim != null) {
+                List<NetworkRoutines.DownloadInfo> joined = claim.release();
+                if (!joined.isEmpty()) {
+                    Log.d(TAG, "Dropping " + joined.size() + " requests that joined " + job);
+                }
+            }
+        }
+
+        /**
+         * Give every request that joined this download an album of its own, sharing the images
+         * that were just unpacked.
+         * @param joined requests that arrived while this package was in flight.
+         */
+        private void linkJoined(List<NetworkRoutines.DownloadInfo> joined) {
+            boolean linked = false;
+            for (NetworkRoutines.DownloadInfo other : joined) {
+                if (albumDao.find(other.location.toString(), other.name) != null) {
+                    // The same request, made again. This album already answers it.
+                    continue;
+                }
+                linkAlbum(albumDao, other, album);
+                linked = true;
+            }
+            if (linked) {
+                mc.refreshAlbumList();
+            }
+        }
+
+        /**
+         * The stage this package had reached, one of the states in {@link IngestJob}.
+         */
+        int getState() {
+            return job.getState();
+        }
+
+        /**
+         * The id the DownloadManager gave this download, or -1 if it isn't downloaded by the
+         * DownloadManager.
+         */
+        long getDownloadId() {
+            return job.getDownloadId();
+        }
+
+        /**
+         * Record that the download has started. Writes the database, so call this from a
+         * background thread.
+         * @param downloadId the id the DownloadManager gave the download, or -1 if the package
+         *                   is downloaded in process.
+         */
+        @WorkerThread
+        void downloading(long downloadId) {
+            job.setDownloadId(downloadId);
+            moveTo(IngestJob.DOWNLOADING);
+        }
+
+        /** Record that the package has reached this stage. */
+        private void moveTo(int state) {
+            job.setState(state);
+            jobDao.update(job);
+        }
+
+        /**
+         * Remove every trace of this package: the album and job records, the package if it was
+         * downloaded, and any images that were written. Called when the package can't become an
+         * album, so that nothing is left to take up space or block a later download.
+         */
+        private void abandon() {
+            Log.d(TAG, "Abandoning " + job);
+            albumDao.delete(album);
+            jobDao.delete(job);
+            File packageFile = new File(createAbsolutePath(dlInfo.pathOnDisk));
+            if (packageFile.delete()) {
+                Log.d(TAG, "Cleaned up the file: " + packageFile.getAbsolutePath());
+            }
+            File galleryDir = new File(album.getLocalLocation());
+            clearDirectory(galleryDir);
+            if (galleryDir.delete()) {
+                Log.d(TAG, "Removed " + galleryDir.getAbsolutePath());
+            }
+        }
+
+        /**
+         * Delete the files in a gallery directory. Galleries are flat, so there is nothing
+         * below them.
+         */
+        private static void clearDirectory(File dir) {
+            File[] files = dir.listFiles();
+            if (files == null) {
                 return;
             }
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.d(TAG, "FAILED to delete: " + file.getAbsolutePath());
+                }
+            }
+        }
 
-            final File toUnpack;
+        /**
+         * Unpack the package, as described in {@link #handleFile(String, ParcelFileDescriptor)}
+         * @return true if the album is complete, false if the package failed and needs to be
+         *          abandoned.
+         */
+        private boolean unpack(String filename, ParcelFileDescriptor Uri) {
+            // Check if we failed and the error handling should be invoked
+            if (filename.equals(FILENAME_ERROR) && Uri == PFD_ERROR) {
+                // The caller removes the records of the download.
+                return false;
+            }
 
             // Let's check the filename is what we were expecting
             Log.d(TAG, "File expected: " + dlInfo.pathOnDisk + ", observed: " + filename);
 
-            // Unzip the file here.
-            // Try opening the URI via a ParcelFileDescriptor
-            if (dlInfo.isEncrypted) {
-                final String plainPath = createAbsolutePath("plain" + album.getId() + ".zip");
-                Log.d(TAG, "Decrypting zip at:" + plainPath);
+            // The package is read exactly once: the bytes on disk are decrypted (if required) and
+            // unzipped as they are read, and only the final images are written out. No plain
+            // copy of the package is ever written to disk.
+            final File packageFile = new File(createAbsolutePath(filename));
+            // A process that died after keeping the package encrypted moved it to the gallery.
+            final File kept = new File(album.getLocalLocation(), AT_REST_PACKAGE);
+            if (!packageFile.exists() && kept.isFile() && kept.renameTo(packageFile)) {
+                Log.d(TAG, "Moved kept package back to " + packageFile.getAbsolutePath());
+            }
+            InputStream packageStream;
+            try {
+                packageStream = new BufferedInputStream(new FileInputStream(packageFile),
+                        PACKAGE_BUFFER_SIZE);
+            } catch (IOException e) {
+                String message = "Could not open file: " + packageFile.getAbsolutePath();
+                mc.toast(message);
+                Log.e(TAG, message, e);
+                return false;
+            }
 
-                if ((new File(plainPath)).delete()) {
-                    Log.d(TAG, "Old plain file deleted.");
-                }
-                // Decrypt it first, then unzip.
+            // Packages in the segmented format are read an image at a time, not as a stream.
+            final boolean segmented = dlInfo.isEncrypted
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    && SegmentedPackage.isSegmented(packageFile);
+            // And can be kept encrypted, with images decrypted only when they are shown.
+            final boolean atRest = segmented && mc.pref.getInt(Pref.Name.AT_REST) != 0;
+            SecretKey packageKey = null;
+            if (dlInfo.isEncrypted) {
+                moveTo(IngestJob.DECRYPTING);
                 try {
-                    // Pick up the appropriate key from the database, and decrypt using that.
-                    Key x = keyDao.forUuid(dlInfo.keyUid);
-                    if (x == null) {
+                    // Pick up the appropriate key, and decrypt using that. Packages that arrive
+                    // together share keys, so this is nearly always already cached.
+                    packageKey = KeyCache.of(keyDao).secretKey(dlInfo.keyUid);
+                    if (packageKey == null) {
                         mc.toast("Did NOT find key with uuid = " + dlInfo.keyUid);
-                        // Try to clean the existing file and return.
-                        File toDelete = new File(createAbsolutePath(filename));
-                        boolean status = toDelete.delete();
-                        if (status) {
-                            Log.d(TAG, "Cleaned up the file: " + filename);
-                        }
-                        return;
+                        // The caller cleans up the existing file.
+                        closeQuietly(packageStream);
+                        return false;
                     }
                     Log.d(TAG, "Found key with uuid = " + dlInfo.keyUid);
-                    SecretKey KEY = keyFromString(x.getSecret());
-                    CryptoRoutines.decrypt(createAbsolutePath(filename),
-                            dlInfo.initializationVector, KEY, plainPath);
+                    if (!segmented) {
+                        // Decrypted straight from the file's channel, or on every core for
+                        // large packages, so the file is opened again.
+                        closeQuietly(packageStream);
+                        packageStream = CryptoRoutines.decryptingStream(packageFile,
+                                dlInfo.initializationVector, packageKey);
+                    }
                 } catch (Exception e) {
+                    closeQuietly(packageStream);
                     String message = "Error during decryption";
                     mc.toast(message);
                     Log.e(TAG, message, e);
-                    return;
+                    return false;
                 }
-                toUnpack = new File(plainPath);
-            } else {
-                File dir = Environment.getExternalStoragePublicDirectory(
-                        Environment.DIRECTORY_PICTURES);
-                toUnpack = new File(dir, filename);
-            }
-
-            ZipFile inputZipped;
-            try {
-                inputZipped = new ZipFile(toUnpack);
-            } catch (IOException e) {
-                String message = "Could not open file: " + toUnpack.getAbsolutePath();
-                mc.toast(message);
-                Log.e(TAG, message, e);
-                if (!toUnpack.delete()) {
-                    Log.d(TAG, "Could not delete the temporary file: "
-                            + toUnpack.getAbsolutePath());
-                }
-                return;
             }
 
             // Create a directory to hold it all
             final File freshGalleryDir = new File (album.getLocalLocation());
             String error = mkdir(freshGalleryDir);
             if (error.length() > 0) {
+                closeQuietly(packageStream);
                 mc.toast(error);
                 Log.e(TAG, error);
-                return;
+                return false;
             }
+            // A process that died while unpacking leaves some images behind. They are written
+            // again from the start of the package.
+            clearDirectory(freshGalleryDir);
 
-            Enumeration<? extends ZipEntry> iter = inputZipped.entries();
-            final int fourMegs = 4 * 1024 * 1024;
-            byte[] buffer = new byte[fourMegs];
-
-            while (iter.hasMoreElements()) {
-                ZipEntry zipFile = iter.nextElement();
-                String name = zipFile.getName();
-
-                // The name can contain file separators. If so, then take the last part of the
-                // filename, essentially flattening the hierarchy.
-                Log.d(TAG, "Found filename: " + name);
-                int separatorIdx = name.lastIndexOf(separatorChar);
-                if (separatorIdx >= 0) {
-                    // Extract just the file name
-                    String lastName = name.substring(separatorIdx + 1);
-                    // If this was a directory (trailing slash), ignore it.
-                    if (lastName.length() <= 0) {
-                        Log.d(TAG, "Ignoring directory: " + name);
-                        continue;
+            moveTo(IngestJob.UNPACKING);
+            if (segmented) {
+                closeQuietly(packageStream);
+                try {
+                    if (atRest) {
+                        keepEncrypted(packageFile, packageKey, freshGalleryDir);
+                    } else {
+                        unpackSegmented(packageFile, packageKey, freshGalleryDir);
                     }
-                    Log.d(TAG, "Using just last part as filename: " + lastName
-                            + " was: " + name);
-                    name = lastName;
+                } catch (IOException | GeneralSecurityException e) {
+                    String message = "Error while unpacking";
+                    mc.toast(message);
+                    Log.e(TAG, message, e);
+                    return false;
                 }
-                // Extract the bytes out to a new file.
+            } else {
+                ZipInputStream inputZipped = new ZipInputStream(packageStream);
                 try {
-                    BufferedInputStream inputStream =
-                            new BufferedInputStream(inputZipped.getInputStream(zipFile));
-                    File toWrite = new File(freshGalleryDir, name);
-                    boolean createStatus = toWrite.createNewFile();
-                    if (!createStatus) {
-                        String message = "Could not create file " + name;
-                        mc.toast(message);
-                        Log.e(TAG, message);
-                        continue;
-                    }
-                    BufferedOutputStream outputStream =
-                            new BufferedOutputStream(new FileOutputStream(toWrite));
-                    int numBytes;
-                    while ((numBytes = inputStream.read(buffer)) > 0) {
-                        Log.d(TAG, "Wrote " + numBytes + " bytes to " + name);
-                        outputStream.write(buffer, 0, numBytes);
-                    }
-                    outputStream.close();
-                    inputStream.close();
+                    unzip(inputZipped, freshGalleryDir);
                 } catch (IOException e) {
                     String message = "Error while unzipping";
                     mc.toast(message);
                     Log.e(TAG, message, e);
-                    return;
+                    return false;
+                } finally {
+                    closeQuietly(inputZipped);
                 }
             }
 
-            // Done with it, delete the original package file.
-            if (toUnpack.delete()) {
-                Log.d(TAG, "Plain file deleted:" + toUnpack.getAbsolutePath());
-            }
-
             // Has been downloaded right now.
             album.setDownloadTimeMs(SystemClock.elapsedRealtime());
+            album.setKeyUid(atRest ? dlInfo.keyUid : null);
 
             // Here I should modify the database to tell the file has been correctly pulled.
             albumDao.update(album);
+            moveTo(IngestJob.DONE);
+
+            // Done with it, delete the original package file. This is only done once the job is
+            // done: till then, a job that is resumed needs the package.
+            if (packageFile.delete()) {
+                Log.d(TAG, "Package file deleted:" + packageFile.getAbsolutePath());
+                if (reservation != null) {
+                    reservation.release(packageSpace(dlInfo.extractedSize));
+                }
+            }
 
             // And tell the orchestrating controller to refresh the album list.
             mc.refreshAlbumList();
@@ -766,6 +1119,138 @@ class FileController {
             if (!mc.showAlbum(album)) {
                 Log.d(TAG, "Could not show album!", new Error());
             }
+            return true;
+        }
+
+        /**
+         * Extract every file in the zip stream into the gallery directory provided. Directories
+         * in the archive are flattened: only the last part of each name is used.
+         *
+         * @param inputZipped a stream positioned at the start of the archive.
+         * @param galleryDir an existing directory where the images are written.
+         * @throws IOException if the archive could not be read, in which case the gallery might
+         *          be partially populated.
+         */
+        private void unzip(ZipInputStream inputZipped, File galleryDir) throws IOException {
+            byte[] buffer = new byte[PACKAGE_BUFFER_SIZE];
+
+            ZipEntry zipFile;
+            while ((zipFile = inputZipped.getNextEntry()) != null) {
+                extract(zipFile.getName(), inputZipped, galleryDir, buffer);
+            }
+        }
+
+        /**
+         * Extract every image in a package in the segmented format into the gallery directory.
+         * Each image is decrypted on its own, so a package that fails part of the way has
+         * written out every image before the bad segment.
+         *
+         * @param packageFile the package, downloaded in full.
+         * @param key the key the package was encrypted with.
+         * @param galleryDir an existing directory where the images are written.
+         * @throws IOException if the package could not be read or doesn't decrypt.
+         * @throws GeneralSecurityException if the index of the package doesn't decrypt.
+         */
+        @RequiresApi(Build.VERSION_CODES.KITKAT)
+        private void unpackSegmented(File packageFile, SecretKey key, File galleryDir)
+                throws IOException, GeneralSecurityException {
+            byte[] buffer = new byte[PACKAGE_BUFFER_SIZE];
+            SegmentedPackage segmentedPackage = SegmentedPackage.open(packageFile, key);
+            try {
+                for (SegmentedPackage.Entry entry : segmentedPackage.getEntries()) {
+                    InputStream image = segmentedPackage.open(entry);
+                    try {
+                        extract(entry.name, image, galleryDir, buffer);
+                    } finally {
+                        image.close();
+                    }
+                }
+            } finally {
+                segmentedPackage.close();
+            }
+        }
+
+        /**
+         * Keep a package in the segmented format as it is, in the gallery directory. Only the
+         * index is decrypted, to check the key: images are decrypted when they are shown.
+         *
+         * @param packageFile the package, downloaded in full. Moved, if it can be.
+         * @param key the key the package was encrypted with.
+         * @param galleryDir an existing directory where the package is kept.
+         * @throws IOException if the package could not be read or copied.
+         * @throws GeneralSecurityException if the index of the package doesn't decrypt.
+         */
+        @RequiresApi(Build.VERSION_CODES.KITKAT)
+        private void keepEncrypted(File packageFile, SecretKey key, File galleryDir)
+                throws IOException, GeneralSecurityException {
+            SegmentedPackage.open(packageFile, key).close();
+            File kept = new File(galleryDir, AT_REST_PACKAGE);
+            if (packageFile.renameTo(kept)) {
+                Log.d(TAG, "Kept encrypted package: " + kept.getAbsolutePath());
+                return;
+            }
+            // On a different volume, so it has to be copied.
+            InputStream in = new FileInputStream(packageFile);
+            try {
+                extract(AT_REST_PACKAGE, in, galleryDir, new byte[PACKAGE_BUFFER_SIZE]);
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Write a single file from a package into the gallery directory. Directories in the
+         * name are flattened: only the last part of the name is used.
+         *
+         * @param name the name of the file in the package.
+         * @param in the contents of the file, read till the end but not closed.
+         * @param galleryDir an existing directory where the file is written.
+         * @param buffer to copy through.
+         * @throws IOException if the file could not be read or written.
+         */
+        private void extract(String name, InputStream in, File galleryDir, byte[] buffer)
+                throws IOException {
+            // The name can contain file separators. If so, then take the last part of the
+            // filename, essentially flattening the hierarchy.
+            Log.d(TAG, "Found filename: " + name);
+            int separatorIdx = name.lastIndexOf(separatorChar);
+            if (separatorIdx >= 0) {
+                // Extract just the file name
+                String lastName = name.substring(separatorIdx + 1);
+                // If this was a directory (trailing slash), ignore it.
+                if (lastName.length() <= 0) {
+                    Log.d(TAG, "Ignoring directory: " + name);
+                    return;
+                }
+                Log.d(TAG, "Using just last part as filename: " + lastName
+                        + " was: " + name);
+                name = lastName;
+            }
+            // Extract the bytes out to a new file.
+            File toWrite = new File(galleryDir, name);
+            boolean createStatus = toWrite.createNewFile();
+            if (!createStatus) {
+                String message = "Could not create file " + name;
+                mc.toast(message);
+                Log.e(TAG, message);
+                return;
+            }
+            BufferedOutputStream outputStream =
+                    new BufferedOutputStream(new FileOutputStream(toWrite));
+            long total = 0;
+            int numBytes;
+            try {
+                while ((numBytes = in.read(buffer)) > 0) {
+                    outputStream.write(buffer, 0, numBytes);
+                    total += numBytes;
+                    if (reservation != null) {
+                        reservation.consume(numBytes);
+                    }
+                }
+            } finally {
+                outputStream.close();
+            }
+            Log.d(TAG, "Wrote " + total + " bytes to " + name);
         }
 
         /**
@@ -782,6 +1267,10 @@ class FileController {
          *              knows what unique ID corresponds to this in the database, while only the
          *              dlInfo object has the remote URL, and whether the album has to be
          *              encrypted.
+         * @param reservation the disk space reserved for the images in this album.
+         * @param claim the claim on this package, or null if it wasn't claimed.
+         * @param job the ingest job for this package, already in the database.
+         * @param jobDao The Data Access Object for the ingest jobs.
          * @param dao The Data Access Object that allows us to access the Album DB.
          * @param keyDao The Data Access Object that allows us access to the Key DB.
          * @param mc the orchestrating main controller
@@ -790,9 +1279,16 @@ class FileController {
          *                     it is cleaner to pass the picture directory.
          */
         private Unzipper(NetworkRoutines.DownloadInfo dlInfo, Album album,
-                         AlbumDao dao, KeyDao keyDao, MainController mc, File mPicturesDir) {
+                         SpaceLedger.Reservation reservation,
+                         InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim,
+                         IngestJob job, IngestJobDao jobDao, AlbumDao dao, KeyDao keyDao,
+                         MainController mc, File mPicturesDir) {
             this.dlInfo = dlInfo;
             this.album = album;
+            this.reservation = reservation;
+            this.claim = claim;
+            this.job = job;
+            this.jobDao = jobDao;
             this.albumDao = dao;
             this.keyDao = keyDao;
             this.mc = mc;
@@ -800,6 +1296,137 @@ class FileController {
         }
     }
 
+    /**
+     * Syncs a single album with its manifest through {@link AlbumSync}, and records the result in
+     * the database. Like the {@link Unzipper}, this is static so it holds nothing but what it
+     * needs.
+     *
+     * To create an object, call {@link FileController#createSyncer(NetworkRoutines.SyncInfo)}.
+     */
+    static class Syncer {
+        private final AlbumSync albumSync;
+        private final Album album;
+        /** True if the album row was created for this sync, rather than found. */
+        private final boolean isNew;
+        private final AlbumDao albumDao;
+        private final MainController mc;
+
+        private Syncer(AlbumSync albumSync, Album album, boolean isNew, AlbumDao albumDao,
+                       MainController mc) {
+            this.albumSync = albumSync;
+            this.album = album;
+            this.isNew = isNew;
+            this.albumDao = albumDao;
+            this.mc = mc;
+        }
+
+        /**
+         * Fetch the missing images and update the album in place. Reads the network and writes
+         * disk, so this needs to be called on a background thread.
+         */
+        @WorkerThread
+        void sync() {
+            AlbumSync.Result result;
+            try {
+                result = albumSync.sync();
+            } catch (IOException e) {
+                String message = "Could not sync " + album.getName() + ": " + e.getMessage();
+                Log.e(TAG, message, e);
+                mc.toast(message);
+                // A new album that got nothing is removed, like a failed download. An existing
+                // album keeps whatever it had, along with any images that did make it.
+                String[] files = new File(album.getLocalLocation()).list();
+                if (isNew && (files == null || files.length == 0)) {
+                    albumDao.delete(album);
+                } else {
+                    albumDao.update(album);
+                }
+                return;
+            }
+            Log.d(TAG, "Synced " + album.getName() + ": fetched " + result.fetched
+                    + " (" + result.bytesFetched + " bytes), unchanged " + result.unchanged);
+            if (result.fetched == 0 && !isNew) {
+                // Nothing changed.
+                return;
+            }
+
+            album.setDownloadTimeMs(SystemClock.elapsedRealtime());
+            albumDao.update(album);
+            mc.refreshAlbumList();
+            if (isNew) {
+                if (!mc.showAlbum(album)) {
+                    Log.d(TAG, "Could not show album!", new Error());
+                }
+            } else {
+                mc.toast(album.getName() + ": " + result.fetched + " new images");
+            }
+        }
+
+        /**
+         * Give up on a sync that never started, because the controller that was to start it has
+         * been destroyed. A new album that has no images yet is removed, like a failed sync.
+         */
+        @WorkerThread
+        void drop() {
+            String[] files = new File(album.getLocalLocation()).list();
+            if (isNew && (files == null || files.length == 0)) {
+                albumDao.delete(album);
+            }
+        }
+    }
+
+    /**
+     * Create a {@link Syncer} for the album described here. The album is found by its remote
+     * location and name, exactly like {@link #checkConditionsForDownload} finds duplicates, so an
+     * album downloaded as a package can be brought up to date without downloading it again. If
+     * there is no such album, a new one is created and the manifest fills it.
+     *
+     * Call from a background thread because this reads and modifies databases.
+     * @param sync information about the album and its manifest.
+     * @return an object to run the sync, or null if it cannot run. The user has already been told
+     *          why.
+     */
+    @WorkerThread
+    Syncer createSyncer(@NonNull NetworkRoutines.SyncInfo sync) {
+        URL manifest;
+        try {
+            manifest = new URL(sync.manifest.toString());
+        } catch (MalformedURLException e) {
+            mc.toast("Cannot sync from " + sync.manifest);
+            return null;
+        }
+
+        SecretKey key = null;
+        if (sync.isEncrypted) {
+            key = keyDao().secretKey(sync.keyUid);
+            if (key == null) {
+                mc.toast("Did NOT find key with uuid = " + sync.keyUid);
+                return null;
+            }
+        }
+
+        File picturesDir = getPicturesDir();
+        AlbumDao dao = albumDao();
+        Album album = dao.find(sync.remoteLocation, sync.name);
+        boolean isNew = (album == null);
+        if (isNew) {
+            album = new Album();
+            album.setName(sync.name);
+            album.setRemoteLocation(sync.remoteLocation);
+            album.setId(dao.insert(album));
+        }
+        if (album.getLocalLocation() == null) {
+            String pathPrefix = "gal_" + String.format(Locale.US, "%04d", album.getId());
+            album.setLocalLocation(picturesDir.getAbsolutePath().concat(File.separator)
+                    .concat(pathPrefix));
+        }
+        Log.d(TAG, "Sync for " + album);
+
+        AlbumSync albumSync = new AlbumSync(manifest, new File(album.getLocalLocation()),
+                picturesDir, key, ledger);
+        return new Syncer(albumSync, album, isNew, dao, mc);
+    }
+
     /**
      * A permission class that enforces that calls to
      * {@link #createUnzipper(Perm)} are preceeded by calls to
@@ -818,16 +1445,26 @@ class FileController {
     static class Perm {
         final String errorMessage;
         final boolean hasError;
+        /** True if the download was refused because the album was downloaded earlier. */
+        final boolean isDuplicate;
         final NetworkRoutines.DownloadInfo dlInfo;
+        /** The disk space reserved for the download, null if there was an error. */
+        final SpaceLedger.Reservation reservation;
+        /** The claim on the package, null if there was an error. */
+        final InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim;
 
         /**
          * Create a useful Perm. This signifies that a {@link Unzipper} object should be created.
          */
-        private Perm(NetworkRoutines.DownloadInfo dlInfo) {
+        private Perm(NetworkRoutines.DownloadInfo dlInfo, SpaceLedger.Reservation reservation,
+                     InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim) {
             errorMessage = "";
             hasError = false;
+            isDuplicate = false;
             // Save this because the method will need to read this for download information.
             this.dlInfo = dlInfo;
+            this.reservation = reservation;
+            this.claim = claim;
         }
 
         /**
@@ -836,9 +1473,21 @@ class FileController {
          * @param error A human-readable issue why the unzipper should not be created.
          */
         private Perm(String error) {
+            this(error, false);
+        }
+
+        /**
+         * Create a Perm which signifies that an {@link Unzipper} should not be created.
+         * @param error A human-readable issue why the unzipper should not be created.
+         * @param isDuplicate true if the album already exists.
+         */
+        private Perm(String error, boolean isDuplicate) {
             errorMessage = error;
             hasError = true;
+            this.isDuplicate = isDuplicate;
             dlInfo = null;
+            reservation = null;
+            claim = null;
         }
     }
 
@@ -849,25 +1498,57 @@ class FileController {
      * For success you get an object that contains the
      * {@link com.eggwall.android.photoviewer.NetworkRoutines.DownloadInfo} object provided here.
      *
+     * If the download has a content hash and an album with that hash is already unpacked, a new
+     * album is added that shares its directory, and a duplicate Perm is returned: nothing needs
+     * to be downloaded. This writes the database, so call it from a background thread.
+     *
+     * If the same package is being downloaded right now, by location and name or by content
+     * hash, this request joins that download and a duplicate Perm is returned. The album for
+     * this request is added once that download has been unpacked.
+     *
      * @param dlInfo object containing all download information.
      * @return a Perm object that either signifies success or failure. Pass that object to
      *          {@link #createUnzipper(Perm)} as a proof that the checks
      *          passed.
      */
     @NonNull Perm checkConditionsForDownload(@NonNull NetworkRoutines.DownloadInfo dlInfo) {
-        // Check to see if we can hold the eventual file size
         File picturesDir = getPicturesDir();
 
-        long available = picturesDir.getFreeSpace();
-        if (available < dlInfo.extractedSize) {
-            String error = "Out of disk space: Expected: " + dlInfo.extractedSize
-                          + " Available: " + available;
-            return new Perm(error);
+        // Two requests for the same package can arrive together, say from the beacon and from
+        // the user. Both would find nothing in the database, so the second one joins the first
+        // here, before the database is read. The claim is held till the package is unpacked.
+        InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim =
+                inFlight.claim(identities(dlInfo), dlInfo);
+        if (claim == null) {
+            return new Perm("Already downloading " + dlInfo.name, true);
         }
+        Perm perm = checkClaimed(dlInfo, picturesDir, claim);
+        if (perm.hasError) {
+            claim.release();
+        }
+        return perm;
+    }
+
+    /**
+     * Disk space to hold for a package till it is deleted. Its size isn't known before it is
+     * downloaded, but images hardly compress, so it is about as large as what it unpacks to.
+     * @param extractedSize the size of the images in the package.
+     * @return bytes to reserve for the package, on top of the images.
+     */
+    static long packageSpace(long extractedSize) {
+        return extractedSize;
+    }
 
+    /**
+     * The checks in {@link #checkConditionsForDownload(NetworkRoutines.DownloadInfo)}, once the
+     * package has been claimed.
+     */
+    private @NonNull Perm checkClaimed(@NonNull NetworkRoutines.DownloadInfo dlInfo,
+                                       @NonNull File picturesDir,
+                                       InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim) {
         // Check if this remote location with exactly this name was ever downloaded. If so,
         // refuse to download duplicate.
-        AlbumDao dao = albumDb.albumDao();
+        AlbumDao dao = albumDao();
         String remoteLocation = dlInfo.location.toString();
         Album existing = dao.find(remoteLocation, dlInfo.name);
 
@@ -875,11 +1556,69 @@ class FileController {
             // An album exists, so we should refuse to download one.
             // TODO: Here we should do something better: like delete the existing record and retry
             // if there was no local location.
-            return new Perm("Refusing to download duplicate");
+            return new Perm("Refusing to download duplicate", true);
+        }
+
+        // The same package could have been published under a different location or name. If
+        // we have it unpacked, point a new album at the same directory instead of downloading.
+        if (dlInfo.contentHash.length() > 0) {
+            Album sameContent = dao.findByHash(dlInfo.contentHash);
+            if (sameContent != null && isUnpacked(sameContent)) {
+                linkAlbum(dao, dlInfo, sameContent);
+                mc.refreshAlbumList();
+                return new Perm("Already downloaded as " + sameContent.getName(), true);
+            }
         }
 
         // Add more checks here, in the future, to make this bullet-proof.
-        return new Perm(dlInfo);
+
+        // Check to see if we can hold the package and the images it unpacks to, along with every
+        // other download that is in progress. This is the last check, so nothing else can fail
+        // after the space has been reserved.
+        long needed = dlInfo.extractedSize + packageSpace(dlInfo.extractedSize);
+        SpaceLedger.Reservation reservation = ledger.reserve(picturesDir, needed);
+        if (reservation == null) {
+            String error = "Out of disk space: Expected: " + needed
+                          + " Available: " + ledger.available(picturesDir);
+            return new Perm(error);
+        }
+        return new Perm(dlInfo, reservation, claim);
+    }
+
+    /**
+     * Every identity of a package, for the {@link #inFlight} registry: its location and name,
+     * and its content hash if it has one.
+     */
+    private static @NonNull List<String> identities(@NonNull NetworkRoutines.DownloadInfo dlInfo) {
+        List<String> keys = new ArrayList<>(2);
+        keys.add("location:" + dlInfo.location + "\n" + dlInfo.name);
+        if (dlInfo.contentHash.length() > 0) {
+            keys.add("hash:" + dlInfo.contentHash);
+        }
+        return keys;
+    }
+
+    /**
+     * Add an album for a download request whose content is already unpacked for another album.
+     * Both albums share the same directory.
+     * @param dao the Data Access Object for the Album DB.
+     * @param dlInfo the request to add an album for.
+     * @param source an unpacked album with the same content.
+     */
+    private static void linkAlbum(@NonNull AlbumDao dao,
+                                  @NonNull NetworkRoutines.DownloadInfo dlInfo,
+                                  @NonNull Album source) {
+        Album linked = new Album();
+        linked.setName(dlInfo.name);
+        linked.setRemoteLocation(dlInfo.location.toString());
+        if (dlInfo.contentHash.length() > 0) {
+            linked.setHash(dlInfo.contentHash);
+        }
+        linked.setLocalLocation(source.getLocalLocation());
+        linked.setKeyUid(source.getKeyUid());
+        linked.setDownloadTimeMs(SystemClock.elapsedRealtime());
+        dao.insert(linked);
+        Log.d(TAG, "Linked " + dlInfo.name + " to " + source);
     }
 
     /**
@@ -899,7 +1638,7 @@ class FileController {
         if (perm.hasError) {
             // This object is never used, but it allows us to avoid sending a null object back.
             AndroidRoutines.crashDuringDev("Perm object used when it had error");
-            return new Unzipper(null, null, null, null, null, null);
+            return new Unzipper(null, null, null, null, null, null, null, null, null, null);
         }
 
         // Pick Download information from the permission object.
@@ -914,8 +1653,11 @@ class FileController {
 
         String remoteLocation = dlInfo.location.toString();
         album.setRemoteLocation(remoteLocation);
+        if (dlInfo.contentHash.length() > 0) {
+            album.setHash(dlInfo.contentHash);
+        }
 
-        AlbumDao dao = albumDb.albumDao();
+        AlbumDao dao = albumDao();
 
         // Only when we insert it do we get a unique ID. This is why this method needs to be called
         // from a background thread.
@@ -945,6 +1687,101 @@ class FileController {
                 + ", picturesDir = " + picturesDir.getAbsolutePath());
 
         album.setLocalLocation(localLocation);
-        return new Unzipper(dlInfo, album, dao, keyDb.keyDao(), mc, picturesDir);
+
+        // Record the job before anything is downloaded, so that it can be continued if the
+        // process dies.
+        IngestJob job = new IngestJob();
+        job.setAlbumId(id);
+        job.setState(IngestJob.QUEUED);
+        job.setLocation(remoteLocation);
+        job.setPathOnDisk(dlInfo.pathOnDisk);
+        job.setName(dlInfo.name);
+        job.setEncrypted(dlInfo.isEncrypted);
+        job.setIv((dlInfo.initializationVector != null)
+                ? CryptoRoutines.bToS(dlInfo.initializationVector) : "");
+        job.setKeyUid(dlInfo.isEncrypted ? dlInfo.keyUid : "");
+        job.setExtractedSize(dlInfo.extractedSize);
+        job.setContentHash(dlInfo.contentHash);
+        StringBuilder mirrors = new StringBuilder();
+        for (Uri mirror : dlInfo.mirrors) {
+            mirrors.append(mirror).append('\n');
+        }
+        job.setMirrors(mirrors.toString());
+        IngestJobDao jobDao = albumDb.ingestJobDao();
+        job.setId(jobDao.insert(job));
+
+        return new Unzipper(dlInfo, album, perm.reservation, perm.claim, job, jobDao, dao,
+                keyDao(), mc, picturesDir);
+    }
+
+    /**
+     * Pick up the ingest jobs that a previous process didn't finish, so that they continue from
+     * the stage they reached. This only returns jobs once in every process, and returns nothing
+     * when called again.
+     *
+     * Jobs whose album was removed meanwhile, and jobs that no longer fit on disk, are abandoned.
+     *
+     * Call from a background thread because this reads and modifies databases.
+     * @return an unzipper for every job to continue, oldest first. Look at
+     *          {@link Unzipper#getState()} to find where each one stopped.
+     */
+    @WorkerThread
+    @NonNull List<Unzipper> resumeIngests() {
+        List<Unzipper> unzippers = new ArrayList<>();
+        if (!ingestsResumed.compareAndSet(false, true)) {
+            return unzippers;
+        }
+        // Startup is a good time to learn which albums exist, before any beacon asks.
+        KnownAlbums.of(albumDb.albumDao()).load();
+        File picturesDir = getPicturesDir();
+        AlbumDao dao = albumDao();
+        IngestJobDao jobDao = albumDb.ingestJobDao();
+        for (IngestJob job : jobDao.getUnfinished()) {
+            Album album = dao.findbyId(job.getAlbumId());
+            if (album == null) {
+                Log.d(TAG, "Dropping job for a removed album: " + job);
+                jobDao.delete(job);
+                continue;
+            }
+            // The album only gets its location once it is unpacked.
+            String pathPrefix = "gal_" + String.format(Locale.US, "%04d", album.getId());
+            album.setLocalLocation(picturesDir.getAbsolutePath().concat(File.separator)
+                    .concat(pathPrefix));
+
+            byte[] iv = job.isEncrypted() ? CryptoRoutines.STob(job.getIv()) : null;
+            Uri location = Uri.parse(job.getLocation());
+            List<Uri> mirrors = new ArrayList<>();
+            mirrors.add(location);
+            // Null and empty both mean the package is only at its location.
+            String mirrorLines = job.getMirrors();
+            if (mirrorLines != null && mirrorLines.length() > 0) {
+                for (String mirror : mirrorLines.split("\n")) {
+                    Uri parsed = Uri.parse(mirror);
+                    if (mirror.length() > 0 && !mirrors.contains(parsed)) {
+                        mirrors.add(parsed);
+                    }
+                }
+            }
+            NetworkRoutines.DownloadInfo dlInfo = new NetworkRoutines.DownloadInfo(
+                    location, job.getPathOnDisk(), job.isEncrypted(), iv,
+                    job.getExtractedSize(), true, job.getKeyUid(), job.getName(),
+                    job.getContentHash(), mirrors);
+            SpaceLedger.Reservation reservation = ledger.reserve(picturesDir,
+                    job.getExtractedSize() + packageSpace(job.getExtractedSize()));
+            // Nothing else is in flight yet, so this always gets the claim. It stops the same
+            // package from being requested again while it is resumed.
+            InFlightRegistry<NetworkRoutines.DownloadInfo>.Claim claim =
+                    inFlight.claim(identities(dlInfo), dlInfo);
+            Unzipper unzipper = new Unzipper(dlInfo, album, reservation, claim, job, jobDao, dao,
+                    keyDao(), mc, picturesDir);
+            if (reservation == null) {
+                mc.toast("Out of disk space for " + job.getName());
+                unzipper.handleFile(Unzipper.FILENAME_ERROR, Unzipper.PFD_ERROR);
+                continue;
+            }
+            Log.d(TAG, "Resuming " + job);
+            unzippers.add(unzipper);
+        }
+        return unzippers;
     }
 }
@@ -0,0 +1,130 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * The single place where this process opens HTTP connections: the beacon, sync manifests,
+ * images and in-process package downloads all come through here.
+ *
+ * {@link HttpURLConnection} keeps a pool of idle connections, and hands an idle connection to
+ * the next request for the same host instead of making a new TCP connection and TLS handshake.
+ * A connection only goes back to the pool when its response has been read to the end and
+ * closed, and it never does if {@link HttpURLConnection#disconnect()} is called. So every
+ * connection from {@link #open(URL)} should be given back with {@link #release}, which reads
+ * whatever is left of a short response and only drops connections that can't be reused.
+ *
+ * The platform {@link HttpURLConnection} speaks HTTP/1.1 with keep-alive. Multiplexing over
+ * HTTP/2 would need a separate client library, which isn't worth it for the handful of requests
+ * made here.
+ */
+class HttpConnections {
+    private static final String TAG = "HttpConnections";
+
+    /** How long to wait for a connection to be established. */
+    static final int CONNECT_TIMEOUT_MS = 15 * 1000;
+
+    /** How long to wait for data before giving up on the connection. */
+    static final int READ_TIMEOUT_MS = 30 * 1000;
+
+    /** Number of idle connections kept in the pool. */
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    /**
+     * How long an idle connection is kept. The beacon is read every hour, which is longer than
+     * this, but the downloads and syncs it starts follow right after and reuse its connection.
+     */
+    private static final long KEEP_ALIVE_MS = 5 * 60 * 1000;
+
+    /**
+     * A connection is given back to the pool only if at most this much of the response is left
+     * unread. Anything more is cheaper to drop than to read.
+     */
+    private static final int MAX_DRAIN = 64 * 1024;
+
+    static {
+        // Read by the platform connection pool when it is first created. These are the defaults,
+        // except for the idle time, and are set so that nothing else in the process turns
+        // keep-alive off.
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_MS));
+    }
+
+    private HttpConnections() {
+    }
+
+    /**
+     * Open a connection that can reuse an idle connection to the same host. Nothing is sent till
+     * the response is asked for, so request headers can still be set.
+     * @param url an http or https URL.
+     * @return a connection with the default timeouts. Give it back with {@link #release}.
+     * @throws IOException if the URL cannot be opened, or isn't an HTTP URL.
+     */
+    static @NonNull HttpURLConnection open(@NonNull URL url) throws IOException {
+        URLConnection opened = url.openConnection();
+        if (!(opened instanceof HttpURLConnection)) {
+            throw new IOException("Not an HTTP URL: " + url);
+        }
+        HttpURLConnection connection = (HttpURLConnection) opened;
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        return connection;
+    }
+
+    /**
+     * Finish with a connection. If the rest of the response is short, it is read and thrown away
+     * so the connection can be reused. Otherwise, or if anything went wrong, the connection is
+     * dropped.
+     *
+     * Call this in a finally block, whether or not the request succeeded.
+     * @param connection a connection from {@link #open(URL)}
+     * @param body the response body from {@link #responseBody(HttpURLConnection)}, or a stream
+     *             that wraps it and does no work of its own. Null if no response was received or
+     *             reading it failed part of the way, in which case the connection is dropped.
+     */
+    static void release(@NonNull HttpURLConnection connection, @Nullable InputStream body) {
+        if (body == null) {
+            connection.disconnect();
+            return;
+        }
+        try {
+            byte[] buffer = new byte[8 * 1024];
+            long drained = 0;
+            int count;
+            while ((count = body.read(buffer)) != -1) {
+                drained += count;
+                if (drained > MAX_DRAIN) {
+                    throw new IOException("Too much of the response left unread");
+                }
+            }
+            body.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Dropping connection to " + connection.getURL().getHost() + ": "
+                    + e.getMessage());
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * The body of the response. Call this once the response code is known: error responses have
+     * their body in the error stream.
+     * @param connection a connection that has received its response.
+     * @return the body, possibly empty. Null only if there is no body to read at all.
+     */
+    static @Nullable InputStream responseBody(@NonNull HttpURLConnection connection) {
+        try {
+            return connection.getInputStream();
+        } catch (IOException e) {
+            return connection.getErrorStream();
+        }
+    }
+}
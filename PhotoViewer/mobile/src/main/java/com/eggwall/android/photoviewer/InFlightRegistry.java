@@ -0,0 +1,99 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps track of the packages that are being downloaded and unpacked right now, so that a
+ * second request for the same package joins the one in flight instead of downloading it again.
+ *
+ * A package can be known by more than one identity: its location and name, and its content
+ * hash if the publisher provided one. A request claims all of its identities at once. If any
+ * of them is already claimed, the request is added to that claim as a joiner, and nothing is
+ * claimed for it. Whoever holds the claim gets the joiners back when it releases the claim,
+ * and can then give them the result.
+ *
+ * Claims are only kept in memory. Requests from a previous process are found in the database
+ * instead.
+ *
+ * This is thread-safe.
+ *
+ * @param <T> what is recorded for each request that joins.
+ */
+class InFlightRegistry<T> {
+    private static final String TAG = "InFlightRegistry";
+
+    /** Every identity that is claimed, with its claim. A claim appears once for each identity. */
+    private final Map<String, Claim> claims = new HashMap<>();
+
+    /** The right to download and unpack a single package. */
+    class Claim {
+        /** The identities of the package. */
+        private final List<String> keys;
+        /** Requests that arrived while this claim was held. */
+        private final List<T> joined = new ArrayList<>();
+        /** True once the claim has been released. */
+        private boolean released = false;
+
+        private Claim(List<String> keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * Give up the claim, so that the package can be requested again. Can be called more
+         * than once: only the first call returns anything.
+         * @return the requests that joined this claim, in the order they arrived.
+         */
+        @AnyThread
+        @NonNull List<T> release() {
+            synchronized (InFlightRegistry.this) {
+                if (released) {
+                    return Collections.emptyList();
+                }
+                released = true;
+                for (String key : keys) {
+                    claims.remove(key);
+                }
+                return new ArrayList<>(joined);
+            }
+        }
+    }
+
+    /**
+     * Claim a package, or join the claim that is already held for it.
+     * @param keys every identity of the package. Empty strings are ignored.
+     * @param request what to hand back to the holder of the claim if this request joins it.
+     * @return a claim that needs to be released once the package has been handled, or null if
+     *          the package is already in flight and this request joined it.
+     */
+    @AnyThread
+    synchronized @Nullable Claim claim(@NonNull List<String> keys, @NonNull T request) {
+        List<String> valid = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (key.length() == 0) {
+                continue;
+            }
+            Claim existing = claims.get(key);
+            if (existing != null) {
+                Log.d(TAG, "Joining the download already in flight for " + key);
+                existing.joined.add(request);
+                return null;
+            }
+            valid.add(key);
+        }
+        Claim claim = new Claim(valid);
+        for (String key : valid) {
+            claims.put(key, claim);
+        }
+        return claim;
+    }
+}
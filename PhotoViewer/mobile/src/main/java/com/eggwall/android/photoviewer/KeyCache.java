@@ -0,0 +1,164 @@
+package com.eggwall.android.photoviewer;
+
+import com.eggwall.android.photoviewer.data.Key;
+import com.eggwall.android.photoviewer.data.KeyDao;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import static com.eggwall.android.photoviewer.CryptoRoutines.keyFromString;
+
+/**
+ * A {@link KeyDao} that remembers the keys it has read, and the {@link SecretKey} each one
+ * decodes to, by UUID.
+ *
+ * Every encrypted package and every album that is kept encrypted asks for its key, and there
+ * are only ever a handful of keys. So after the first package with a key, the next ones neither
+ * query the database nor decode the secret again.
+ *
+ * Lookups don't take a lock, and can run on any number of threads. Keys are added and removed
+ * with a lock held. Adding a key forgets what was cached for its UUID, and removing one forgets
+ * everything. A lookup that started before the change doesn't cache what it read, so a removed
+ * key is never brought back.
+ *
+ * There is one of these for each process, like the database: see {@link #of(KeyDao)}.
+ */
+class KeyCache implements KeyDao {
+    /** The only instance in this process. */
+    private static KeyCache instance = null;
+
+    /** Where the keys really are. */
+    private final KeyDao dao;
+
+    /** Rows that were read, by UUID. */
+    private final ConcurrentHashMap<String, Key> rows = new ConcurrentHashMap<>();
+
+    /** Decoded keys, by UUID. */
+    private final ConcurrentHashMap<String, SecretKey> secrets = new ConcurrentHashMap<>();
+
+    /** Changes every time a key is added or removed. Only changed with this held. */
+    private volatile long generation = 0;
+
+    /** Create a caching DAO. Use {@link #of(KeyDao)} instead. */
+    KeyCache(@NonNull KeyDao dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Get the instance for this process, creating it the first time.
+     * @param dao the DAO of the key database. Only used the first time.
+     * @return the same object every time.
+     */
+    static synchronized @NonNull KeyCache of(@NonNull KeyDao dao) {
+        if (instance == null) {
+            instance = new KeyCache(dao);
+        }
+        return instance;
+    }
+
+    /**
+     * The key for a UUID, ready to decrypt with.
+     *
+     * Call from a background thread: the first lookup for each UUID reads the database.
+     * @param uuid the UUID of the key.
+     * @return the key, or null if there is no key with this UUID.
+     */
+    @WorkerThread
+    @Nullable SecretKey secretKey(String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        SecretKey cached = secrets.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        long seen = generation;
+        Key row = forUuid(uuid);
+        if (row == null) {
+            return null;
+        }
+        SecretKey key = keyFromString(row.getSecret());
+        remember(secrets, uuid, key, seen);
+        return key;
+    }
+
+    /**
+     * Cache a value, unless a key was added or removed since it was read.
+     * @param seen {@link #generation} before the value was read.
+     */
+    @AnyThread
+    private synchronized <T> void remember(ConcurrentHashMap<String, T> map, String uuid,
+                                           T value, long seen) {
+        if (generation == seen) {
+            map.put(uuid, value);
+        }
+    }
+
+    /** Forget what was cached for a UUID. Call with this held. */
+    private void forget(String uuid) {
+        generation++;
+        if (uuid != null) {
+            rows.remove(uuid);
+            secrets.remove(uuid);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only the first lookup for each UUID runs the query.
+     */
+    @Override
+    public Key forUuid(String uuid) {
+        if (uuid == null) {
+            return dao.forUuid(null);
+        }
+        Key cached = rows.get(uuid);
+        if (cached != null) {
+            return cached;
+        }
+        long seen = generation;
+        Key row = dao.forUuid(uuid);
+        if (row != null) {
+            remember(rows, uuid, row, seen);
+        }
+        return row;
+    }
+
+    @Override
+    public long insert(Key key) {
+        synchronized (this) {
+            long id = dao.insert(key);
+            forget(key.getUuid());
+            return id;
+        }
+    }
+
+    @Override
+    public void delete(Key key) {
+        synchronized (this) {
+            dao.delete(key);
+            // Rows are deleted by id, so the UUID of the argument might not be the one removed.
+            generation++;
+            rows.clear();
+            secrets.clear();
+        }
+    }
+
+    @Override
+    public List<Key> getAll() {
+        return dao.getAll();
+    }
+
+    @Override
+    public Key findById(int id) {
+        return dao.findById(id);
+    }
+}
@@ -0,0 +1,176 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import com.eggwall.android.photoviewer.data.Album;
+import com.eggwall.android.photoviewer.data.AlbumDao;
+
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * An {@link AlbumDao} that knows which remote locations and names are in the database, so that
+ * {@link #find(String, String)} can answer "not there" without a query.
+ *
+ * Every beacon entry and every import asks for the album at its location and name before it
+ * does anything else, and nearly all of them are for albums that were downloaded long ago, or
+ * are new. The location and name of every album are kept in a {@link CountingBloomFilter},
+ * loaded from the database the first time it is needed and kept up to date by
+ * {@link #insert(Album)} and {@link #delete(Album)}. A location and name that the filter has
+ * never seen is new for certain. Only the ones that it might have seen are looked up.
+ *
+ * This relies on every album being added and removed through this object. Albums are added and
+ * removed with a lock held, so that reloading the filter doesn't race with them. The filter is
+ * reloaded, twice as large, once it holds more albums than it was sized for.
+ *
+ * There is one of these for each process, like the database: see {@link #of(AlbumDao)}.
+ */
+class KnownAlbums implements AlbumDao {
+    private static final String TAG = "KnownAlbums";
+
+    /** The chance that an album that isn't there is looked up anyway. */
+    static final double FALSE_POSITIVE_RATE = 0.01;
+
+    /** The smallest number of albums the filter is sized for. */
+    static final int MIN_CAPACITY = 1024;
+
+    /** The only instance in this process. */
+    private static KnownAlbums instance = null;
+
+    /** Where the albums really are. */
+    private final AlbumDao dao;
+
+    /** Every location and name in the database, or null till loaded. Guarded by this. */
+    private CountingBloomFilter filter = null;
+
+    /** Create a filtered DAO. Use {@link #of(AlbumDao)} instead. */
+    KnownAlbums(@NonNull AlbumDao dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Get the instance for this process, creating it the first time.
+     * @param dao the DAO of the album database. Only used the first time.
+     * @return the same object every time.
+     */
+    static synchronized @NonNull KnownAlbums of(@NonNull AlbumDao dao) {
+        if (instance == null) {
+            instance = new KnownAlbums(dao);
+        }
+        return instance;
+    }
+
+    /**
+     * The string the filter holds for a location and name. Matches
+     * {@link AlbumDao#getLocationNames()}.
+     */
+    static @NonNull String key(String remoteLocation, String name) {
+        return ((remoteLocation == null) ? "" : remoteLocation) + "\n"
+                + ((name == null) ? "" : name);
+    }
+
+    /**
+     * Read every location and name from the database, if that hasn't been done yet or the
+     * filter is full. Call early, from a background thread, so that the first download doesn't
+     * wait for it.
+     */
+    @WorkerThread
+    synchronized void load() {
+        if (filter != null && filter.size() <= filter.getCapacity()) {
+            return;
+        }
+        long startMs = System.currentTimeMillis();
+        List<String> keys = dao.getLocationNames();
+        int capacity = Math.max(MIN_CAPACITY, keys.size() * 2);
+        CountingBloomFilter loaded = new CountingBloomFilter(capacity, FALSE_POSITIVE_RATE);
+        for (String key : keys) {
+            loaded.add(key);
+        }
+        filter = loaded;
+        Log.d(TAG, "Loaded " + keys.size() + " albums in "
+                + (System.currentTimeMillis() - startMs) + "ms");
+    }
+
+    /** Whether an album at this location and name could be in the database. */
+    @WorkerThread
+    private synchronized boolean mightContain(String remoteLocation, String name) {
+        load();
+        return filter.mightContain(key(remoteLocation, name));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * Only runs the query if the filter has seen this location and name.
+     */
+    @Override
+    public Album find(String remoteLocation, String name) {
+        if (!mightContain(remoteLocation, name)) {
+            return null;
+        }
+        return dao.find(remoteLocation, name);
+    }
+
+    @Override
+    public long insert(Album album) {
+        synchronized (this) {
+            load();
+            long id = dao.insert(album);
+            filter.add(key(album.getRemoteLocation(), album.getName()));
+            return id;
+        }
+    }
+
+    @Override
+    public int delete(Album album) {
+        synchronized (this) {
+            load();
+            // Take out what the database had, which is what the filter was given.
+            Album stored = dao.findbyId(album.getId());
+            int removed = dao.delete(album);
+            // Only take out what was there, or the filter could forget other albums.
+            if (removed > 0 && stored != null) {
+                filter.remove(key(stored.getRemoteLocation(), stored.getName()));
+            }
+            return removed;
+        }
+    }
+
+    @Override
+    public List<Album> getAll() {
+        return dao.getAll();
+    }
+
+    @Override
+    public Album findbyId(long id) {
+        return dao.findbyId(id);
+    }
+
+    @Override
+    public List<String> getLocationNames() {
+        return dao.getLocationNames();
+    }
+
+    @Override
+    public Album findByHash(String hash) {
+        return dao.findByHash(hash);
+    }
+
+    @Override
+    public int countAt(String localLocation) {
+        return dao.countAt(localLocation);
+    }
+
+    @Override
+    public void update(Album album) {
+        // The location and name of an album never change, so the filter stays the same.
+        dao.update(album);
+    }
+
+    @Override
+    public Album findRecent() {
+        return dao.findRecent();
+    }
+}
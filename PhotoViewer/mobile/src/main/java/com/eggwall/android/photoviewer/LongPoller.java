@@ -0,0 +1,223 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Keeps a request to a beacon open at all times, so that whatever is published on it arrives
+ * within seconds instead of at the next scheduled read.
+ *
+ * Every read asks the server to hold the request till the beacon changes, for up to
+ * {@link #waitSeconds}. As soon as a read finishes, changed or not, the next one is sent. The
+ * server can then answer the moment something is published, and a device spends a single
+ * request every {@link #waitSeconds} while nothing is happening.
+ *
+ * A server that doesn't hold requests answers right away with what it has. So a read that finds
+ * nothing new is never sent sooner than {@link #minCycleMs} after the one before it, which keeps
+ * such a server from being asked continuously. A read that fails is retried after a delay that
+ * doubles every time, from {@link #DEFAULT_MIN_BACKOFF_MS} up to {@link #DEFAULT_MAX_BACKOFF_MS},
+ * spread by {@link BeaconScheduler#JITTER} so that devices don't all come back at once when the
+ * server does. The first read that works returns to reading right away.
+ *
+ * The poller runs on a thread of its own till {@link #stop()} is called. What is read is given to
+ * a {@link Listener} on that thread. A read or a listener that throws counts as a read that
+ * failed, so it is retried after the same delay, and so does a read the listener couldn't take.
+ */
+class LongPoller implements Runnable {
+    private static final String TAG = "LongPoller";
+
+    /** How long the server is asked to hold each request, by default. */
+    static final int DEFAULT_WAIT_SECONDS = 60;
+
+    /** The shortest time between reads that find nothing new, by default. */
+    static final long DEFAULT_MIN_CYCLE_MS = 15 * 1000;
+
+    /** The delay after the first read that fails, by default. */
+    static final long DEFAULT_MIN_BACKOFF_MS = 2 * 1000;
+
+    /** The longest delay between reads that fail, by default. */
+    static final long DEFAULT_MAX_BACKOFF_MS = 10 * 60 * 1000;
+
+    /** Told about every read. */
+    interface Listener {
+        /**
+         * Called on the poller thread after every read. The validators of the reader are up to
+         * date, and can be stored.
+         * @param poller the poller that read the beacon.
+         * @param outcome {@link BeaconScheduler#CHANGED}, {@link BeaconScheduler#UNCHANGED} or
+         *                {@link BeaconScheduler#FAILED}.
+         * @param entries the entries in the beacon if it changed, empty otherwise.
+         * @return true if the read was handled. False if its entries couldn't all be taken: the
+         *          beacon is then read again after the same delay as a read that failed.
+         */
+        @WorkerThread
+        boolean onRead(@NonNull LongPoller poller, int outcome, @NonNull List<String> entries);
+    }
+
+    private final BeaconReader reader;
+    private final Listener listener;
+    private final Random random;
+
+    /** How long the server is asked to hold each request. */
+    private final int waitSeconds;
+
+    /** The shortest time between reads that find nothing new. */
+    private long minCycleMs = DEFAULT_MIN_CYCLE_MS;
+
+    /** The delay after the first read that fails. */
+    private long minBackoffMs = DEFAULT_MIN_BACKOFF_MS;
+
+    /** The longest delay between reads that fail. */
+    private long maxBackoffMs = DEFAULT_MAX_BACKOFF_MS;
+
+    /** Set once the poller should stop. Guarded by this. */
+    private boolean stopped = false;
+
+    /** The thread that reads the beacon, once started. */
+    private Thread thread = null;
+
+    /**
+     * Create a poller for a beacon. Nothing is read till {@link #start()} is called.
+     * @param reader reads the beacon, starting with the validators from the last read.
+     * @param waitSeconds how long the server is asked to hold each request.
+     * @param listener told about every read.
+     */
+    LongPoller(@NonNull BeaconReader reader, int waitSeconds, @NonNull Listener listener) {
+        this(reader, waitSeconds, listener, new Random());
+    }
+
+    /**
+     * Create a poller with a specific source of jitter, for tests.
+     */
+    LongPoller(@NonNull BeaconReader reader, int waitSeconds, @NonNull Listener listener,
+               @NonNull Random random) {
+        this.reader = reader;
+        this.waitSeconds = waitSeconds;
+        this.listener = listener;
+        this.random = random;
+    }
+
+    /**
+     * Change the shortest time between reads that find nothing new. Call before
+     * {@link #start()}.
+     */
+    void setMinCycle(long minCycleMs) {
+        this.minCycleMs = minCycleMs;
+    }
+
+    /**
+     * Change the delays between reads that fail. Call before {@link #start()}.
+     * @param minBackoffMs the delay after the first failure.
+     * @param maxBackoffMs the longest delay, however many reads fail.
+     */
+    void setBackoff(long minBackoffMs, long maxBackoffMs) {
+        this.minBackoffMs = minBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    @NonNull BeaconReader getReader() {
+        return reader;
+    }
+
+    /** Start reading the beacon on a new thread. */
+    @AnyThread
+    synchronized void start() {
+        if (thread != null || stopped) {
+            return;
+        }
+        thread = new Thread(this, TAG + " " + reader.getUrl());
+        thread.start();
+    }
+
+    /**
+     * Stop reading the beacon. The read in progress is dropped, and the listener isn't told about
+     * it. Returns right away: the thread finishes on its own.
+     */
+    @AnyThread
+    void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        reader.abort();
+    }
+
+    /** The thread that reads the beacon, for tests to wait on. Null till started. */
+    synchronized Thread getThread() {
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        Log.d(TAG, "Holding a request open to " + reader.getUrl());
+        long backoffMs = 0;
+        while (!isStopped()) {
+            long startMs = System.currentTimeMillis();
+            List<String> entries = new ArrayList<>();
+            int outcome;
+            try {
+                outcome = reader.read(waitSeconds, entries);
+            } catch (RuntimeException e) {
+                // A beacon that can't be read is retried like one that can't be reached, rather
+                // than ending the thread and never being read again.
+                Log.e(TAG, "Failed to read " + reader.getUrl(), e);
+                outcome = BeaconScheduler.FAILED;
+                entries.clear();
+            }
+            if (isStopped()) {
+                break;
+            }
+            try {
+                if (!listener.onRead(this, outcome, entries)) {
+                    outcome = BeaconScheduler.FAILED;
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to handle " + reader.getUrl(), e);
+                outcome = BeaconScheduler.FAILED;
+            }
+
+            long pauseMs;
+            if (outcome == BeaconScheduler.FAILED) {
+                backoffMs = (backoffMs == 0) ? minBackoffMs : Math.min(backoffMs * 2, maxBackoffMs);
+                double spread = (random.nextDouble() * 2 - 1) * BeaconScheduler.JITTER;
+                pauseMs = Math.round(backoffMs * (1 + spread));
+                Log.d(TAG, "Reconnecting to " + reader.getUrl() + " in " + pauseMs + "ms");
+            } else {
+                backoffMs = 0;
+                // Right away if something was published, since more often follows. Otherwise
+                // not so soon that a server which doesn't hold requests is asked all the time.
+                pauseMs = (outcome == BeaconScheduler.CHANGED)
+                        ? 0 : minCycleMs - (System.currentTimeMillis() - startMs);
+            }
+            pause(pauseMs);
+        }
+        Log.d(TAG, "Stopped reading " + reader.getUrl());
+    }
+
+    private synchronized boolean isStopped() {
+        return stopped;
+    }
+
+    /** Wait this long before the next read, or till the poller is stopped. */
+    private synchronized void pause(long pauseMs) {
+        long untilMs = System.currentTimeMillis() + pauseMs;
+        long leftMs = pauseMs;
+        while (!stopped && leftMs > 0) {
+            try {
+                wait(leftMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopped = true;
+                return;
+            }
+            leftMs = untilMs - System.currentTimeMillis();
+        }
+    }
+}
@@ -251,7 +251,8 @@ public class MainActivity extends AppCompatActivity {
                 mc.handleUri(in);
                 break;
             case SettingActivity.REQUEST_SETTINGS:
-                // Do nothing.
+                // A beacon typed in the settings is added to the others, and read right away.
+                mc.pollBeacons(false);
                 break;
 
             default:
@@ -7,6 +7,7 @@ import android.util.Log;
 
 import com.eggwall.android.photoviewer.data.Album;
 
+import java.io.IOException;
 import java.util.List;
 
 import androidx.annotation.AnyThread;
@@ -16,7 +17,6 @@ import androidx.annotation.UiThread;
 import androidx.annotation.WorkerThread;
 
 import static com.eggwall.android.photoviewer.AndroidRoutines.logDuringDev;
-import static com.eggwall.android.photoviewer.Pref.Name.BEACON;
 
 /**
  * Class that orchestrates the entire application. It has a {@link FileController}, a
@@ -31,6 +31,13 @@ class MainController {
     private static final String TAG = "MainController";
     private static final int ONE_HOUR = 3600 * 1000;
 
+    /** A URI that started a download or a sync. */
+    private static final int URI_QUEUED = 1;
+    /** A URI that needed nothing started, like an album that was downloaded earlier. */
+    private static final int URI_SKIPPED = 0;
+    /** A URI that needed a download or a sync that couldn't be started. */
+    private static final int URI_FAILED = -1;
+
     /**
      * Has this object been properly created?
      *
@@ -55,9 +62,12 @@ class MainController {
     /** The preference object that the controllers can read and modify. */
     Pref pref;
 
+    /** Runs {@link #timer} and {@link #beaconPoll} on the main thread. */
+    private Handler handler = null;
+
     /**
      * A routine timer that executes every hour to do routine things: monitor stuck
-     * downloads, check on a beacon (if any), clean up disk space. The user is generally
+     * downloads, clean up disk space. The user is generally
      * not aware of how frequently this timer runs, for now. Let's make a good choice
      * for the user, neither thrashing the device nor ignoring routine tasks.
      */
@@ -68,11 +78,23 @@ class MainController {
 
             // And call ourselves again.
             // Set up the routine timer for every hour.
-            new Handler().postDelayed(timer, ONE_HOUR);
+            handler.postDelayed(timer, ONE_HOUR);
 
         }
     };
 
+    /**
+     * Reads the beacons that are due, if any. This isn't part of the hourly {@link #timer}: it
+     * runs whenever the next beacon is due, which is sooner while a beacon is changing and later
+     * while its server can't be reached.
+     */
+    private final Runnable beaconPoll = new Runnable() {
+        @Override
+        public void run() {
+            pollBeacons(false);
+        }
+    };
+
     /**
      * Call a routine timer. This instructs all the remaining machinery to run any routine
      * tasks they might want to achieve. It is safe to call this on any thread, and as frequently
@@ -81,6 +103,8 @@ class MainController {
      * This is called on the main thread, so all long-running processing should be performed
      * in a background thread. In particular network or disk access should be done in a background
      * thread.
+     *
+     * The beacons are read separately, by {@link #pollBeacons(boolean)}.
      */
     @MainThread
     void timer() {
@@ -96,11 +120,56 @@ class MainController {
             public void run() {
                 // Go through every controller and see if they have any routine action they want to run.
                 fileC.timer();
-                networkC.timer();
             }
         }).start();
     }
 
+    /**
+     * Read the beacons now, and schedule the next read from what was found. A read that was
+     * already scheduled is replaced by this one.
+     * @param all true to read every beacon, false to only read the ones that are due.
+     */
+    @MainThread
+    void pollBeacons(final boolean all) {
+        creationCheck();
+        AndroidRoutines.checkMainThread();
+
+        handler.removeCallbacks(beaconPoll);
+        // The controller could be destroyed while the beacons are being read.
+        final NetworkController network = networkC;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                scheduleBeacons(network.pollBeacons(all));
+            }
+        }).start();
+    }
+
+    /**
+     * Read a beacon that was just added. It is due right away.
+     */
+    @AnyThread
+    private void pollNewBeacon() {
+        handler.removeCallbacks(beaconPoll);
+        handler.post(beaconPoll);
+    }
+
+    /**
+     * Schedule the next beacon read. Every beacon keeps its own schedule in the database, so
+     * the next activity picks it up if this one is restarted.
+     * @param delayMs milliseconds from now, or negative if another read is already running and
+     *                schedules the next one itself.
+     */
+    @AnyThread
+    private void scheduleBeacons(long delayMs) {
+        if (!created || delayMs < 0) {
+            // Destroyed while reading the beacons, or someone else schedules the next read.
+            return;
+        }
+        Log.d(TAG, "Reading beacons again in " + (delayMs / 1000) + " seconds");
+        handler.postDelayed(beaconPoll, delayMs);
+    }
+
     /**
      * Verify that the object was created before use.
      * Proceeds if created, and {@link AndroidRoutines#crashHard(String)} if the controller is used
@@ -146,17 +215,49 @@ class MainController {
 
         networkC = new NetworkController(mainActivity, this);
 
-        // Set up the routine timer for every hour. It runs on the main thread.
-        new Handler().postDelayed(timer, ONE_HOUR);
-
         // Get the preferences for the sole (un-named) process.
         pref = new Pref(mainActivity);
 
+        // Set up the routine timer for every hour. It runs on the main thread.
+        handler = new Handler();
+        handler.postDelayed(timer, ONE_HOUR);
+
+        // Read the beacons that came due while the activity wasn't running, and continue on
+        // their schedules.
+        handler.post(beaconPoll);
+
         // Now this object can be used.
         created = true;
+
+        // Continue the downloads that a previous process didn't finish.
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                resumeIngestsBackgroundThread();
+            }
+        }).start();
         return true;
     }
 
+    /**
+     * Continue every ingest job that a previous process didn't finish, each from the stage it
+     * reached.
+     */
+    @WorkerThread
+    private void resumeIngestsBackgroundThread() {
+        creationCheck();
+        AndroidRoutines.checkBackgroundThread();
+
+        List<FileController.Unzipper> unzippers = fileC.resumeIngests();
+        if (unzippers.isEmpty()) {
+            return;
+        }
+        Log.d(TAG, "Resuming " + unzippers.size() + " downloads");
+        for (FileController.Unzipper unzipper : unzippers) {
+            networkC.resumeIngest(unzipper);
+        }
+    }
+
     /**
      * Destroy the object and remove all references so objects can be Garbage Collected. I started
      * adding this code when memory allocation was an issue. Since then memory allocation has
@@ -167,6 +268,10 @@ class MainController {
         creationCheck();
         AndroidRoutines.checkAnyThread();
 
+        // Stop the timers, they would run against a destroyed controller.
+        handler.removeCallbacks(timer);
+        handler.removeCallbacks(beaconPoll);
+
         // Destroy the object permanently.
         fileC.destroy();
         fileC = null;
@@ -320,11 +425,11 @@ class MainController {
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    downloadBackgroundThread(album);
+                    downloadBackgroundThread(album, false);
                 }
             }).start();
         } else {
-            downloadBackgroundThread(album);
+            downloadBackgroundThread(album, false);
         }
     }
 
@@ -332,14 +437,27 @@ class MainController {
      * Actually run the download in the background thread. This downloads from the information
      * provided here, that should have been picked up from the URL.
      * @param album information required to download the album.
+     * @param fromManifest true if this album came from a beacon manifest. Manifests repeat albums
+     *                     that were downloaded earlier, so those are skipped without a toast.
+     * @return {@link #URI_QUEUED} if the download was queued, {@link #URI_SKIPPED} if the album
+     *          is already here, and {@link #URI_FAILED} if it couldn't be downloaded.
      */
-    private void downloadBackgroundThread(NetworkRoutines.DownloadInfo album) {
+    private int downloadBackgroundThread(NetworkRoutines.DownloadInfo album,
+                                         boolean fromManifest) {
         FileController.Perm perm = fileC.checkConditionsForDownload(album);
 
         if (perm.hasError) {
+            if (perm.isDuplicate) {
+                if (fromManifest) {
+                    Log.d(TAG, "Already have " + album.location);
+                } else {
+                    toast(perm.errorMessage);
+                }
+                return URI_SKIPPED;
+            }
             toast(perm.errorMessage);
             // We can't create an Unzipper with this degenerate object.
-            return;
+            return URI_FAILED;
         }
 
         // Once a download is finished, we need to handle the file. The filecontroller handles
@@ -354,10 +472,11 @@ class MainController {
         boolean status = networkC.requestURI(unzipper);
         if (!status) {
             Log.e(TAG, "Could not download file " + album.location);
-            return;
+            return URI_FAILED;
         }
         // We can't do anything else since we need to wait for the download to complete.
         Log.d(TAG, "Download for " + album.location + " queued.");
+        return URI_QUEUED;
     }
 
     /**
@@ -478,8 +597,36 @@ class MainController {
         String nextFile = fileC.getFile(direction);
         Log.d(TAG, "updateImage: next file is: " + nextFile);
 
+        // Images of albums that are kept encrypted are decrypted here, one at a time.
+        byte[] encoded;
+        try {
+            encoded = fileC.readImage(nextFile);
+        } catch (FileController.StaleImageException e) {
+            // Another album is shown now, and it shows its own first image.
+            Log.d(TAG, "updateImage: skipping " + nextFile, e);
+            return;
+        } catch (IOException e) {
+            String message = "Failed to decrypt file: " + nextFile;
+            toast(message);
+            Log.e(TAG, message, e);
+            return;
+        }
+
         // Now switch to a foreground thread to update the UI.
-        uiC.updateImage(nextFile, direction, showFab);
+        uiC.updateImage(nextFile, encoded, direction, showFab);
+    }
+
+    /**
+     * The slideshow started or stopped. Downloads slow down while it plays, so that they don't
+     * take the disk and CPU it needs to show the next image on time.
+     * @param playing true if the slideshow is now playing.
+     */
+    @AnyThread
+    void slideshowChanged(boolean playing) {
+        creationCheck();
+        AndroidRoutines.checkAnyThread();
+
+        networkC.setSlideshowPlaying(playing);
     }
 
     /**
@@ -509,6 +656,58 @@ class MainController {
         }
     }
 
+    /**
+     * Bring an album up to date with its sync manifest, in the background thread. Only the images
+     * that are missing or have changed are downloaded.
+     * @param sync information about the album and its manifest.
+     * @return {@link #URI_QUEUED} if the sync was queued, {@link #URI_FAILED} if it wasn't.
+     */
+    private int syncBackgroundThread(NetworkRoutines.SyncInfo sync) {
+        FileController.Syncer syncer = fileC.createSyncer(sync);
+        if (syncer == null) {
+            // The reason has already been shown to the user.
+            return URI_FAILED;
+        }
+        return networkC.requestSync(syncer) ? URI_QUEUED : URI_FAILED;
+    }
+
+    /**
+     * Handle every URI in a beacon manifest, in a single pass on a single background thread.
+     *
+     * Every entry is handled like {@link #handleUri(Uri)}, except that albums that were
+     * downloaded earlier are skipped quietly: a manifest lists the same albums every time.
+     * All new downloads are queued together, and the {@link NetworkController} decides the order
+     * in which they run.
+     *
+     * Call from a background thread: the caller needs to know whether every entry was taken, so
+     * that a manifest with entries that couldn't be started is read again later.
+     * @param in URIs read from a beacon manifest, without duplicates.
+     * @return true if every entry was queued or needed nothing, false if any of them needed a
+     *          download or a sync that couldn't be started.
+     */
+    @WorkerThread
+    boolean handleUris(@NonNull List<Uri> in) {
+        creationCheck();
+        AndroidRoutines.checkBackgroundThread();
+
+        int queued = 0;
+        int failed = 0;
+        for (Uri uri : in) {
+            int result = handleUriBackgroundThread(uri, true);
+            if (result == URI_QUEUED) {
+                queued++;
+            } else if (result == URI_FAILED) {
+                failed++;
+            }
+        }
+        Log.d(TAG, "Manifest with " + in.size() + " entries queued " + queued + " downloads, "
+                + failed + " failed");
+        if (queued > 0) {
+            toast("Downloading " + queued + (queued == 1 ? " new album" : " new albums"));
+        }
+        return failed == 0;
+    }
+
     /**
      * For a given URI, either as a custom URI or as input to {@link ImportActivity}, go through
      * the URI and handle the {@link NetworkRoutines#TYPE_DOWNLOAD} or
@@ -517,8 +716,19 @@ class MainController {
      *           as a text input by the user in {@link ImportActivity}
      */
     private void handleUriBackgroundThread(@NonNull Uri in) {
+        handleUriBackgroundThread(in, false);
+    }
+
+    /**
+     * Handle a single URI, either typed in by the user or read from a beacon manifest.
+     * @param in the URL to act upon.
+     * @param fromManifest true if this URI came from a beacon manifest.
+     * @return {@link #URI_QUEUED} if a new download or sync was queued, {@link #URI_FAILED} if
+     *          one was needed and couldn't be started, and {@link #URI_SKIPPED} otherwise.
+     */
+    private int handleUriBackgroundThread(@NonNull Uri in, boolean fromManifest) {
         if (in == Uri.EMPTY) {
-            return;
+            return URI_SKIPPED;
         }
 
         // Examine what we got.
@@ -531,7 +741,7 @@ class MainController {
                 if (album != NetworkRoutines.EMPTY) {
                     Log.d(TAG, "I'm going to download this URL now: " + album);
                     // Now download that URL and switch over to that screen.
-                    download(album);
+                    return downloadBackgroundThread(album, fromManifest);
                 }
                 break;
             case NetworkRoutines.TYPE_SECRET_KEY:
@@ -552,15 +762,21 @@ class MainController {
                     break;
                 }
                 if (beacon.length() > 0) {
-                    // Some URL needs to be monitored, let's remember it.
-                    if (0 != pref.getString(BEACON).compareTo(beacon)) {
-                        // It differs, write the new value to disk. The timer() method will pick
-                        // it up in due time.
-                        pref.modify(BEACON, beacon);
+                    // Some URL needs to be monitored, let's remember it along with the others.
+                    if (networkC.addBeacon(beacon)) {
+                        // It is new, read it right away.
                         uiC.MakeText("Stored beacon: " + beacon);
+                        pollNewBeacon();
                     }
                 }
                 break;
+            case NetworkRoutines.TYPE_SYNC:
+                NetworkRoutines.SyncInfo sync = NetworkRoutines.getSyncInfo(in);
+                if (sync != NetworkRoutines.EMPTY_SYNC) {
+                    Log.d(TAG, "I'm going to sync this album now: " + sync.manifest);
+                    return syncBackgroundThread(sync);
+                }
+                break;
             case NetworkRoutines.TYPE_DEV_CONTROL:
                 NetworkRoutines.callControl(in, this);
                 break;
@@ -569,5 +785,6 @@ class MainController {
                 Log.wtf(TAG, "Unknown URI: " + in);
                 break;
         }
+        return URI_SKIPPED;
     }
 }
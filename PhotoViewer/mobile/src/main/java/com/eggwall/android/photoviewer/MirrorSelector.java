@@ -0,0 +1,159 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Puts the mirrors of a package in the order they should be tried, fastest first.
+ *
+ * Every mirror is asked for the first {@link #PROBE_BYTES} of the package, all at the same time.
+ * The time till the response starts is the latency of the mirror, and the rest of the probe
+ * gives its throughput. From those, the time to download the whole package is estimated, and
+ * the mirrors are sorted by it: a nearby mirror with a slow link can lose to a distant one with
+ * a fast link on a large package, and win on a small one.
+ *
+ * Mirrors that don't answer within {@link #PROBE_TIMEOUT_MS} go last, in the order they were
+ * given, so they are still tried if everything else fails. The probe is small, so it only tells
+ * which mirror is better right now, not how fast the download will be.
+ */
+class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+
+    /** How much of the package every mirror is asked for. */
+    static final int PROBE_BYTES = 64 * 1024;
+
+    /** How long a mirror has to answer the probe. */
+    static final long PROBE_TIMEOUT_MS = 5 * 1000;
+
+    /** What was learned about a single mirror. */
+    private static class Probe {
+        final URL mirror;
+        /** Where the mirror was in the list given to us. */
+        final int position;
+        /** Estimated milliseconds to download the package, or MAX_VALUE if it didn't answer. */
+        volatile long estimateMs = Long.MAX_VALUE;
+
+        Probe(URL mirror, int position) {
+            this.mirror = mirror;
+            this.position = position;
+        }
+    }
+
+    private MirrorSelector() {
+    }
+
+    /**
+     * Probe the mirrors, and sort them.
+     * @param mirrors every place the package can be downloaded from, in the publisher's order.
+     * @param size the expected size of the package in bytes, or 0 if it isn't known.
+     * @return the same mirrors, the one expected to be fastest first.
+     */
+    @WorkerThread
+    static @NonNull List<URL> rank(@NonNull List<URL> mirrors, long size) {
+        if (mirrors.size() < 2) {
+            return mirrors;
+        }
+        final long expected = Math.max(size, PROBE_BYTES);
+        final List<Probe> probes = new ArrayList<>(mirrors.size());
+        final CountDownLatch done = new CountDownLatch(mirrors.size());
+        for (int i = 0; i < mirrors.size(); i++) {
+            final Probe probe = new Probe(mirrors.get(i), i);
+            probes.add(probe);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        probe.estimateMs = estimate(probe.mirror, expected);
+                    } catch (IOException e) {
+                        Log.d(TAG, "Mirror " + probe.mirror + " failed: " + e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        try {
+            // Mirrors that are still busy by then are ranked as if they didn't answer.
+            done.await(PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Read every estimate once, since slow probes can still be writing them.
+        final long[] estimates = new long[probes.size()];
+        for (Probe probe : probes) {
+            estimates[probe.position] = probe.estimateMs;
+        }
+        Collections.sort(probes, new Comparator<Probe>() {
+            @Override
+            public int compare(Probe a, Probe b) {
+                int byEstimate = Long.compare(estimates[a.position], estimates[b.position]);
+                return (byEstimate != 0) ? byEstimate : Integer.compare(a.position, b.position);
+            }
+        });
+        List<URL> ranked = new ArrayList<>(probes.size());
+        for (Probe probe : probes) {
+            ranked.add(probe.mirror);
+            Log.d(TAG, probe.mirror + ": " + estimates[probe.position] + "ms estimated");
+        }
+        return ranked;
+    }
+
+    /**
+     * Probe a single mirror.
+     * @param mirror the mirror to ask.
+     * @param size the expected size of the package.
+     * @return milliseconds the whole package is expected to take from this mirror.
+     * @throws IOException if the mirror could not be read.
+     */
+    private static long estimate(URL mirror, long size) throws IOException {
+        long startNs = System.nanoTime();
+        HttpURLConnection connection = HttpConnections.open(mirror);
+        connection.setConnectTimeout((int) PROBE_TIMEOUT_MS);
+        connection.setReadTimeout((int) PROBE_TIMEOUT_MS);
+        connection.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+        InputStream body = null;
+        try {
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL && code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code);
+            }
+            long firstByteNs = System.nanoTime();
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[8 * 1024];
+            long read = 0;
+            int count;
+            // A server without ranges sends everything: only read what was asked for.
+            while (read < PROBE_BYTES && (count = in.read(buffer)) > 0) {
+                read += count;
+            }
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                body = in;
+            }
+            long endNs = System.nanoTime();
+            if (read == 0) {
+                throw new IOException("Empty response");
+            }
+            long latencyMs = (firstByteNs - startNs) / 1000000;
+            // Bytes per millisecond, in floating point since a nearby mirror can deliver the
+            // probe in less than a millisecond.
+            double rate = read * 1e6 / Math.max(1, endNs - firstByteNs);
+            return latencyMs + Math.round(size / rate);
+        } finally {
+            HttpConnections.release(connection, body);
+        }
+    }
+}
@@ -12,16 +12,28 @@ import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
-import com.google.common.base.Charsets;
+import com.eggwall.android.photoviewer.data.AlbumDatabase;
+import com.eggwall.android.photoviewer.data.Beacon;
+import com.eggwall.android.photoviewer.data.BeaconDao;
+import com.eggwall.android.photoviewer.data.IngestJob;
 
-import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.WorkerThread;
 
@@ -32,13 +44,28 @@ class NetworkController {
     private static final String TAG = "NetworkController";
 
     private final DownloadManager downloadManager;
+
+    /** Holds back downloads so only a few run at the same time. */
+    private final DownloadScheduler scheduler = new DownloadScheduler();
     /** The orchestrator */
     private MainController mc;
     private Context ctx;
 
+    /** The beacons that are monitored, with their validators and schedules. */
+    private final BeaconDao beaconDao;
+
+    /** Set while the beacons are being read, so that only one round runs at a time. */
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+
+    /** Beacons that are read by holding a request open, by the id of the beacon. */
+    private final Map<Long, LongPoller> longPollers = new HashMap<>();
+
+    /** Limits how fast the in-process downloads run, lower while a slideshow plays. */
+    private final BandwidthGovernor governor = new BandwidthGovernor();
+
     /**
-     * The beacon can point to a URL of max 4k of length. Anything larger than this and
-     * we will read the first 4k of characters and try to convert them to a URL. There are
+     * The beacon can point to a URL of max 4k of length, and every entry in a beacon manifest
+     * is a URL of at most this length. Longer lines in the manifest are skipped. There are
      * some online links that suggest that URLs are a max of 2k of size, so this is a huge
      * bump from that:
      * @see <a href="https://stackoverflow.com/questions/417142/what-is-the-maximum-length-of-a-url-in-different-browsers">
@@ -47,102 +74,376 @@ class NetworkController {
     final static int MAX_BEACON_SIZE = 4 * 1024;
 
     /**
-     * Run routine tasks. This reads the beacon and finds what information is pointed to
-     * by it. This needs to run in the background since it downloads information and then
-     * it reads it, and handles the URI.
+     * Maximum time to wait for a completed download to be fully written to disk. This is only
+     * reached when something is badly wrong: usually the file is complete right away.
      */
-    @WorkerThread
-    void timer() {
-        checkBeacon();
-    }
+    private static final long COMPLETION_TIMEOUT_MS = 60 * 1000;
 
     /**
-     * Check the beacon to see if any content exists. If so, fetch it, and then ask the
-     * {@link MainController} to handle its contents.
+     * Number of times a package is downloaded in process before it is given up on because it
+     * doesn't have the hash its URI promised.
+     */
+    private static final int MAX_HASH_ATTEMPTS = 2;
+
+    /** Value of {@link Pref.Name#DOWNLOADER}: packages are downloaded by {@link DownloadManager} */
+    static final int DOWNLOADER_SYSTEM = 0;
+
+    /** Value of {@link Pref.Name#DOWNLOADER}: packages are downloaded by {@link RangeDownloader} */
+    static final int DOWNLOADER_IN_PROCESS = 1;
+
+    /**
+     * Read every beacon that is due, and handle what they point to. This needs to run in the
+     * background since it downloads information and then it reads it, and handles the URI.
+     *
+     * The beacons are read at the same time, each on its own thread, so a slow beacon doesn't
+     * hold up the rest. The entries of each beacon are handed to the {@link MainController} as
+     * soon as that beacon has been read, leaving out entries that another beacon already gave
+     * in this round. Whatever is left is deduplicated further down, where every download is
+     * claimed before it starts.
      *
-     * If the Beacon URL in the settings was malformed, this method modifies settings to empty
-     * out the setting (so future runs don't encounter the same problems).
+     * Every beacon has its own schedule from a {@link BeaconScheduler}, kept in the database.
+     * {@link MainController} calls this again once the next beacon is due.
      *
-     * A single URL is allowed on a single line in the beacon. No fancy HTML. I am not sure
-     * if this means that we also get http headers and other information, but I need to check
-     * this and see what I receive.
+     * If {@link Pref.Name#BEACON_LONG_POLL} is set, beacons aren't read on a schedule at all.
+     * Instead every beacon gets a {@link LongPoller} that keeps a request open to it, and this
+     * only starts pollers for beacons that were added since.
+     * @param all true to read every beacon now, whether or not it is due.
+     * @return milliseconds till the next beacon is due, or -1 if another round is already
+     *          running and will say when the next one is due, or if this was destroyed.
      */
     @WorkerThread
-    private void checkBeacon() {
-        // Find out if a beacon URL exists.
-        String beacon_pref = mc.pref.getString(Pref.Name.BEACON);
-        if (beacon_pref.length() > 0) {
-            // Let's poll the beacon
-            URL beacon;
-            try {
-                beacon = new URL(beacon_pref);
-            } catch (MalformedURLException e) {
-                Log.d(TAG, "Beacon is malformed: " + e.getMessage());
-                beacon = null;
+    long pollBeacons(boolean all) {
+        // Destroying this clears mc on the main thread, while a round might be starting here.
+        MainController controller = mc;
+        if (controller == null) {
+            Log.d(TAG, "Destroyed, not reading beacons");
+            return -1;
+        }
+        if (!polling.compareAndSet(false, true)) {
+            Log.d(TAG, "Beacons are already being read");
+            return -1;
+        }
+        try {
+            migrateBeaconPref(controller.pref);
+            int waitSeconds = controller.pref.getInt(Pref.Name.BEACON_LONG_POLL);
+            if (waitSeconds > 0) {
+                holdBeacons(waitSeconds);
+                // Only to pick up beacons that are added without being read right away.
+                return BeaconScheduler.MAX_QUIET_INTERVAL_MS;
             }
-            if (null == beacon) {
-                Log.d(TAG, "Could not create a valid URL.");
-                // Now remove the beacon from the settings because it is malformed.
-                mc.pref.modify(Pref.Name.BEACON, "");
-                return;
+            stopLongPolls();
+
+            long nowMs = System.currentTimeMillis();
+            List<Beacon> due = all ? beaconDao.getAll() : beaconDao.getDue(nowMs);
+
+            // Read them all at once, and take the results as they arrive.
+            final LinkedBlockingQueue<BeaconPoll> done = new LinkedBlockingQueue<>();
+            for (final Beacon beacon : due) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        BeaconPoll poll = new BeaconPoll(beacon);
+                        try {
+                            checkBeacon(poll);
+                        } finally {
+                            done.add(poll);
+                        }
+                    }
+                }).start();
             }
-            HttpURLConnection connection;
-            InputStream body;
-            try {
-                connection = (HttpURLConnection) beacon.openConnection();
-                if (null == connection) {
-                    return;
+            Set<String> seen = new HashSet<>();
+            for (int i = 0; i < due.size(); i++) {
+                BeaconPoll poll;
+                try {
+                    poll = done.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
-                // Read the response body here, not the headers.
-                body = new BufferedInputStream(connection.getInputStream());
-            } catch (Exception e) {
-                Log.d(TAG, "Beacon could not be read: " + e.getMessage());
+                finishPoll(poll, seen);
+            }
+            return untilNextBeacon();
+        } finally {
+            polling.set(false);
+        }
+    }
+
+    /**
+     * Start monitoring a beacon. It is read the next time {@link #pollBeacons(boolean)} runs.
+     * Writes the database, so call this from a background thread.
+     * @param url the URL of the beacon.
+     * @return true if the beacon is new, false if it was already monitored.
+     */
+    @WorkerThread
+    boolean addBeacon(@NonNull String url) {
+        Beacon beacon = new Beacon();
+        beacon.setUrl(url);
+        beacon.setIntervalMs(BeaconScheduler.MIN_INTERVAL_MS);
+        beacon.setNextPollMs(0);
+        return beaconDao.insert(beacon) >= 0;
+    }
+
+    /** The result of reading a single beacon. */
+    private static class BeaconPoll {
+        final Beacon beacon;
+        /** What happened, one of the outcomes in {@link BeaconScheduler}. */
+        int outcome = BeaconScheduler.FAILED;
+        /** The entries in the beacon, if it changed. */
+        final List<String> entries = new ArrayList<>();
+        /** The reader, with the validators of this read. Null if the URL is malformed. */
+        BeaconReader reader = null;
+
+        BeaconPoll(Beacon beacon) {
+            this.beacon = beacon;
+        }
+    }
+
+    /**
+     * Hand the new entries of a beacon that was just read to the {@link MainController}, and
+     * schedule its next read.
+     *
+     * The validators of the read are only stored once every entry was taken. If any of them
+     * couldn't be, the beacon is backed off from like a read that failed, and the next read
+     * gives the same entries again.
+     * @param poll the result of reading the beacon.
+     * @param seen entries that other beacons gave in this round. Updated with these entries.
+     */
+    @WorkerThread
+    private void finishPoll(BeaconPoll poll, Set<String> seen) {
+        Beacon beacon = poll.beacon;
+        if (poll.outcome == BeaconScheduler.NO_BEACON) {
+            // The beacon can never be read, so stop trying.
+            beaconDao.delete(beacon);
+            return;
+        }
+        int outcome = poll.outcome;
+        List<Uri> toHandle = new ArrayList<>(poll.entries.size());
+        for (String entry : poll.entries) {
+            if (seen.add(entry)) {
+                toHandle.add(Uri.parse(entry));
+            }
+        }
+        if (!toHandle.isEmpty()) {
+            MainController controller = mc;
+            if (controller == null) {
+                // Destroyed while the beacons were read. The beacon is left as it was, so it is
+                // read again next time.
                 return;
             }
-            byte[] beacon_input = new byte[MAX_BEACON_SIZE];
-            try {
-                // Expect a single line, which is the instruction of what comes next, no HTML
-                // markup.
-                int bytes_read = body.read(beacon_input, 0, MAX_BEACON_SIZE);
-                if (bytes_read < 0) {
-                    // Nothing came in, mark an error for the future, but for now, just return
-                    return;
+            AndroidRoutines.logDuringDev(TAG, beacon.getUrl() + " produced " + toHandle.size()
+                    + " entries");
+            // Fetch the URLs, unpack the files, and so on, all in one go.
+            if (!controller.handleUris(toHandle)) {
+                Log.d(TAG, "Not every entry of " + beacon.getUrl() + " was taken, keeping the"
+                        + " old validators");
+                outcome = BeaconScheduler.FAILED;
+            }
+        }
+        if (outcome != BeaconScheduler.FAILED) {
+            storeValidators(beacon, poll.reader);
+        }
+        BeaconScheduler schedule = new BeaconScheduler(beacon.getIntervalMs());
+        long delayMs = schedule.next(outcome);
+        beacon.setIntervalMs(schedule.getIntervalMs());
+        beacon.setNextPollMs(System.currentTimeMillis() + delayMs);
+        beaconDao.update(beacon);
+        Log.d(TAG, "Reading " + beacon.getUrl() + " again in " + (delayMs / 1000) + " seconds");
+    }
+
+    /**
+     * Start holding a request open to every beacon that doesn't have one yet. Beacons with a
+     * malformed URL are removed.
+     * @param waitSeconds how long the server is asked to hold each request.
+     */
+    @WorkerThread
+    private void holdBeacons(int waitSeconds) {
+        List<Beacon> beacons = beaconDao.getAll();
+        synchronized (longPollers) {
+            for (final Beacon beacon : beacons) {
+                if (longPollers.containsKey(beacon.getId())) {
+                    continue;
                 }
-            } catch (IOException e) {
-                // Had trouble reading from the beacon. Mark an error.
-                Log.d(TAG, "Timer failed to read from beacon: " + e.getMessage());
-                return;
-            } finally {
-                connection.disconnect();
+                BeaconReader reader = readerFor(beacon);
+                if (reader == null) {
+                    beaconDao.delete(beacon);
+                    continue;
+                }
+                LongPoller poller = new LongPoller(reader, waitSeconds,
+                        new LongPoller.Listener() {
+                            @Override
+                            public boolean onRead(@NonNull LongPoller p, int outcome,
+                                                  @NonNull List<String> entries) {
+                                return finishLongPoll(beacon, p, outcome, entries);
+                            }
+                        });
+                longPollers.put(beacon.getId(), poller);
+                poller.start();
             }
+        }
+    }
 
-            // Try to parse the byte array into a URL, and then handle it.
-            String url = new String(beacon_input, Charsets.UTF_8);
-            AndroidRoutines.logDuringDev(TAG, "Beacon produced: " + url);
-            // Fetch the URL, unpack the file, and then fetch that file.
-            Uri toHandle = Uri.parse(url);
-            mc.handleUri(toHandle);
+    /** Stop holding requests open to the beacons, if any are. */
+    @AnyThread
+    private void stopLongPolls() {
+        synchronized (longPollers) {
+            for (LongPoller poller : longPollers.values()) {
+                poller.stop();
+            }
+            longPollers.clear();
         }
     }
 
+    /**
+     * Hand the new entries of a beacon that is held open to the {@link MainController}, and keep
+     * the validators of the read once they were taken. Entries that were handled before are left
+     * to the in-flight registry and the album table to skip.
+     * @param beacon the beacon, with the validators of the last read that was handled.
+     * @param poller the poller that read it.
+     * @param outcome what the read found.
+     * @param entries the entries of the beacon, if it changed.
+     * @return false if any entry couldn't be taken. The reader is then rewound to the last read
+     *          that was handled, so the poller reads the same entries again after a backoff.
+     */
+    @WorkerThread
+    private boolean finishLongPoll(Beacon beacon, LongPoller poller, int outcome,
+                                   List<String> entries) {
+        MainController controller = mc;
+        if (controller == null) {
+            // Destroyed while the request was held.
+            poller.stop();
+            return true;
+        }
+        BeaconReader reader = poller.getReader();
+        if (outcome == BeaconScheduler.CHANGED && !entries.isEmpty()) {
+            List<Uri> toHandle = new ArrayList<>(entries.size());
+            for (String entry : entries) {
+                toHandle.add(Uri.parse(entry));
+            }
+            AndroidRoutines.logDuringDev(TAG, beacon.getUrl() + " pushed " + toHandle.size()
+                    + " entries");
+            if (!controller.handleUris(toHandle)) {
+                Log.d(TAG, "Not every entry of " + beacon.getUrl() + " was taken, reading it"
+                        + " again later");
+                reader.rewind(beacon.getEtag(), beacon.getLastModified(), beacon.getHash());
+                return false;
+            }
+        }
+        if (storeValidators(beacon, reader)) {
+            beaconDao.update(beacon);
+        }
+        return true;
+    }
+
+    /**
+     * The time till the next beacon is due.
+     * @return milliseconds, zero if one is overdue. With no beacons, the longest quiet interval:
+     *          a new beacon is read as soon as it is added.
+     */
+    @WorkerThread
+    private long untilNextBeacon() {
+        long nowMs = System.currentTimeMillis();
+        long delayMs = BeaconScheduler.MAX_QUIET_INTERVAL_MS;
+        for (Beacon beacon : beaconDao.getAll()) {
+            delayMs = Math.min(delayMs, beacon.getNextPollMs() - nowMs);
+        }
+        return Math.max(0, delayMs);
+    }
+
+    /**
+     * Move the single beacon from the preferences, where it was kept before there could be
+     * more than one, into the database along with its validators.
+     * @param pref the preferences of the {@link MainController}, read once so that they can't go
+     *             away halfway through.
+     */
+    @WorkerThread
+    private void migrateBeaconPref(Pref pref) {
+        String url = pref.getString(Pref.Name.BEACON);
+        if (url.length() == 0) {
+            return;
+        }
+        Beacon beacon = new Beacon();
+        beacon.setUrl(url);
+        if (url.equals(pref.getString(Pref.Name.BEACON_VALIDATED))) {
+            beacon.setEtag(pref.getString(Pref.Name.BEACON_ETAG));
+            beacon.setLastModified(pref.getString(Pref.Name.BEACON_LAST_MODIFIED));
+            beacon.setHash(pref.getString(Pref.Name.BEACON_HASH));
+        }
+        beacon.setIntervalMs(BeaconScheduler.MIN_INTERVAL_MS);
+        beacon.setNextPollMs(0);
+        beaconDao.insert(beacon);
+        Log.d(TAG, "Moved beacon " + url + " to the database");
+        pref.modify(Pref.Name.BEACON, "");
+        pref.modify(Pref.Name.BEACON_VALIDATED, "");
+    }
+
+    /**
+     * Check a beacon to see if any content exists. If so, fetch it, and return its entries.
+     * The beacon is read conditionally, by a {@link BeaconReader}. The beacon itself isn't
+     * changed: the reader keeps the new validators, for the caller to store once the entries
+     * were handled.
+     * @param poll the beacon to read. Its outcome, entries and reader are filled in: the outcome
+     *             is {@link BeaconScheduler#CHANGED} if the beacon had something new,
+     *             {@link BeaconScheduler#UNCHANGED} if it didn't, {@link BeaconScheduler#FAILED}
+     *             if it could not be read, and {@link BeaconScheduler#NO_BEACON} if the URL is
+     *             malformed.
+     */
+    @WorkerThread
+    private static void checkBeacon(BeaconPoll poll) {
+        poll.reader = readerFor(poll.beacon);
+        if (poll.reader == null) {
+            poll.outcome = BeaconScheduler.NO_BEACON;
+            return;
+        }
+        poll.outcome = poll.reader.read(0, poll.entries);
+    }
+
+    /**
+     * Create a reader that continues from the last read of a beacon.
+     * @return the reader, or null if the URL of the beacon is malformed.
+     */
+    private static BeaconReader readerFor(Beacon beacon) {
+        try {
+            return new BeaconReader(new URL(beacon.getUrl()), beacon.getEtag(),
+                    beacon.getLastModified(), beacon.getHash());
+        } catch (MalformedURLException e) {
+            Log.d(TAG, "Beacon is malformed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Copy the validators of the last read to the beacon.
+     * @return true if any of them changed.
+     */
+    private static boolean storeValidators(Beacon beacon, BeaconReader reader) {
+        boolean changed = !reader.getEtag().equals(beacon.getEtag())
+                || !reader.getLastModified().equals(beacon.getLastModified())
+                || !reader.getHash().equals(beacon.getHash());
+        beacon.setEtag(reader.getEtag());
+        beacon.setLastModified(reader.getLastModified());
+        beacon.setHash(reader.getHash());
+        return changed;
+    }
+
     /**
      * BroadcastReceiver that listens for a download request and updates when the request was done.
      *
-     * There is a huge problem with this approach!
      * DownloadManager will try to retry downloads, and a download might finish after the process
-     * is dead, or after a reboot. This means that we will never get the onReceive and we
-     * might either be keeping our process in memory longer than we need, or we will fail to
-     * unzip an dlInfo after it has been downloaded.
+     * is dead, or after a reboot. Then we never get the onReceive. So the download request id is
+     * written to disk in the {@link IngestJob} for the
+     * download, and {@link #resumeIngest(FileController.Unzipper)} registers a new receiver when
+     * the process starts up again, or handles the download right away if it has finished.
      *
-     * The only solution is to write the location and download request id to disk, and
-     * check if a download has been finished when the process first starts up. This needs
-     * to be implemented.
+     * Receivers are registered on the application context, so they outlive the activity that
+     * requested the download.
      */
     private class Receiver extends BroadcastReceiver {
         final long mRequestId;
         final Uri mLocation;
         final String mFilename;
         final FileController.Unzipper mUnzipper;
+        /** Set once the download is being handled, so that it is only handled once. */
+        private final AtomicBoolean handled = new AtomicBoolean(false);
 
         public Receiver(long requestId, Uri location, String filename,
                         FileController.Unzipper callWhenComplete) {
@@ -154,21 +455,38 @@ class NetworkController {
 
         @Override
         public void onReceive(final Context context, Intent intent) {
-            // We are never getting called again, so let's just unregister ourselves first.
-            // TODO: This is not a good idea. There might be other downloads in progress, and we
-            // should not remove the entire receiver.
-            context.unregisterReceiver(this);
+            // Every receiver hears about every completed download, since many downloads can
+            // be running at the same time. Only act on the download that we enqueued.
+            long referenceId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+            if (referenceId != mRequestId) {
+                Log.d(TAG, "Ignoring completion of download " + referenceId
+                        + " while waiting for " + mRequestId);
+                return;
+            }
 
-            // Call execute on this if anything bad happens to let the callback know we are
-            // done but that we failed to download anything.
+            handleOnce(context);
+        }
 
-            // check if the broadcast message is for our enqueued download
-            long referenceId = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
+        /**
+         * Handle the finished download, unless it is already being handled. Called when the
+         * download finishes, or when a resumed download turns out to have finished already.
+         * @param context the context this receiver was registered on.
+         */
+        void handleOnce(final Context context) {
+            if (!handled.compareAndSet(false, true)) {
+                return;
+            }
+            // We are never getting called again, so let's unregister ourselves.
+            context.unregisterReceiver(this);
 
-            if (referenceId != mRequestId) {
-                logErrorToast("DownloadManager response mismatch!"
-                        + " Expected = " + mRequestId
-                        + " Received = " + referenceId);
+            if (mc == null) {
+                // The controller was destroyed while the download was running. Leave the job as
+                // it is: it is resumed the next time the process starts.
+                Log.d(TAG, "Not handling download " + mRequestId + " for a destroyed controller");
+                if (mUnzipper != null) {
+                    mUnzipper.putBack();
+                }
+                scheduler.finished();
                 return;
             }
 
@@ -177,7 +495,13 @@ class NetworkController {
             new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    handleDownloadBackgroundThread(context);
+                    try {
+                        handleDownloadBackgroundThread(context);
+                    } finally {
+                        // Successful or not, this download is no longer using the network or
+                        // the disk, so let the next one start.
+                        scheduler.finished();
+                    }
                 }
             }).start();
         }
@@ -229,57 +553,55 @@ class NetworkController {
             int uriIdx = cursor.getColumnIndex(DownloadManager.COLUMN_LOCAL_URI);
             final String dmUri = cursor.getString(uriIdx);
 
+            // And how big the DownloadManager thinks it is, if it knows.
+            int sizeIdx = cursor.getColumnIndex(DownloadManager.COLUMN_TOTAL_SIZE_BYTES);
+            final long expectedSize = cursor.getLong(sizeIdx);
+            cursor.close();
+
             final Uri u = Uri.parse(dmUri);
-            final ContentResolver resolver = context.getContentResolver();
-            int retryCount = 0;
-            try {
-                long size;
-                do {
-                    try {
-                        // Poll every second till the file is non-empty.
-                        //
-                        // This is needed! Maybe my CPU is too busy showing images and we
-                        // need to pause the screen, or I need to check periodically if the
-                        // file size is nonzero. Clearly the file is created, it is just
-                        // empty.
-                        Thread.sleep(1000);
-                        retryCount++;
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                        // But ignore it because we can try reading the file.
-                    }
-                    ParcelFileDescriptor pfd = resolver.openFileDescriptor(u, "r");
-                    if (pfd == null) {
-                        logErrorToast("ParcelFileDescriptor null!");
-                        return;
-                    }
-                    size = pfd.getStatSize();
-                    // TODO: Modify this check to look for the expected size of bytes,
-                    // not just nonzero.
-                } while (size == 0 && retryCount < 100);
-                Log.d(TAG, "opened file with ParcelFileDescriptor " + dmUri
-                        + " of size " + size);
+            if (ContentResolver.SCHEME_FILE.equals(u.getScheme()) && u.getPath() != null) {
+                // The file can still look empty or short right after the download completes.
+                // Wait till all the bytes are on disk, which is usually right away.
+                File downloaded = new File(u.getPath());
+                if (!FileCompletionWatcher.await(downloaded, expectedSize, COMPLETION_TIMEOUT_MS)) {
+                    logErrorToast("Downloaded file incomplete: " + dmUri);
+                    return;
+                }
+            }
 
-            } catch (FileNotFoundException e) {
-                logErrorToast("File not found! " + e.getMessage());
+            final ContentResolver resolver = context.getContentResolver();
+            if (mUnzipper != null && !matchesHash(resolver, u)) {
+                // Don't decrypt or unzip a package that is known to be bad. Fetch it again in
+                // process instead, which checks the hash as the bytes arrive.
+                downloadManager.remove(mRequestId);
+                mUnzipper.downloading(-1);
+                downloadInProcess(mUnzipper);
                 return;
             }
-
-            // Retry count could have been 100, so I need to check file-size again.
             try {
                 final ParcelFileDescriptor pfd = resolver.openFileDescriptor(u, "r");
                 if (pfd == null) {
                     logErrorToast("ParcelFileDescriptor null!");
                     return;
                 }
-                // Print out information about the pfd
+                // Print out information about the pfd. The unzipper reads the package from its
+                // path, so this is the only use of the descriptor.
                 long size = pfd.getStatSize();
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not close " + dmUri + ": " + e.getMessage());
+                }
                 Log.d(TAG, "opened file with ParcelFileDescriptor " + dmUri
-                        + " of size " + size);
+                        + " of size " + size + ", expected " + expectedSize);
+                if (size == 0) {
+                    logErrorToast("Downloaded file is empty: " + dmUri);
+                    return;
+                }
                 if (mUnzipper != null) {
                     // Actually handle the file here, which means unzip it, decrypt it
                     // if required, etc.
-                    mUnzipper.handleFile(mFilename, pfd);
+                    mUnzipper.handleFile(mFilename, null);
                     return;
                 }
             } catch (FileNotFoundException e) {
@@ -291,6 +613,39 @@ class NetworkController {
             logErrorToast("Could not open file successfully for unknown reasons");
         }
 
+        /**
+         * Check a package that the DownloadManager finished against the hash in its URI.
+         * @param resolver to read the package with.
+         * @param u where the DownloadManager put the package.
+         * @return true if the package has the expected hash, or no hash was given.
+         */
+        private boolean matchesHash(ContentResolver resolver, Uri u) {
+            String expected = mUnzipper.dlInfo.contentHash;
+            if (expected.length() == 0) {
+                return true;
+            }
+            String actual;
+            try {
+                InputStream in = resolver.openInputStream(u);
+                if (in == null) {
+                    return false;
+                }
+                try {
+                    actual = CryptoRoutines.sha256(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Could not hash " + u + ": " + e.getMessage());
+                return false;
+            }
+            if (!actual.equals(expected)) {
+                Log.e(TAG, "Hash of " + mLocation + " is " + actual + ", expected " + expected);
+                return false;
+            }
+            return true;
+        }
+
         /**
          * Log an error, show a toast with a message, and execute the error task so that the
          * album entry is cleaned up appropriately.
@@ -310,10 +665,12 @@ class NetworkController {
         this.ctx = ctx;
         this.mc = mainController;
         downloadManager = (DownloadManager) ctx.getSystemService(Context.DOWNLOAD_SERVICE);
+        beaconDao = AlbumDatabase.getDatabase(ctx).beaconDao();
     }
 
     /** Remove all references to internal data structures */
     void destroy() {
+        stopLongPolls();
         ctx = null;
         mc = null;
     }
@@ -321,10 +678,153 @@ class NetworkController {
     /**
      * Download whatever is at this location, unzipping if required, to the default gallery
      * directory.
+     *
+     * The download is queued with the {@link DownloadScheduler} and starts when fewer than
+     * {@link Pref.Name#DOWNLOAD_CONCURRENCY} downloads are running. Newer requests are started
+     * before older ones.
      * @param unzipper an object that can unzip the file correctly once it is downloaded.
      * @return true if the download was requested correctly
      */
-    boolean requestURI(FileController.Unzipper unzipper) {
+    boolean requestURI(final FileController.Unzipper unzipper) {
+        scheduler.setLimit(mc.pref.getInt(Pref.Name.DOWNLOAD_CONCURRENCY));
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                startDownload(unzipper);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sync an album with its manifest. The sync is queued with the {@link DownloadScheduler} like
+     * any other download, and runs on its own thread once a slot is free.
+     * @param syncer an object that can sync the album and record the result.
+     * @return true if the sync was requested correctly
+     */
+    boolean requestSync(final FileController.Syncer syncer) {
+        scheduler.setLimit(mc.pref.getInt(Pref.Name.DOWNLOAD_CONCURRENCY));
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mc == null) {
+                    // Destroyed while the sync waited for its slot.
+                    try {
+                        syncer.drop();
+                    } finally {
+                        scheduler.finished();
+                    }
+                    return;
+                }
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            syncer.sync();
+                        } finally {
+                            scheduler.finished();
+                        }
+                    }
+                }).start();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Tell the downloads whether a slideshow is playing. While it is, they slow down to
+     * {@link Pref.Name#DOWNLOAD_RATE_PLAYING}, so the next image is read and decoded on time.
+     * Once it stops they speed up again, including the ones that are already running.
+     * @param playing true when the slideshow starts, false when it stops.
+     */
+    @AnyThread
+    void setSlideshowPlaying(boolean playing) {
+        readRates(mc.pref);
+        governor.setPlaying(playing);
+        Log.d(TAG, "Slideshow " + (playing ? "playing" : "stopped") + ", downloads limited to "
+                + governor.getGlobalRate() + " bytes/s");
+    }
+
+    /**
+     * Give the {@link #governor} the rates from the preferences, which can change at any time.
+     */
+    @AnyThread
+    private void readRates(@NonNull Pref pref) {
+        governor.setRates(pref.getInt(Pref.Name.DOWNLOAD_RATE) * 1024L,
+                pref.getInt(Pref.Name.DOWNLOAD_RATE_EACH) * 1024L,
+                pref.getInt(Pref.Name.DOWNLOAD_RATE_PLAYING) * 1024L);
+    }
+
+    /**
+     * Start a download that has been given a slot by the {@link #scheduler}. Whatever runs the
+     * download releases the slot once it has been handled, so if it can't be started the slot
+     * is released here. A download for a controller that has been destroyed is put back, to be
+     * resumed the next time the process starts.
+     * @param unzipper an object that can unzip the file correctly once it is downloaded.
+     */
+    @WorkerThread
+    private void startDownload(FileController.Unzipper unzipper) {
+        final MainController controller = mc;
+        final Context context = ctx;
+        if (controller == null || context == null) {
+            Log.d(TAG, "Not starting " + unzipper.dlInfo.location
+                    + " for a destroyed controller");
+            try {
+                unzipper.putBack();
+            } finally {
+                scheduler.finished();
+            }
+            return;
+        }
+        boolean started = false;
+        try {
+            handOffDownload(unzipper, controller.pref, context);
+            started = true;
+        } finally {
+            if (!started) {
+                Log.e(TAG, "Could not start download for " + unzipper.dlInfo.location);
+                scheduler.finished();
+            }
+        }
+    }
+
+    /**
+     * Actually hand the download to the {@link DownloadManager}. Only called by
+     * {@link #startDownload(FileController.Unzipper)}. The {@link Receiver} releases the slot
+     * when the download has been handled.
+     * @param unzipper an object that can unzip the file correctly once it is downloaded.
+     * @param pref the preferences of the controller that is starting the download.
+     * @param context the context of that controller.
+     */
+    @WorkerThread
+    private void handOffDownload(final FileController.Unzipper unzipper, @NonNull Pref pref,
+                                 @NonNull Context context) {
+        readRates(pref);
+        // A single stream from the DownloadManager can't fill a link with high latency, so large
+        // packages are split over several connections in this process.
+        boolean isLarge = unzipper.dlInfo.extractedSize >= ParallelRangeDownloader.MIN_PARALLEL_SIZE
+                && pref.getInt(Pref.Name.DOWNLOAD_CONNECTIONS) > 1;
+        // The DownloadManager only knows a single location, so it can't pick a mirror or move to
+        // another one when the first fails.
+        boolean hasMirrors = unzipper.dlInfo.mirrors.size() > 1;
+        // Nor can it be slowed down.
+        if (isLarge || hasMirrors || governor.isLimited()
+                || pref.getInt(Pref.Name.DOWNLOADER) == DOWNLOADER_IN_PROCESS) {
+            // The in-process downloader blocks till it is done, so it needs its own thread.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        unzipper.downloading(-1);
+                        downloadInProcess(unzipper);
+                    } finally {
+                        scheduler.finished();
+                    }
+                }
+            }).start();
+            return;
+        }
+
         NetworkRoutines.DownloadInfo dlInfo = unzipper.dlInfo;
 
         // Let's not trust the file name provided to us, and let's write this as an ID that we
@@ -336,11 +836,213 @@ class NetworkController {
                         Environment.DIRECTORY_PICTURES, dlInfo.pathOnDisk);
 
         long requestId = downloadManager.enqueue(request);
+        Log.d(TAG, "Started download " + requestId + " for " + dlInfo.location);
+        unzipper.downloading(requestId);
+        listenForDownload(requestId, unzipper, context);
+    }
 
+    /**
+     * Register a {@link Receiver} for a download the DownloadManager is running.
+     * @param requestId the id the DownloadManager gave the download.
+     * @param unzipper the unzipper to hand the file to once it is downloaded.
+     * @param context the context of the controller that is listening.
+     * @return the receiver that was registered.
+     */
+    private Receiver listenForDownload(long requestId, FileController.Unzipper unzipper,
+                                       @NonNull Context context) {
+        NetworkRoutines.DownloadInfo dlInfo = unzipper.dlInfo;
         IntentFilter filter = new IntentFilter(DownloadManager.ACTION_DOWNLOAD_COMPLETE);
         Receiver r = new Receiver(requestId, dlInfo.location, dlInfo.pathOnDisk, unzipper);
-        ctx.registerReceiver(r, filter);
+        context.getApplicationContext().registerReceiver(r, filter);
+        return r;
+    }
 
-        return true;
+    /**
+     * Continue an ingest job that a previous process didn't finish, from the stage it reached.
+     * The job waits for a slot in the {@link DownloadScheduler} like any other download.
+     *
+     * <ul>
+     *     <li>A job that was queued is downloaded.</li>
+     *     <li>A job the DownloadManager was downloading is picked up again: if the download
+     *     finished while the process was dead, it is handled right away, and otherwise when it
+     *     finishes. A download that the DownloadManager has forgotten is started again.</li>
+     *     <li>A job that was downloaded in process is downloaded again, continuing from its
+     *     checkpoint if it has one.</li>
+     *     <li>A job that was being decrypted or unpacked is unpacked again from the package on
+     *     disk, without downloading anything.</li>
+     * </ul>
+     * @param unzipper an unzipper from {@link FileController#resumeIngests()}.
+     */
+    void resumeIngest(final FileController.Unzipper unzipper) {
+        scheduler.setLimit(mc.pref.getInt(Pref.Name.DOWNLOAD_CONCURRENCY));
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeBackgroundThread(unzipper);
+                    }
+                }).start();
+            }
+        });
+    }
+
+    /**
+     * Continue a single job once it has a slot, as described in
+     * {@link #resumeIngest(FileController.Unzipper)}.
+     */
+    @WorkerThread
+    private void resumeBackgroundThread(FileController.Unzipper unzipper) {
+        final Context context = ctx;
+        if (mc == null || context == null) {
+            Log.d(TAG, "Not resuming " + unzipper.dlInfo.location + " for a destroyed controller");
+            try {
+                unzipper.putBack();
+            } finally {
+                scheduler.finished();
+            }
+            return;
+        }
+        int state = unzipper.getState();
+        long requestId = unzipper.getDownloadId();
+        if (state == IngestJob.DOWNLOADING && requestId >= 0) {
+            Receiver r = null;
+            try {
+                if (downloadStatus(requestId) >= 0) {
+                    r = listenForDownload(requestId, unzipper, context);
+                }
+            } catch (RuntimeException e) {
+                // No receiver is listening, so nothing else would release the slot.
+                scheduler.finished();
+                throw e;
+            }
+            if (r == null) {
+                Log.d(TAG, "DownloadManager forgot download " + requestId + ", starting over");
+                startDownload(unzipper);
+                return;
+            }
+            // Look again now that the receiver is listening, in case it finished in between.
+            int status = downloadStatus(requestId);
+            if (status == DownloadManager.STATUS_SUCCESSFUL
+                    || status == DownloadManager.STATUS_FAILED) {
+                // Finished while nobody was listening. The receiver handles it like a broadcast.
+                r.handleOnce(context.getApplicationContext());
+            }
+            // Otherwise it is still running, and the receiver hears about it when it is done.
+            return;
+        }
+        if (state == IngestJob.DECRYPTING || state == IngestJob.UNPACKING) {
+            try {
+                unzipper.handleFile(unzipper.dlInfo.pathOnDisk, null);
+            } finally {
+                scheduler.finished();
+            }
+            return;
+        }
+        // Queued, or downloaded in process: start the download.
+        startDownload(unzipper);
+    }
+
+    /**
+     * The status of a download, as the DownloadManager sees it.
+     * @param requestId the id the DownloadManager gave the download.
+     * @return one of the DownloadManager.STATUS_* values, or -1 if it doesn't know the download.
+     */
+    @WorkerThread
+    private int downloadStatus(long requestId) {
+        Cursor cursor = downloadManager.query(new DownloadManager.Query().setFilterById(requestId));
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return -1;
+            }
+            return cursor.getInt(cursor.getColumnIndex(DownloadManager.COLUMN_STATUS));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Download the package in this process with a {@link ParallelRangeDownloader}, and then hand it
+     * to the unzipper exactly like the {@link Receiver} does for {@link DownloadManager} downloads.
+     *
+     * Large packages are fetched over several connections. Smaller ones use a single connection
+     * and leave a checkpoint behind if they fail part of the way, so requesting the same file
+     * again continues from where it stopped.
+     *
+     * A package on several mirrors is downloaded from the one that the {@link MirrorSelector}
+     * expects to be fastest, moving on to the next one if it fails part of the way.
+     *
+     * The download is held to the rates in the preferences by the {@link #governor}.
+     *
+     * If the URI gave the hash of the package, the package is hashed while it downloads. A
+     * package that doesn't match is downloaded again before the unzipper ever sees it, and
+     * abandoned if that doesn't match either.
+     * @param unzipper an object that can unzip the file correctly once it is downloaded.
+     */
+    @WorkerThread
+    private void downloadInProcess(FileController.Unzipper unzipper) {
+        NetworkRoutines.DownloadInfo dlInfo = unzipper.dlInfo;
+        File destination = new File(Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_PICTURES), dlInfo.pathOnDisk);
+        List<URL> sources = new ArrayList<>(dlInfo.mirrors.size());
+        for (Uri mirror : dlInfo.mirrors) {
+            try {
+                sources.add(new URL(mirror.toString()));
+            } catch (MalformedURLException e) {
+                Log.d(TAG, "Ignoring malformed mirror " + mirror);
+            }
+        }
+        if (sources.isEmpty()) {
+            failDownload(unzipper, "Cannot download from " + dlInfo.location);
+            return;
+        }
+        sources = MirrorSelector.rank(sources, dlInfo.extractedSize);
+
+        Log.d(TAG, "Downloading in process: " + sources + " to " + destination);
+        for (int attempt = 1; ; attempt++) {
+            ParallelRangeDownloader downloader =
+                    new ParallelRangeDownloader(sources, destination);
+            downloader.setMaxConnections(mc.pref.getInt(Pref.Name.DOWNLOAD_CONNECTIONS));
+            downloader.setExpectedHash(dlInfo.contentHash);
+            downloader.setMeter(governor.newMeter());
+            if (downloader.download()) {
+                break;
+            }
+            if (!downloader.isCorrupt()) {
+                failDownload(unzipper, "Failed to download file: " + dlInfo.location);
+                return;
+            }
+            if (attempt >= MAX_HASH_ATTEMPTS) {
+                failDownload(unzipper, "Downloaded file is corrupt: " + dlInfo.location);
+                return;
+            }
+            // The corrupt copy is gone. Try again, starting with another mirror if there is one.
+            Log.d(TAG, "Corrupt download of " + dlInfo.location + ", downloading again");
+            Collections.rotate(sources, -1);
+        }
+
+        if (!destination.isFile()) {
+            failDownload(unzipper, "File not found! " + destination.getAbsolutePath());
+            return;
+        }
+        // The unzipper reads the package from its path, so no descriptor is opened for it.
+        unzipper.handleFile(dlInfo.pathOnDisk, null);
+    }
+
+    /**
+     * Log an error, show a toast, and tell the unzipper that the download failed so it can clean
+     * up after itself.
+     * @param unzipper the unzipper that was waiting for the download.
+     * @param message a human-readable message to show and log.
+     */
+    private void failDownload(FileController.Unzipper unzipper, String message) {
+        Log.e(TAG, message);
+        mc.toast(message);
+        unzipper.handleFile(FileController.Unzipper.FILENAME_ERROR,
+                FileController.Unzipper.PFD_ERROR);
     }
 }
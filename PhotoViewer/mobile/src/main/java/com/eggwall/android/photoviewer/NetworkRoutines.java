@@ -5,6 +5,13 @@ import android.content.Intent;
 import android.net.Uri;
 import android.util.Log;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Set;
 
 import androidx.annotation.NonNull;
@@ -44,13 +51,14 @@ class NetworkRoutines {
 
     // Options that go along with REQ_PACKAGE_SRC
     /**
-     * CGI param key: is this file encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING}.
-     * Provided as an option along with {@link #REQ_PACKAGE_SRC}
+     * CGI param key: is this file encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING},
+     * or in the {@link SegmentedPackage} format. The format is told apart by the first bytes of
+     * the package. Provided as an option along with {@link #REQ_PACKAGE_SRC}
      */
     private static final String KEY_ENCRYPTED = "encrypted";
 
     /**
-     * CGI param key: Initialization vector as byte[]
+     * CGI param key: Initialization vector as byte[]. Not needed for a {@link SegmentedPackage}.
      * Provided as an option along with {@link #REQ_PACKAGE_SRC}
      */
     private static final String KEY_INITIALIZATION_VECTOR = "iv";
@@ -67,6 +75,21 @@ class NetworkRoutines {
      */
     private static final String KEY_SIZE = "size";
 
+    /**
+     * CGI param key: SHA-256 of the package as it is downloaded, as hex.
+     * Provided as an option along with {@link #REQ_PACKAGE_SRC}
+     */
+    private static final String KEY_HASH = "hash";
+
+    /**
+     * CGI param key: another URL where the same package is available. Can be repeated, once for
+     * every mirror. The package is downloaded from whichever of these and
+     * {@link #REQ_PACKAGE_SRC} is fastest, and the album is still known by
+     * {@link #REQ_PACKAGE_SRC}.
+     * Provided as an option along with {@link #REQ_PACKAGE_SRC}
+     */
+    private static final String KEY_MIRROR = "mirror";
+
     /**
      * CGI param key: Human readable dlInfo name
      * Provided as an option along with {@link #REQ_PACKAGE_SRC}
@@ -76,6 +99,16 @@ class NetworkRoutines {
     /** CGI param key: URL to monitor. */
     private static final String REQ_MONITOR_SRC = "beacon";
 
+    /** CGI param key: URL of an album's sync manifest. See {@link AlbumSync}. */
+    private static final String REQ_SYNC_SRC = "manifest";
+
+    /**
+     * CGI param key: URL of the package that the album was first downloaded from, if it was.
+     * Provided as an option along with {@link #REQ_SYNC_SRC} to update an album that was
+     * downloaded as a package.
+     */
+    private static final String KEY_SYNC_BASE = "base";
+
 
     /**
      * All the information that is provided by a URL. This is constructed when a
@@ -95,18 +128,20 @@ class NetworkRoutines {
 
         /**
          * True if the image package is encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING}
+         * or is a {@link SegmentedPackage}.
          */
         final boolean isEncrypted;
 
         /**
-         * If encrypted, the initialization vector.
+         * If encrypted with AES/CBC, the initialization vector. Null for a
+         * {@link SegmentedPackage}, which keeps its own nonces.
          */
         final byte[] initializationVector;
 
         /**
-         * Final size of the entire package when it is extracted.
+         * Final size of the entire package when it is extracted, in bytes.
          */
-        final int extractedSize;
+        final long extractedSize;
 
         /**
          * True if the image package is a zip. This is the only format that is supported.
@@ -125,8 +160,22 @@ class NetworkRoutines {
          */
         public final String name;
 
+        /**
+         * SHA-256 of the package as it is downloaded, as lowercase hex. Empty if the publisher
+         * didn't provide one. Packages with the same hash are the same album, whatever their
+         * location or name.
+         */
+        final String contentHash;
+
+        /**
+         * Every place the same package can be downloaded from: {@link #location} first, then the
+         * mirrors in the order the publisher gave them.
+         */
+        final List<Uri> mirrors;
+
         DownloadInfo(Uri location, String pathOnDisk, boolean isEncrypted, byte[] initializationVector,
-                     int extractedSize, boolean isZipped, String keyUid, String name) {
+                     long extractedSize, boolean isZipped, String keyUid, String name,
+                     String contentHash, List<Uri> mirrors) {
             this.location = location;
             this.pathOnDisk = pathOnDisk;
             this.isEncrypted = isEncrypted;
@@ -135,6 +184,8 @@ class NetworkRoutines {
             this.isZipped = isZipped;
             this.keyUid = keyUid;
             this.name = name;
+            this.contentHash = contentHash;
+            this.mirrors = mirrors;
         }
 
         /** String to print out what this object represents. Debugging only. */
@@ -148,7 +199,9 @@ class NetworkRoutines {
                         + " isZipped = " + isZipped
                         + " initializationVector = " + CryptoRoutines.bToS(initializationVector)
                         + " keyUUID = " + keyUid
-                        + " name = " + name;
+                        + " name = " + name
+                        + " contentHash = " + contentHash
+                        + " mirrors = " + mirrors;
             }
             return "Download Info object";
         }
@@ -160,7 +213,44 @@ class NetworkRoutines {
      * from this, like the {@link java.net.URI}, for example, without a problem.
      */
     final static DownloadInfo EMPTY =
-            new DownloadInfo(Uri.EMPTY, "", false, null, 0, false, "", "EMPTY");
+            new DownloadInfo(Uri.EMPTY, "", false, null, 0, false, "", "EMPTY", "",
+                    Collections.singletonList(Uri.EMPTY));
+
+    /**
+     * All the information required to sync an album with its manifest. This is constructed
+     * when a {@link #REQ_SYNC_SRC} CGI param is present.
+     */
+    static class SyncInfo {
+        /** Where the sync manifest is. */
+        final Uri manifest;
+
+        /**
+         * The remote location that identifies the album in the database: the package it was
+         * first downloaded from, or the manifest itself for albums that only ever synced.
+         */
+        final String remoteLocation;
+
+        /** Human-readable name of the album. */
+        final String name;
+
+        /** True if every image is encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING} */
+        final boolean isEncrypted;
+
+        /** The UUID of the key that the images are encrypted with. */
+        final String keyUid;
+
+        SyncInfo(Uri manifest, String remoteLocation, String name, boolean isEncrypted,
+                 String keyUid) {
+            this.manifest = manifest;
+            this.remoteLocation = remoteLocation;
+            this.name = name;
+            this.isEncrypted = isEncrypted;
+            this.keyUid = keyUid;
+        }
+    }
+
+    /** A sync object that signifies that there is nothing to sync. */
+    final static SyncInfo EMPTY_SYNC = new SyncInfo(Uri.EMPTY, "", "EMPTY", false, "");
 
     /**
      * All the information required to import a secret key into the database. This is constructed
@@ -206,10 +296,15 @@ class NetworkRoutines {
      */
     static final int TYPE_DEV_CONTROL = 3;
     /**
-     * This is an Intent to monitor a URI, which contains a single string which is a
-     * {@link #TYPE_DOWNLOAD} or {@link #TYPE_SECRET_KEY} <b>only</b>.
+     * This is an Intent to monitor a URI, which contains a manifest of {@link #TYPE_DOWNLOAD} or
+     * {@link #TYPE_SECRET_KEY} URIs, one on every line. See {@link #readManifest(Reader)}.
      */
     static final int TYPE_MONITOR = 4;
+    /**
+     * This is an Intent to update an existing album from a sync manifest, fetching only the
+     * images that are missing or have changed. See {@link AlbumSync}.
+     */
+    static final int TYPE_SYNC = 5;
 
     /**
      * Get the type of intent this application was started with.
@@ -328,6 +423,9 @@ class NetworkRoutines {
         if (lastPathSegment.equalsIgnoreCase("monitor")) {
             return TYPE_MONITOR;
         }
+        if (lastPathSegment.equalsIgnoreCase("sync")) {
+            return TYPE_SYNC;
+        }
         if (lastPathSegment.equalsIgnoreCase("control")) {
             if (AndroidRoutines.development) {
                 return TYPE_DEV_CONTROL;
@@ -371,6 +469,96 @@ class NetworkRoutines {
         return beacon;
     }
 
+    /**
+     * Get the information to sync an album from a URI of the kind
+     * photoviewer://eggwall/sync?manifest=http%3A%2F%2Fexample.com%2Fal%2Fmanifest&name=Trip
+     * @param uri a URI that was passed in an Intent.
+     * @return information to sync an album, or {@link #EMPTY_SYNC} if the manifest is missing.
+     */
+    static @NonNull SyncInfo getSyncInfo(@NonNull Uri uri) {
+        Set<String> names = uri.getQueryParameterNames();
+
+        // REQUIRED: Where the manifest is.
+        if (!names.contains(REQ_SYNC_SRC)) {
+            return EMPTY_SYNC;
+        }
+        Uri manifest = Uri.parse(Uri.decode(uri.getQueryParameter(REQ_SYNC_SRC)));
+
+        // Optional: the package this album was downloaded from. Otherwise, the manifest is what
+        // identifies this album.
+        String remoteLocation = manifest.toString();
+        if (names.contains(KEY_SYNC_BASE)) {
+            remoteLocation = Uri.parse(Uri.decode(uri.getQueryParameter(KEY_SYNC_BASE)))
+                    .toString();
+        }
+        String albumName = "unspecified";
+        if (names.contains(KEY_ALBUMNAME)) {
+            albumName = Uri.decode(uri.getQueryParameter(KEY_ALBUMNAME));
+        }
+        boolean isEncrypted = false;
+        if (names.contains(KEY_ENCRYPTED)) {
+            String encoded = uri.getQueryParameter(KEY_ENCRYPTED);
+            if (encoded != null) {
+                isEncrypted = encoded.equalsIgnoreCase("y") || encoded.equalsIgnoreCase("t");
+            }
+        }
+        String keyUid = "";
+        if (names.contains(KEY_UNIQUEID)) {
+            keyUid = Uri.decode(uri.getQueryParameter(KEY_UNIQUEID));
+        }
+        return new SyncInfo(manifest, remoteLocation, albumName, isEncrypted, keyUid);
+    }
+
+    /**
+     * Read a beacon manifest: one URI on every line. Blank lines and lines starting with '#' are
+     * ignored, as are lines longer than {@link NetworkController#MAX_BEACON_SIZE} since those
+     * can't be valid URIs. The manifest is read a character at a time, so a huge manifest (or a
+     * huge line) never needs to be held in memory.
+     *
+     * @param in the manifest, which should be buffered. Read till the end but not closed.
+     * @return the entries in the order they first appear, with duplicates removed. Possibly empty.
+     * @throws IOException if the manifest could not be read.
+     */
+    static @NonNull List<String> readManifest(@NonNull Reader in) throws IOException {
+        LinkedHashSet<String> entries = new LinkedHashSet<>();
+        StringBuilder line = new StringBuilder();
+        boolean tooLong = false;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n' || c == '\r') {
+                addManifestEntry(entries, line, tooLong);
+                line.setLength(0);
+                tooLong = false;
+            } else if (line.length() >= NetworkController.MAX_BEACON_SIZE) {
+                tooLong = true;
+            } else {
+                line.append((char) c);
+            }
+        }
+        addManifestEntry(entries, line, tooLong);
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Add a single line of a manifest to the entries, if it is a plausible entry.
+     * @param entries all entries found so far.
+     * @param line the line, without any line terminators.
+     * @param tooLong true if the line was longer than the maximum and has been cut short.
+     */
+    private static void addManifestEntry(Set<String> entries, CharSequence line,
+                                         boolean tooLong) {
+        String entry = line.toString().trim();
+        if (entry.length() == 0 || entry.startsWith("#")) {
+            return;
+        }
+        if (tooLong) {
+            Log.d(TAG, "Manifest entry too long, ignored: "
+                    + entry.substring(0, Math.min(80, entry.length())));
+            return;
+        }
+        entries.add(entry);
+    }
+
     /**
      * During development only, allow intrusive control of the internal data structures and
      * functionality.
@@ -470,9 +658,10 @@ class NetworkRoutines {
         boolean isEncryptedR = false;
         byte[] initVectorR = null;
         boolean isZippedR = false;
-        int extractedSizeR = 0;
+        long extractedSizeR = 0;
         String keyUid="";
         String albumNameR = "unspecified";
+        String contentHashR = "";
 
         Set<String> names = uri.getQueryParameterNames();
 
@@ -517,7 +706,11 @@ class NetworkRoutines {
             // Size in bytes.
             String encoded = uri.getQueryParameter(KEY_SIZE);
             if (encoded != null) {
-                extractedSizeR = Integer.parseInt(encoded);
+                try {
+                    extractedSizeR = Long.parseLong(encoded.trim());
+                } catch (NumberFormatException e) {
+                    Log.e(TAG, "Ignoring bad size: " + encoded);
+                }
             }
         }
         // Optional: Name of the album, though I should make this required.
@@ -533,7 +726,27 @@ class NetworkRoutines {
             keyUid = Uri.decode(encoded);
         }
 
+        // Optional: Hash of the package, to recognize it under any name or location.
+        if (names.contains(KEY_HASH)) {
+            String encoded = uri.getQueryParameter(KEY_HASH);
+            if (encoded != null) {
+                contentHashR = encoded.trim().toLowerCase(Locale.US);
+            }
+        }
+
+        // Optional: Mirrors of the package, in the order they should be considered.
+        List<Uri> mirrorsR = new ArrayList<>();
+        mirrorsR.add(uriR);
+        if (names.contains(KEY_MIRROR)) {
+            for (String encoded : uri.getQueryParameters(KEY_MIRROR)) {
+                Uri mirror = Uri.parse(Uri.decode(encoded));
+                if (!mirrorsR.contains(mirror)) {
+                    mirrorsR.add(mirror);
+                }
+            }
+        }
+
         return new DownloadInfo(uriR, null, isEncryptedR, initVectorR,
-                extractedSizeR, isZippedR, keyUid, albumNameR);
+                extractedSizeR, isZippedR, keyUid, albumNameR, contentHashR, mirrorsR);
     }
 }
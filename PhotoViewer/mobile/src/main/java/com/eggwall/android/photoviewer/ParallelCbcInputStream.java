@@ -0,0 +1,286 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Decrypts a file encrypted with {@link CryptoRoutines#AES_CBC_PKCS5_PADDING} on every core,
+ * and reads like {@link CryptoRoutines#decryptingStream(InputStream, byte[], SecretKey)}.
+ *
+ * Encrypting with CBC is sequential, since every block is mixed with the cipher text of the
+ * block before it. Decrypting isn't: a block only needs its own cipher text and that of the
+ * block before, and both are already on disk. So the file is cut into chunks of
+ * {@link #chunkSize} bytes, and every chunk is decrypted on its own, with the last cipher block
+ * of the chunk before as its IV. The chunks are decrypted on a pool with a thread for every
+ * core, and handed out in order.
+ *
+ * Only a few chunks are decrypted ahead of the reader, so memory use is bounded however large
+ * the file is, and a reader that is slower than the decryption holds it back. The padding is
+ * taken off the last chunk, and checked.
+ */
+class ParallelCbcInputStream extends InputStream {
+    private static final String TAG = "ParallelCbcInputStream";
+
+    /** Cipher text bytes decrypted by a single task, unless asked otherwise. */
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    /** The AES block size, and the length of the IV. */
+    private static final int BLOCK_SIZE = 16;
+
+    /** Decrypts single chunks: the padding is handled here. */
+    private static final String AES_CBC_NO_PADDING = "AES/CBC/NoPadding";
+
+    /** A thread for every core, shared by every stream. Threads don't keep the process alive. */
+    private static ExecutorService pool = null;
+
+    /** A cipher for every thread of the pool, so that they are only created once. */
+    private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<>();
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final byte[] iv;
+    private final SecretKey key;
+    private final ExecutorService executor;
+    private final int chunkSize;
+    private final long length;
+    private final int chunkCount;
+    private final int readAhead;
+
+    /** Chunks that were handed to the pool, in order. */
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    /** The next chunk to hand to the pool. */
+    private int nextChunk = 0;
+
+    /** The plain text being read, and the position in it. */
+    private byte[] current = new byte[0];
+    private int position = 0;
+
+    /**
+     * Start decrypting a file on the shared pool.
+     * @param cipherFile a file encrypted with AES/CBC and PKCS5 padding.
+     * @param iv the initialization vector it was encrypted with.
+     * @param key the key it was encrypted with.
+     * @throws IOException if the file can't be read, or can't be cipher text.
+     */
+    ParallelCbcInputStream(@NonNull File cipherFile, @NonNull byte[] iv, @NonNull SecretKey key)
+            throws IOException {
+        this(cipherFile, iv, key, DEFAULT_CHUNK_SIZE, sharedPool(),
+                Runtime.getRuntime().availableProcessors() + 2);
+    }
+
+    /**
+     * Start decrypting a file.
+     * @param cipherFile a file encrypted with AES/CBC and PKCS5 padding.
+     * @param iv the initialization vector it was encrypted with.
+     * @param key the key it was encrypted with.
+     * @param chunkSize cipher text bytes in every chunk, rounded up to whole blocks.
+     * @param executor runs the chunks.
+     * @param readAhead the most chunks that are decrypted ahead of the reader.
+     * @throws IOException if the file can't be read, or can't be cipher text.
+     */
+    ParallelCbcInputStream(@NonNull File cipherFile, @NonNull byte[] iv, @NonNull SecretKey key,
+                           int chunkSize, @NonNull ExecutorService executor, int readAhead)
+            throws IOException {
+        this.file = new RandomAccessFile(cipherFile, "r");
+        this.channel = file.getChannel();
+        this.iv = iv;
+        this.key = key;
+        this.executor = executor;
+        this.chunkSize = Math.max(1, (chunkSize + BLOCK_SIZE - 1) / BLOCK_SIZE) * BLOCK_SIZE;
+        this.readAhead = Math.max(1, readAhead);
+        this.length = file.length();
+        if (length == 0 || length % BLOCK_SIZE != 0) {
+            file.close();
+            throw new IOException("Not AES/CBC cipher text: " + length + " bytes");
+        }
+        this.chunkCount = (int) ((length + this.chunkSize - 1) / this.chunkSize);
+        fill();
+    }
+
+    /** The pool every stream shares, created the first time it is needed. */
+    static synchronized ExecutorService sharedPool() {
+        if (pool == null) {
+            final AtomicInteger count = new AtomicInteger();
+            pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull Runnable r) {
+                            Thread t = new Thread(r, "Decrypt-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        }
+        return pool;
+    }
+
+    /** Hand chunks to the pool till {@link #readAhead} of them are waiting. */
+    private void fill() {
+        while (pending.size() < readAhead && nextChunk < chunkCount) {
+            final int chunk = nextChunk++;
+            pending.add(executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return decryptChunk(chunk);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Decrypt a single chunk. Runs on the pool.
+     * @param chunk which chunk, from 0.
+     * @return the plain text of the chunk, without padding if it is the last one.
+     */
+    private byte[] decryptChunk(int chunk) throws IOException, GeneralSecurityException {
+        long start = (long) chunk * chunkSize;
+        int size = (int) Math.min(chunkSize, length - start);
+        // The IV of a chunk is the last cipher block of the chunk before it.
+        byte[] chunkIv;
+        if (chunk == 0) {
+            chunkIv = iv;
+        } else {
+            chunkIv = new byte[BLOCK_SIZE];
+            readFully(start - BLOCK_SIZE, chunkIv);
+        }
+        byte[] cipherText = new byte[size];
+        readFully(start, cipherText);
+
+        Cipher cipher = CIPHERS.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(AES_CBC_NO_PADDING);
+            CIPHERS.set(cipher);
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(chunkIv));
+        // Decrypted in place: CBC with no padding gives exactly as many bytes back.
+        int plainLength = cipher.doFinal(cipherText, 0, size, cipherText, 0);
+        if (chunk == chunkCount - 1) {
+            plainLength -= padding(cipherText, plainLength);
+        }
+        if (plainLength == cipherText.length) {
+            return cipherText;
+        }
+        byte[] plain = new byte[plainLength];
+        System.arraycopy(cipherText, 0, plain, 0, plainLength);
+        return plain;
+    }
+
+    /**
+     * Check the PKCS5 padding at the end of the plain text.
+     * @return the number of padding bytes.
+     * @throws IOException if the padding is wrong, which usually means the wrong key.
+     */
+    private static int padding(byte[] plain, int length) throws IOException {
+        int pad = plain[length - 1] & 0xff;
+        if (pad < 1 || pad > BLOCK_SIZE) {
+            throw new IOException("Bad padding");
+        }
+        for (int i = length - pad; i < length; i++) {
+            if ((plain[i] & 0xff) != pad) {
+                throw new IOException("Bad padding");
+            }
+        }
+        return pad;
+    }
+
+    /** Read bytes from a position in the file, from any thread. */
+    private void readFully(long at, byte[] into) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(into);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, at + buffer.position()) < 0) {
+                throw new EOFException("Cipher text ends at " + at);
+            }
+        }
+    }
+
+    /**
+     * Move on to the next chunk that has plain text in it.
+     * @return false at the end of the file.
+     */
+    private boolean advance() throws IOException {
+        while (position >= current.length) {
+            Future<byte[]> next = pending.poll();
+            if (next == null) {
+                return false;
+            }
+            try {
+                current = next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while decrypting");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Decryption failed", cause);
+            }
+            position = 0;
+            fill();
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!advance()) {
+            return -1;
+        }
+        return current[position++] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!advance()) {
+            return -1;
+        }
+        int count = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current.length - position;
+    }
+
+    /** Stop decrypting, and close the file. */
+    @Override
+    public void close() throws IOException {
+        for (Future<byte[]> future : pending) {
+            future.cancel(true);
+        }
+        pending.clear();
+        nextChunk = chunkCount;
+        Log.d(TAG, "Closing " + chunkCount + " chunks");
+        file.close();
+    }
+}
@@ -0,0 +1,644 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Downloads a large file over several connections at once, each fetching a different byte range.
+ *
+ * On a link with high latency, a single TCP connection spends much of its time waiting for
+ * acknowledgements and never fills the pipe. Here the file is split into chunks, and a small
+ * number of connections each take the next chunk that nobody has fetched yet and write it
+ * straight to its place in the file. The file on disk is therefore complete and in order once
+ * the last chunk arrives, and the {@link FileController.Unzipper} reads it like any other.
+ *
+ * The number of connections adapts to what the link gives us. The download starts with one
+ * connection, and every {@link #SAMPLE_MS} the throughput is measured. Another connection is
+ * added as long as the previous one raised the throughput by at least {@link #GAIN}. Once a new
+ * connection stops helping, no more are added: the link is full, and more connections would
+ * only take bandwidth away from everything else. The same goes for a download that is held back
+ * by a {@link BandwidthGovernor.Meter}: the connections share the one meter, so a download that
+ * is at its limit doesn't gain from more of them and doesn't open them.
+ *
+ * Servers that don't support ranges, and files smaller than {@link #MIN_PARALLEL_SIZE}, are
+ * handed to a {@link RangeDownloader}, which uses a single connection and resumes across
+ * process restarts. A parallel download doesn't survive the process: it starts over.
+ *
+ * A file that is on several mirrors is fetched from the first one that answers. When a chunk
+ * fails, every connection moves on to the next mirror, and the chunk continues from the byte it
+ * reached. Only the mirror that was probed is sent the If-Range validator, since validators
+ * differ between servers: the others have to report the same length.
+ *
+ * If the hash of the file is known, it is computed while the download runs: whenever the chunks
+ * at the start of the file are all on disk, the worker that fetched the last of them hashes them,
+ * reading back what was just written. So by the time the last chunk arrives, nearly all of the
+ * file has been hashed, and a file that doesn't match is thrown away before anything reads it.
+ *
+ * Interrupting the thread that called {@link #download()} stops every connection. The download
+ * fails once the workers have all ended, and the interrupt is left set for the caller to see.
+ */
+class ParallelRangeDownloader {
+    private static final String TAG = "ParallelRangeDownloader";
+
+    /** Files smaller than this are downloaded over a single connection. */
+    static final long MIN_PARALLEL_SIZE = 16 * 1024 * 1024;
+
+    /** Default size of each range that is requested. */
+    static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /** Default maximum number of connections used for a single file. */
+    static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    /** How often the throughput is measured, and a connection perhaps added. */
+    private static final long SAMPLE_MS = 500;
+
+    /** A new connection needs to raise the throughput by this factor to be worth keeping. */
+    private static final double GAIN = 1.10;
+
+    /** Attempts for a single chunk before the whole download is abandoned. */
+    private static final int MAX_CHUNK_ATTEMPTS = 4;
+
+    /** Size of the buffer used to read from the network. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Every place the file can be downloaded from, the preferred one first. */
+    private final List<URL> sources;
+
+    /** Where the file is written to, once it is complete. */
+    private final File destination;
+
+    /** Holds the chunks downloaded so far, at their final positions. */
+    private final File partial;
+
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private long minParallelSize = MIN_PARALLEL_SIZE;
+
+    // State shared with the workers, guarded by lock.
+    private final Object lock = new Object();
+    /** Ranges that haven't been fetched yet, as {first byte, last byte, position in the file}. */
+    private final Deque<long[]> chunks = new ArrayDeque<>();
+    /** Number of workers that are running. */
+    private int running = 0;
+    /** The largest number of workers that ran at the same time. */
+    private int peak = 0;
+    /** Every worker that was started, so that they can be stopped. */
+    private final List<Thread> workers = new ArrayList<>();
+    /** The connections that workers are reading from, so that they can be dropped. */
+    private final Set<HttpURLConnection> connections = new HashSet<>();
+    /** Set when a chunk could not be fetched: the download has failed. */
+    private IOException failure = null;
+    /** The mirror that chunks are fetched from: one of {@link #sources}. */
+    private URL source;
+
+    /** Bytes written by all workers, for measuring throughput. */
+    private final AtomicLong received = new AtomicLong();
+
+    /** Validator sent with every range request, so that all chunks come from the same file. */
+    private String validator = "";
+
+    /** The mirror that {@link #validator} came from. */
+    private URL validatedBy = null;
+
+    /** The length of the file, once it is known. */
+    private long length = -1;
+
+    /** SHA-256 the file should have, as lowercase hex, or empty if it isn't known. */
+    private String expectedHash = "";
+    /** Set when the complete file didn't have {@link #expectedHash}. */
+    private boolean corrupt = false;
+
+    /** Limits how fast the file is read, over all the connections together, or null. */
+    private BandwidthGovernor.Meter meter = null;
+
+    // Hashing the chunks in order, guarded by hashLock.
+    private final Object hashLock = new Object();
+    /** Hash of the chunks before {@link #hashedChunks}. */
+    private final MessageDigest digest = CryptoRoutines.sha256Digest();
+    /** Which chunks, by position in the file, are completely on disk. */
+    private boolean[] fetched = new boolean[0];
+    /** Number of chunks, from the start of the file, that went into {@link #digest}. */
+    private int hashedChunks = 0;
+    /** True while a worker is hashing chunks. */
+    private boolean hashing = false;
+
+    /**
+     * Create a downloader. Nothing is read or written till {@link #download()} is called.
+     * @param source an http or https URL to download.
+     * @param destination the file to write. The partial file is created in the same directory,
+     *                    which must be writable.
+     */
+    ParallelRangeDownloader(@NonNull URL source, @NonNull File destination) {
+        this(Collections.singletonList(source), destination);
+    }
+
+    /**
+     * Create a downloader for a file that is on several mirrors.
+     * @param sources http or https URLs that serve the same file, the preferred one first. Not
+     *                empty.
+     * @param destination the file to write.
+     */
+    ParallelRangeDownloader(@NonNull List<URL> sources, @NonNull File destination) {
+        this.sources = sources;
+        this.source = sources.get(0);
+        this.destination = destination;
+        this.partial = new File(destination.getPath() + RangeDownloader.PARTIAL_SUFFIX);
+    }
+
+    /** Change the size of each range that is requested. */
+    void setChunkSize(long chunkSize) {
+        this.chunkSize = Math.max(BUFFER_SIZE, chunkSize);
+    }
+
+    /**
+     * Change the maximum number of connections for this file.
+     * @param maxConnections the maximum. One means the file is never split.
+     */
+    void setMaxConnections(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /** Change the size below which files are downloaded over a single connection. */
+    void setMinParallelSize(long minParallelSize) {
+        this.minParallelSize = minParallelSize;
+    }
+
+    /**
+     * Check the file against this hash before it is moved to the destination.
+     * @param expectedHash SHA-256 of the file as lowercase hex, or empty to skip the check.
+     */
+    void setExpectedHash(@NonNull String expectedHash) {
+        this.expectedHash = expectedHash;
+    }
+
+    /**
+     * True if the last download was complete but didn't have the expected hash. The file has
+     * been removed.
+     */
+    boolean isCorrupt() {
+        return corrupt;
+    }
+
+    /**
+     * Limit how fast the file is downloaded.
+     * @param meter the meter every byte is taken from, or null to download as fast as possible.
+     */
+    void setMeter(@Nullable BandwidthGovernor.Meter meter) {
+        this.meter = meter;
+    }
+
+    /** The largest number of connections that were open at the same time. */
+    int getPeakConnections() {
+        synchronized (lock) {
+            return peak;
+        }
+    }
+
+    /**
+     * Download the file. Blocks till the download is complete or has failed.
+     * @return true if the destination file now holds the complete download.
+     */
+    @WorkerThread
+    boolean download() {
+        corrupt = false;
+        if (maxConnections > 1) {
+            for (URL mirror : sources) {
+                try {
+                    length = probe(mirror);
+                    source = mirror;
+                    break;
+                } catch (IOException e) {
+                    Log.d(TAG, "Could not probe " + mirror + ": " + e.getMessage());
+                }
+            }
+        }
+        if (length < minParallelSize) {
+            // Too small to be worth splitting, or the server can't split it.
+            synchronized (lock) {
+                peak = 1;
+            }
+            RangeDownloader single = new RangeDownloader(sources, destination);
+            single.setExpectedHash(expectedHash);
+            single.setMeter(meter);
+            boolean downloaded = single.download();
+            corrupt = single.isCorrupt();
+            return downloaded;
+        }
+        try {
+            fetchAll(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Parallel download of " + source + " failed: " + e.getMessage());
+            partial.delete();
+            return false;
+        }
+        if (!verify()) {
+            corrupt = true;
+            partial.delete();
+            return false;
+        }
+        if (destination.exists() && !destination.delete()) {
+            Log.e(TAG, "Could not remove old " + destination.getAbsolutePath());
+            return false;
+        }
+        if (!partial.renameTo(destination)) {
+            Log.e(TAG, "Could not rename to " + destination.getAbsolutePath());
+            return false;
+        }
+        Log.d(TAG, "Downloaded " + length + " bytes from " + source + " over at most " + peak
+                + " connections");
+        return true;
+    }
+
+    /**
+     * Ask for the first byte, to find out whether the server supports ranges and how long the
+     * file is.
+     * @param mirror the mirror to ask.
+     * @return the length of the file, or -1 if it can't be downloaded in ranges.
+     * @throws IOException if the mirror could not be reached.
+     */
+    private long probe(URL mirror) throws IOException {
+        HttpURLConnection connection = HttpConnections.open(mirror);
+        connection.setRequestProperty("Range", "bytes=0-0");
+        InputStream body = null;
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                // A 200 has the whole file on its way. Don't read it: this connection is dropped.
+                return -1;
+            }
+            body = HttpConnections.responseBody(connection);
+            validator = RangeDownloader.headerOrEmpty(connection, "ETag");
+            if (validator.length() == 0) {
+                validator = RangeDownloader.headerOrEmpty(connection, "Last-Modified");
+            }
+            validatedBy = mirror;
+            return RangeDownloader.rangeTotal(connection.getHeaderField("Content-Range"));
+        } finally {
+            HttpConnections.release(connection, body);
+        }
+    }
+
+    /**
+     * Fetch every chunk, adding connections while that makes the download faster.
+     * @param length the length of the file.
+     * @throws IOException if a chunk could not be fetched.
+     */
+    private void fetchAll(long length) throws IOException {
+        // The partial file is laid out differently from a single-connection download, so a
+        // checkpoint from one of those doesn't apply any more.
+        new File(destination.getPath() + RangeDownloader.CHECKPOINT_SUFFIX).delete();
+        RandomAccessFile file = new RandomAccessFile(partial, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+        synchronized (lock) {
+            for (long start = 0; start < length; start += chunkSize) {
+                chunks.add(new long[] {start, Math.min(start + chunkSize, length) - 1,
+                        start / chunkSize});
+            }
+        }
+        synchronized (hashLock) {
+            digest.reset();
+            fetched = new boolean[chunks.size()];
+            hashedChunks = 0;
+        }
+
+        startWorker();
+        long lastSampleMs = elapsedMs();
+        long lastBytes = 0;
+        // Throughput before the most recent connection was added. Negative till it is known.
+        long baseline = -1;
+        boolean growing = true;
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (running > 0) {
+                try {
+                    lock.wait(SAMPLE_MS);
+                } catch (InterruptedException e) {
+                    // The interrupt is only set again once the workers have ended, so that
+                    // waiting for them doesn't throw straight away every time.
+                    interrupted = true;
+                    cancel();
+                }
+                if (interrupted) {
+                    continue;
+                }
+                long nowMs = elapsedMs();
+                if (!growing || nowMs - lastSampleMs < SAMPLE_MS) {
+                    continue;
+                }
+                long bytes = received.get();
+                long rate = (bytes - lastBytes) * 1000 / (nowMs - lastSampleMs);
+                lastSampleMs = nowMs;
+                lastBytes = bytes;
+                if (running >= maxConnections || chunks.isEmpty()) {
+                    continue;
+                }
+                if (baseline < 0 || rate >= baseline * GAIN) {
+                    Log.d(TAG, rate + " bytes/s over " + running + " connections, adding one");
+                    baseline = rate;
+                    startWorker();
+                } else {
+                    Log.d(TAG, rate + " bytes/s over " + running + " connections, staying");
+                    growing = false;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Fail the download, and stop every worker: drop their connections, and wake the ones that
+     * are waiting to retry or held back by the meter. Call with {@link #lock} held.
+     */
+    private void cancel() {
+        if (failure == null) {
+            failure = new InterruptedIOException("Interrupted");
+        }
+        chunks.clear();
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    /** True once the download has failed, and the workers should stop. */
+    private boolean isFailed() {
+        synchronized (lock) {
+            return failure != null;
+        }
+    }
+
+    /** A monotonic clock in milliseconds. */
+    private static long elapsedMs() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /** Start another connection. */
+    private void startWorker() {
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        });
+        synchronized (lock) {
+            running++;
+            peak = Math.max(peak, running);
+            workers.add(worker);
+        }
+        worker.start();
+    }
+
+    /** Keep fetching chunks till there are none left, or the download has failed. */
+    private void work() {
+        try {
+            RandomAccessFile out = new RandomAccessFile(partial, "rw");
+            try {
+                long[] chunk;
+                while ((chunk = nextChunk()) != null) {
+                    fetchChunk(chunk, out);
+                    chunkFetched((int) chunk[2]);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (failure == null) {
+                    failure = e;
+                }
+                // Stop the other workers too.
+                chunks.clear();
+            }
+        } finally {
+            synchronized (lock) {
+                running--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Record that a chunk is on disk, and hash every chunk from the start of the file that can
+     * be hashed now. Only one worker hashes at a time: the others go back to fetching, and the
+     * worker that is hashing picks up their chunks as well.
+     * @param index the position of the chunk in the file.
+     * @throws IOException if the partial file could not be read back.
+     */
+    private void chunkFetched(int index) throws IOException {
+        if (expectedHash.length() == 0) {
+            return;
+        }
+        synchronized (hashLock) {
+            fetched[index] = true;
+            if (hashing) {
+                return;
+            }
+            hashing = true;
+        }
+        boolean done = false;
+        try {
+            RandomAccessFile in = new RandomAccessFile(partial, "r");
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (true) {
+                    int next;
+                    synchronized (hashLock) {
+                        if (hashedChunks >= fetched.length || !fetched[hashedChunks]) {
+                            hashing = false;
+                            done = true;
+                            return;
+                        }
+                        next = hashedChunks;
+                    }
+                    long start = next * chunkSize;
+                    long end = Math.min(start + chunkSize, length);
+                    in.seek(start);
+                    for (long pos = start; pos < end; ) {
+                        int count = in.read(buffer, 0, (int) Math.min(buffer.length, end - pos));
+                        if (count < 0) {
+                            throw new IOException("Partial file ended at byte " + pos);
+                        }
+                        // Only this worker touches the digest while hashing is set.
+                        digest.update(buffer, 0, count);
+                        pos += count;
+                    }
+                    synchronized (hashLock) {
+                        hashedChunks++;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            if (!done) {
+                synchronized (hashLock) {
+                    hashing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the complete file against the expected hash.
+     * @return true if it matches, or there is nothing to check against.
+     */
+    private boolean verify() {
+        if (expectedHash.length() == 0) {
+            return true;
+        }
+        synchronized (hashLock) {
+            // Every worker has finished, so every chunk has been hashed.
+            String actual = CryptoRoutines.toHex(digest.digest());
+            if (hashedChunks != fetched.length || !actual.equals(expectedHash)) {
+                Log.e(TAG, "Hash of " + source + " is " + actual + ", expected "
+                        + expectedHash);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /** The next chunk to fetch, or null if there is nothing left to do. */
+    private long[] nextChunk() {
+        synchronized (lock) {
+            return (failure == null) ? chunks.poll() : null;
+        }
+    }
+
+    /**
+     * Fetch a single chunk into the file, retrying from where it stopped if the connection drops.
+     * @param chunk {first byte, last byte, position}. The first byte is moved forward as bytes
+     *              arrive.
+     * @param out the partial file.
+     * @throws IOException if the chunk could not be fetched after several attempts, or the file
+     *          changed on the server.
+     */
+    private void fetchChunk(long[] chunk, RandomAccessFile out) throws IOException {
+        int attempts = MAX_CHUNK_ATTEMPTS * sources.size();
+        for (int attempt = 1; ; attempt++) {
+            URL mirror = currentSource();
+            try {
+                fetchRange(chunk, out, mirror);
+                return;
+            } catch (IOException e) {
+                if (attempt >= attempts || isFailed()) {
+                    throw e;
+                }
+                Log.d(TAG, "Chunk at " + chunk[0] + " from " + mirror + " failed, attempt "
+                        + attempt + ": " + e.getMessage());
+                failOver(mirror);
+                // Only wait once every mirror has been tried.
+                if (attempt % sources.size() == 0) {
+                    RangeDownloader.backoff(attempt / sources.size());
+                }
+            }
+        }
+    }
+
+    /** The mirror to fetch the next range from. */
+    private URL currentSource() {
+        synchronized (lock) {
+            return source;
+        }
+    }
+
+    /**
+     * Move every connection on to the next mirror, unless another connection already moved
+     * them away from the mirror that failed.
+     */
+    private void failOver(URL failed) {
+        if (sources.size() < 2) {
+            return;
+        }
+        synchronized (lock) {
+            if (source.equals(failed)) {
+                source = sources.get((sources.indexOf(failed) + 1) % sources.size());
+                Log.d(TAG, "Failing over from " + failed + " to " + source);
+            }
+        }
+    }
+
+    /** A single request for what is left of the chunk. */
+    private void fetchRange(long[] chunk, RandomAccessFile out, URL source) throws IOException {
+        HttpURLConnection connection = HttpConnections.open(source);
+        connection.setRequestProperty("Range", "bytes=" + chunk[0] + "-" + chunk[1]);
+        if (validator.length() > 0 && source.equals(validatedBy)) {
+            // If the file changed, the server sends all of it with a 200 instead.
+            connection.setRequestProperty("If-Range", validator);
+        }
+        InputStream body = null;
+        try {
+            synchronized (lock) {
+                if (failure != null) {
+                    throw new IOException("Download stopped");
+                }
+                connections.add(connection);
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("HTTP " + code + " for a range of " + source);
+            }
+            String contentRange = connection.getHeaderField("Content-Range");
+            long start = RangeDownloader.rangeStart(contentRange);
+            if (start != chunk[0]) {
+                throw new IOException("Asked for byte " + chunk[0] + " but got " + start);
+            }
+            long total = RangeDownloader.rangeTotal(contentRange);
+            if (total != length) {
+                throw new IOException(source + " has " + total + " bytes, not " + length);
+            }
+            InputStream in = connection.getInputStream();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while (chunk[0] <= chunk[1] && (count = in.read(buffer)) > 0) {
+                count = (int) Math.min(count, chunk[1] - chunk[0] + 1);
+                if (meter != null) {
+                    meter.consume(count);
+                }
+                out.seek(chunk[0]);
+                out.write(buffer, 0, count);
+                chunk[0] += count;
+                received.addAndGet(count);
+            }
+            if (chunk[0] <= chunk[1]) {
+                throw new IOException("Range ended early at byte " + chunk[0]);
+            }
+            body = in;
+        } finally {
+            synchronized (lock) {
+                connections.remove(connection);
+            }
+            HttpConnections.release(connection, body);
+        }
+    }
+}
@@ -42,13 +42,87 @@ class Pref {
         SLIDESHOW_DELAY ("pref-slideshow-delay", 10),
         /**
          * A URL to monitor for new keys or content. STRING: Empty by default.
-         * The URL cannot be more than {@link NetworkController#MAX_BEACON_SIZE} in length.
+         * Beacons are kept in the database, where there can be many of them. A beacon written
+         * here, by the settings or by an older version, is moved there the next time the beacons
+         * are read, and this is emptied.
          */
         BEACON ("pref-beacon", ""),
+        /**
+         * The beacon that {@link #BEACON_ETAG}, {@link #BEACON_LAST_MODIFIED} and
+         * {@link #BEACON_HASH} were read from. STRING: Empty by default. Only read to move them
+         * to the database along with {@link #BEACON}.
+         */
+        BEACON_VALIDATED ("pref-beacon-validated", ""),
+        /**
+         * The ETag the server sent with the beacon the last time it was read. STRING: Empty by
+         * default.
+         */
+        BEACON_ETAG ("pref-beacon-etag", ""),
+        /**
+         * The Last-Modified time the server sent with the beacon the last time it was read.
+         * STRING: Empty by default.
+         */
+        BEACON_LAST_MODIFIED ("pref-beacon-last-modified", ""),
+        /**
+         * SHA-256 of the beacon body the last time it was read. STRING: Empty by default.
+         */
+        BEACON_HASH ("pref-beacon-hash", ""),
+        /**
+         * How long a beacon server is asked to hold each request till something new is
+         * published, in seconds. INT: 0 by default, which reads the beacons on a schedule instead.
+         * When set, every beacon has a request open to it at all times, and new albums arrive
+         * within seconds on servers that support it. {@link LongPoller#DEFAULT_WAIT_SECONDS}
+         * is a good value.
+         */
+        BEACON_LONG_POLL ("pref-beacon-long-poll", 0),
         /**
          * A URL to monitor for new keys or content. INT: 10 Megabytes by default.
          */
         DISK_LIMIT ("disk-limit", 10 * 1024 * 1024),
+        /**
+         * The number of album downloads that can run at the same time. INT: 2 by default.
+         */
+        DOWNLOAD_CONCURRENCY ("download-concurrency", DownloadScheduler.DEFAULT_LIMIT),
+        /**
+         * Which downloader fetches album packages. INT: one of
+         * {@link NetworkController#DOWNLOADER_SYSTEM} (the default) or
+         * {@link NetworkController#DOWNLOADER_IN_PROCESS}, which can resume interrupted downloads.
+         * Packages that are known to be large are always downloaded in process, over several
+         * connections, unless {@link #DOWNLOAD_CONNECTIONS} is 1.
+         */
+        DOWNLOADER ("downloader", NetworkController.DOWNLOADER_SYSTEM),
+        /**
+         * The most connections a single in-process download can use. INT: 4 by default. 1 means
+         * every package is downloaded over a single connection.
+         */
+        DOWNLOAD_CONNECTIONS ("download-connections",
+                ParallelRangeDownloader.DEFAULT_MAX_CONNECTIONS),
+        /**
+         * The most all downloads together can use while the viewer is idle, in kilobytes per
+         * second. INT: 0 by default, which doesn't limit them. Setting this or
+         * {@link #DOWNLOAD_RATE_EACH} means every package is downloaded in process, since the
+         * DownloadManager can't be slowed down.
+         */
+        DOWNLOAD_RATE ("download-rate-kb", 0),
+        /**
+         * The most a single download can use, in kilobytes per second. INT: 0 by default, which
+         * doesn't limit it.
+         */
+        DOWNLOAD_RATE_EACH ("download-rate-each-kb", 0),
+        /**
+         * The most all downloads together can use while a slideshow is playing, in kilobytes per
+         * second. INT: 2048 by default, which leaves the disk and CPU free enough to show the next
+         * image on time. 0 only applies {@link #DOWNLOAD_RATE}. Never more than that. Packages
+         * that start downloading while a slideshow plays are downloaded in process, so that they
+         * can be slowed down. The ones the DownloadManager is already running aren't.
+         */
+        DOWNLOAD_RATE_PLAYING ("download-rate-playing-kb", 2048),
+        /**
+         * Whether encrypted packages in the segmented format stay encrypted on disk, with each
+         * image decrypted when it is shown. INT: 0 by default, which writes out plain images.
+         * Packages in other formats are always unpacked.
+         */
+        AT_REST ("at-rest", 0),
 
         ;  // Required to close off the names.
 
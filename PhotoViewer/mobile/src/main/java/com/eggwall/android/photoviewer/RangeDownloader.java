@@ -0,0 +1,580 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * Downloads a single file over HTTP in this process, as an alternative to
+ * {@link android.app.DownloadManager}.
+ *
+ * The bytes are written to a partial file next to the destination, and a small checkpoint file
+ * records how many bytes are safely on disk along with the validators (ETag, Last-Modified) that
+ * the server gave us. If the connection drops, the download continues from the last checkpoint
+ * with an HTTP Range request. Since the checkpoint is on disk, a new object created after the
+ * process died picks up where the previous one left off.
+ *
+ * If the file changed on the server in the meantime, the If-Range validator makes the server
+ * send the whole file and the download starts over from the first byte.
+ *
+ * The same file can be on several mirrors. When a connection fails, the next attempt goes to
+ * the next mirror and continues from the same byte. Mirrors are separate servers with their own
+ * validators, so a mirror that didn't send the bytes already on disk is trusted as long as it
+ * reports the same length, and the content hash of the package catches anything else.
+ *
+ * If the hash of the file is known, it is computed as the bytes arrive, and a file that doesn't
+ * match is thrown away as soon as it is complete, before anything reads it. A download that
+ * resumes hashes the bytes already on disk first, once.
+ *
+ * Only the standard java.net classes are used, so this can be tested against a local HTTP server.
+ */
+class RangeDownloader {
+    private static final String TAG = "RangeDownloader";
+
+    /** Suffix of the file that holds the bytes downloaded so far. */
+    static final String PARTIAL_SUFFIX = ".part";
+
+    /** Suffix of the file that records the progress of the download. */
+    static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+    /** Write a checkpoint every time this many bytes have been downloaded. */
+    private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+    /** Size of the buffer used to read from the network. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Default number of connections tried before the download is abandoned. */
+    static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    // Keys within the checkpoint file.
+    private static final String CKPT_URL = "url";
+    private static final String CKPT_ETAG = "etag";
+    private static final String CKPT_LAST_MODIFIED = "last-modified";
+    private static final String CKPT_LENGTH = "length";
+    private static final String CKPT_WRITTEN = "written";
+
+    /** Every place the file can be downloaded from, the preferred one first. */
+    private final List<URL> sources;
+
+    /** Where the file is being downloaded from right now: one of {@link #sources}. */
+    private URL source;
+
+    /** Where the file is written to, once it is complete. */
+    private final File destination;
+
+    /** Holds the bytes downloaded so far. */
+    private final File partial;
+
+    /** Records the progress of the download. */
+    private final File checkpoint;
+
+    /** Number of connections tried before the download is abandoned. */
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    // The state of the download, which is also what is written to the checkpoint.
+    /** Bytes of the partial file that are known to be good. */
+    private long written = 0;
+    /** Total length of the file, or -1 if the server didn't tell us. */
+    private long length = -1;
+    /** ETag of the file as reported by the server, or empty. */
+    private String etag = "";
+    /** Last-Modified of the file as reported by the server, or empty. */
+    private String lastModified = "";
+    /** The source that {@link #etag} and {@link #lastModified} came from. */
+    private URL validatedBy;
+
+    /** SHA-256 the file should have, as lowercase hex, or empty if it isn't known. */
+    private String expectedHash = "";
+    /** Hash of the first {@link #digested} bytes of the partial file. */
+    private final MessageDigest digest = CryptoRoutines.sha256Digest();
+    /** Number of bytes of the partial file that went into {@link #digest}. */
+    private long digested = 0;
+    /** Set when the complete file didn't have {@link #expectedHash}. */
+    private boolean corrupt = false;
+
+    /** Limits how fast the file is read, or null. */
+    private BandwidthGovernor.Meter meter = null;
+
+    /**
+     * Create a downloader. Nothing is read or written till {@link #download()} is called.
+     * @param source an http or https URL to download.
+     * @param destination the file to write. The partial and checkpoint files are created in the
+     *                    same directory, which must be writable.
+     */
+    RangeDownloader(@NonNull URL source, @NonNull File destination) {
+        this(Collections.singletonList(source), destination);
+    }
+
+    /**
+     * Create a downloader for a file that is on several mirrors.
+     * @param sources http or https URLs that serve the same file, the preferred one first. Not
+     *                empty.
+     * @param destination the file to write.
+     */
+    RangeDownloader(@NonNull List<URL> sources, @NonNull File destination) {
+        this.sources = sources;
+        this.source = sources.get(0);
+        this.validatedBy = source;
+        this.destination = destination;
+        this.partial = new File(destination.getPath() + PARTIAL_SUFFIX);
+        this.checkpoint = new File(destination.getPath() + CHECKPOINT_SUFFIX);
+    }
+
+    /**
+     * Change the number of connections that are tried before giving up.
+     * @param maxAttempts at least one.
+     */
+    void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Check the file against this hash before it is moved to the destination.
+     * @param expectedHash SHA-256 of the file as lowercase hex, or empty to skip the check.
+     */
+    void setExpectedHash(@NonNull String expectedHash) {
+        this.expectedHash = expectedHash;
+    }
+
+    /** True if the last download was complete but didn't have the expected hash. */
+    boolean isCorrupt() {
+        return corrupt;
+    }
+
+    /**
+     * Limit how fast the file is downloaded.
+     * @param meter the meter every byte is taken from, or null to download as fast as possible.
+     */
+    void setMeter(@Nullable BandwidthGovernor.Meter meter) {
+        this.meter = meter;
+    }
+
+    /**
+     * Download the file, resuming from an earlier checkpoint if one exists. Blocks till the
+     * download is complete, has failed {@link #maxAttempts} times on every mirror, or the thread
+     * is interrupted. An interrupted download stops after the attempt it was making, and the
+     * thread stays interrupted.
+     *
+     * When this returns false, the partial file and the checkpoint are left behind so that a
+     * later call can resume. Call {@link #discard()} to remove them. A file that had the wrong
+     * hash is removed right away, and {@link #isCorrupt()} is set.
+     *
+     * @return true if the destination file now holds the complete download.
+     */
+    @WorkerThread
+    boolean download() {
+        loadCheckpoint();
+        corrupt = false;
+
+        int attempts = maxAttempts * sources.size();
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            try {
+                if (fetch()) {
+                    if (!verify()) {
+                        corrupt = true;
+                        discard();
+                        return false;
+                    }
+                    return finish();
+                }
+            } catch (IOException e) {
+                Log.d(TAG, "Attempt " + attempt + " for " + source + " failed at byte "
+                        + written + ": " + e.getMessage());
+            }
+            // Whatever made it to disk is kept for the next attempt.
+            saveCheckpoint();
+            if (Thread.currentThread().isInterrupted()) {
+                // Stopped on purpose, not by the mirror: no other mirror would do better.
+                Log.d(TAG, "Interrupted " + source + " at byte " + written);
+                return false;
+            }
+            // This mirror didn't finish the file. Give the next one a chance.
+            failOver();
+            // Only wait once every mirror has been tried.
+            if (attempt < attempts && attempt % sources.size() == 0) {
+                backoff(attempt / sources.size());
+            }
+        }
+        Log.e(TAG, "Giving up on " + source + " after " + attempts + " attempts");
+        return false;
+    }
+
+    /** Move on to the next mirror, if there is more than one. */
+    private void failOver() {
+        if (sources.size() < 2) {
+            return;
+        }
+        source = sources.get((sources.indexOf(source) + 1) % sources.size());
+        Log.d(TAG, "Continuing from " + source + " at byte " + written);
+    }
+
+    /**
+     * Remove the partial file and the checkpoint, abandoning the download.
+     */
+    void discard() {
+        if (partial.delete()) {
+            Log.d(TAG, "Deleted " + partial.getAbsolutePath());
+        }
+        if (checkpoint.delete()) {
+            Log.d(TAG, "Deleted " + checkpoint.getAbsolutePath());
+        }
+        written = 0;
+    }
+
+    /**
+     * Make a single connection and write whatever it gives us into the partial file.
+     * @return true if the partial file is complete, false if another attempt is needed.
+     * @throws IOException on any network or disk problems. The progress in {@link #written} is
+     *          correct even when this is thrown.
+     */
+    private boolean fetch() throws IOException {
+        if (length >= 0 && written == length) {
+            // Everything was downloaded earlier: the process died before the file was renamed.
+            return true;
+        }
+
+        HttpURLConnection connection = HttpConnections.open(source);
+        // The validators only mean something to the server that sent them.
+        boolean sameServer = source.equals(validatedBy);
+        if (written > 0) {
+            connection.setRequestProperty("Range", "bytes=" + written + "-");
+            // Only continue if the file is still the one we started with. Otherwise the server
+            // sends the entire file with a 200 response.
+            if (sameServer && etag.length() > 0) {
+                connection.setRequestProperty("If-Range", etag);
+            } else if (sameServer && lastModified.length() > 0) {
+                connection.setRequestProperty("If-Range", lastModified);
+            }
+        }
+
+        // Only set once the response has been read without trouble, so the connection can be
+        // reused.
+        InputStream body = null;
+        try {
+            int code = connection.getResponseCode();
+            long offset;
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                offset = rangeStart(connection.getHeaderField("Content-Range"));
+                if (offset != written) {
+                    throw new IOException("Asked for byte " + written + " but got " + offset);
+                }
+                long total = rangeTotal(connection.getHeaderField("Content-Range"));
+                if (!sameServer && length >= 0 && total != length) {
+                    throw new IOException(source + " has " + total + " bytes, not " + length);
+                }
+                if (total >= 0) {
+                    length = total;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (written > 0 && !sameServer) {
+                    // A mirror that can't continue: another mirror might.
+                    throw new IOException(source + " can't continue from byte " + written);
+                }
+                if (written > 0) {
+                    Log.d(TAG, "Server sent the whole file, starting " + source + " over.");
+                }
+                offset = 0;
+                length = contentLength(connection);
+            } else if (code == 416) {
+                // Requested Range Not Satisfiable: we asked for bytes past the end. The partial
+                // file cannot be trusted, so start over.
+                Log.d(TAG, "Range not satisfiable for " + source + ", starting over.");
+                written = 0;
+                body = HttpConnections.responseBody(connection);
+                return false;
+            } else {
+                body = HttpConnections.responseBody(connection);
+                throw new IOException("HTTP " + code + " for " + source);
+            }
+            etag = headerOrEmpty(connection, "ETag");
+            lastModified = headerOrEmpty(connection, "Last-Modified");
+            validatedBy = source;
+
+            InputStream in = connection.getInputStream();
+            copy(in, offset);
+            body = in;
+        } finally {
+            HttpConnections.release(connection, body);
+        }
+        // Some servers don't tell us the length: then the end of the stream is the end of file.
+        return length < 0 || written == length;
+    }
+
+    /**
+     * Copy the response into the partial file starting at the given offset.
+     * @param body the response body
+     * @param offset where in the file the body starts.
+     * @throws IOException on network or disk trouble. {@link #written} reflects what is on disk.
+     */
+    private void copy(InputStream body, long offset) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(partial, "rw");
+        try {
+            out.setLength(offset);
+            if (expectedHash.length() > 0 && digested != offset) {
+                digestFrom(out, offset);
+            }
+            out.seek(offset);
+            written = offset;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long sinceCheckpoint = 0;
+            int numBytes;
+            while ((numBytes = body.read(buffer)) > 0) {
+                if (meter != null) {
+                    meter.consume(numBytes);
+                }
+                out.write(buffer, 0, numBytes);
+                written += numBytes;
+                if (expectedHash.length() > 0) {
+                    digest.update(buffer, 0, numBytes);
+                    digested = written;
+                }
+                sinceCheckpoint += numBytes;
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    // RandomAccessFile writes go straight to the OS, so the bytes survive the
+                    // death of this process once write() has returned.
+                    saveCheckpoint();
+                    sinceCheckpoint = 0;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Hash the start of the partial file again, for a download that doesn't continue from the
+     * byte that was hashed last: one resumed from a checkpoint, or started over.
+     * @param file the partial file.
+     * @param end how many bytes, from the start, to hash.
+     */
+    private void digestFrom(RandomAccessFile file, long end) throws IOException {
+        digest.reset();
+        digested = 0;
+        file.seek(0);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (digested < end) {
+            int count = file.read(buffer, 0, (int) Math.min(buffer.length, end - digested));
+            if (count < 0) {
+                throw new IOException("Partial file ended at byte " + digested);
+            }
+            digest.update(buffer, 0, count);
+            digested += count;
+        }
+    }
+
+    /**
+     * Check the complete partial file against the expected hash.
+     * @return true if it matches, or there is nothing to check against.
+     */
+    private boolean verify() throws IOException {
+        if (expectedHash.length() == 0) {
+            return true;
+        }
+        if (digested != written) {
+            // Everything was downloaded by an earlier process.
+            RandomAccessFile in = new RandomAccessFile(partial, "r");
+            try {
+                digestFrom(in, written);
+            } finally {
+                in.close();
+            }
+        }
+        String actual = CryptoRoutines.toHex(digest.digest());
+        digested = 0;
+        if (!actual.equals(expectedHash)) {
+            Log.e(TAG, "Hash of " + source + " is " + actual + ", expected " + expectedHash);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The partial file is complete: move it to its final name and remove the checkpoint.
+     * @return true if the destination now holds the file.
+     */
+    private boolean finish() {
+        if (destination.exists() && !destination.delete()) {
+            Log.e(TAG, "Could not remove old " + destination.getAbsolutePath());
+            return false;
+        }
+        if (!partial.renameTo(destination)) {
+            Log.e(TAG, "Could not rename to " + destination.getAbsolutePath());
+            return false;
+        }
+        if (!checkpoint.delete()) {
+            Log.d(TAG, "No checkpoint to delete for " + destination.getAbsolutePath());
+        }
+        Log.d(TAG, "Downloaded " + written + " bytes from " + source);
+        return true;
+    }
+
+    /**
+     * Read the checkpoint, if there is one for this URL, and trim the partial file to the part
+     * that was known to be good.
+     */
+    private void loadCheckpoint() {
+        written = 0;
+        if (!checkpoint.exists() || !partial.exists()) {
+            return;
+        }
+        Properties p = new Properties();
+        try {
+            FileInputStream in = new FileInputStream(checkpoint);
+            try {
+                p.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Unreadable checkpoint, starting over: " + e.getMessage());
+            return;
+        }
+        URL from = null;
+        for (URL candidate : sources) {
+            if (candidate.toString().equals(p.getProperty(CKPT_URL))) {
+                from = candidate;
+            }
+        }
+        if (from == null) {
+            Log.d(TAG, "Checkpoint is for a different URL, starting over.");
+            return;
+        }
+        try {
+            long recorded = Long.parseLong(p.getProperty(CKPT_WRITTEN, "0"));
+            length = Long.parseLong(p.getProperty(CKPT_LENGTH, "-1"));
+            // Bytes past the checkpoint might be there too, but we can't vouch for them.
+            written = Math.min(recorded, partial.length());
+        } catch (NumberFormatException e) {
+            Log.d(TAG, "Corrupt checkpoint, starting over: " + e.getMessage());
+            written = 0;
+            return;
+        }
+        etag = p.getProperty(CKPT_ETAG, "");
+        lastModified = p.getProperty(CKPT_LAST_MODIFIED, "");
+        // Continue from the mirror the validators came from.
+        source = from;
+        validatedBy = from;
+        Log.d(TAG, "Resuming " + source + " from byte " + written);
+    }
+
+    /**
+     * Write the current progress to the checkpoint file. Written to a temporary file and renamed
+     * so that a crash while writing leaves the previous checkpoint intact.
+     */
+    private void saveCheckpoint() {
+        Properties p = new Properties();
+        p.setProperty(CKPT_URL, validatedBy.toString());
+        p.setProperty(CKPT_ETAG, etag);
+        p.setProperty(CKPT_LAST_MODIFIED, lastModified);
+        p.setProperty(CKPT_LENGTH, Long.toString(length));
+        p.setProperty(CKPT_WRITTEN, Long.toString(written));
+        File temp = new File(checkpoint.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                p.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(checkpoint)) {
+                Log.d(TAG, "Could not rename checkpoint " + temp.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "Could not write checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Wait a little before trying again: 1, 2, 4, ... seconds capped at a minute.
+     * @param attempt the attempt that just failed, starting at 1.
+     */
+    static void backoff(int attempt) {
+        long delay = Math.min(60 * 1000L, 1000L << Math.min(attempt - 1, 6));
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parse the first byte position out of a Content-Range header like "bytes 100-199/1000"
+     * @param contentRange the header, possibly null
+     * @return the first byte, or -1 if it couldn't be parsed.
+     */
+    static long rangeStart(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (space < 0 || dash < space) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parse the total length out of a Content-Range header like "bytes 100-199/1000"
+     * @param contentRange the header, possibly null
+     * @return the total length, or -1 if it is unknown ("*") or couldn't be parsed.
+     */
+    static long rangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.indexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * The Content-Length of the response as a long, since packages can be larger than 2GB and
+     * {@link HttpURLConnection#getContentLength()} only returns an int.
+     * @return the length, or -1 if the server didn't say or said something unparseable.
+     */
+    static long contentLength(HttpURLConnection connection) {
+        String value = connection.getHeaderField("Content-Length");
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Read a response header, returning an empty string rather than null.
+     */
+    static @NonNull String headerOrEmpty(HttpURLConnection connection, String name) {
+        String value = connection.getHeaderField(name);
+        return (value == null) ? "" : value;
+    }
+}
@@ -0,0 +1,476 @@
+package com.eggwall.android.photoviewer;
+
+import android.os.Build;
+
+import com.google.common.base.Charsets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+/**
+ * An encrypted package in which any single image can be decrypted without reading the rest.
+ *
+ * The older packages are a zip file encrypted with AES/CBC as a whole, so getting at any image
+ * means decrypting everything before it. Here the images are stored one after the other, and
+ * that payload is cut into segments of {@link #segmentSize} bytes, each encrypted and
+ * authenticated on its own with AES/GCM. An image is read by decrypting only the segments that
+ * hold it. An index of the images, with where each one starts and how long it is, is
+ * encrypted the same way at the end of the package.
+ *
+ * The layout, with every number big-endian:
+ * <pre>
+ *   header   magic "PVSEG001", segment size (int), payload length (long),
+ *            index length (int), nonce prefix (8 random bytes)
+ *   segments the payload: segment i is GCM(nonce prefix || i) of bytes
+ *            [i * segment size, (i + 1) * segment size), followed by its 16 byte tag
+ *   index    GCM(nonce prefix || 0xffffffff) of: count (int), and for every image its
+ *            name (modified UTF-8), offset (long) and length (long) in the payload
+ * </pre>
+ * Every segment and the index are authenticated along with the whole header. So a segment that
+ * is changed, moved to another position, taken from another package or cut short fails to
+ * decrypt, and so does a package whose header was changed. The segments don't depend on each
+ * other, so they can also be decrypted in parallel.
+ *
+ * Packages in this format are recognized by their first bytes, see {@link #isSegmented(File)}.
+ * They need AES/GCM, which Android has from KitKat.
+ */
+@RequiresApi(Build.VERSION_CODES.KITKAT)
+class SegmentedPackage implements Closeable {
+    /** The first bytes of every package in this format. */
+    static final byte[] MAGIC = "PVSEG001".getBytes(Charsets.US_ASCII);
+
+    /** Length of the header: magic, segment size, payload length, index length, nonce prefix. */
+    static final int HEADER_SIZE = 8 + 4 + 8 + 4 + 8;
+
+    /** Length of the GCM tag after every segment and after the index. */
+    static final int TAG_SIZE = 16;
+
+    /** Plain text bytes in every segment but the last, unless a package says otherwise. */
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+    /** The cipher for the segments and the index. */
+    private static final String AES_GCM = "AES/GCM/NoPadding";
+
+    /** The segment number in the nonce of the index. No payload segment can have it. */
+    private static final int INDEX_NONCE = 0xffffffff;
+
+    /** An image in the package. */
+    static class Entry {
+        /** The name it was stored with. */
+        final String name;
+        /** Where it starts in the payload. */
+        final long offset;
+        /** Its length in bytes. */
+        final long length;
+
+        Entry(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + length + " bytes at " + offset + ")";
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final SecretKey key;
+
+    /** The header exactly as it is on disk, which every segment is authenticated with. */
+    private final byte[] header;
+    private final int segmentSize;
+    private final long payloadLength;
+    private final byte[] noncePrefix;
+
+    /** The images in the package, in the order they are in the payload. */
+    private List<Entry> entries = Collections.emptyList();
+
+    private SegmentedPackage(RandomAccessFile file, SecretKey key, byte[] header)
+            throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.key = key;
+        this.header = header;
+        ByteBuffer fields = ByteBuffer.wrap(header);
+        fields.position(MAGIC.length);
+        this.segmentSize = fields.getInt();
+        this.payloadLength = fields.getLong();
+        int indexLength = fields.getInt();
+        this.noncePrefix = new byte[8];
+        fields.get(noncePrefix);
+        if (segmentSize <= 0 || payloadLength < 0 || indexLength < 0) {
+            throw new IOException("Bad segmented package header");
+        }
+        long expected = HEADER_SIZE + cipherLength(payloadLength) + indexLength + TAG_SIZE;
+        if (file.length() != expected) {
+            throw new IOException("Segmented package is " + file.length() + " bytes, expected "
+                    + expected);
+        }
+    }
+
+    /**
+     * Check whether a file is a package in this format.
+     * @param f any file.
+     * @return true if it starts with {@link #MAGIC}.
+     */
+    static boolean isSegmented(@NonNull File f) {
+        byte[] start = new byte[MAGIC.length];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                in.readFully(start);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(start, MAGIC);
+    }
+
+    /**
+     * Open a package, and decrypt its index. The images are only decrypted when they are read.
+     * @param f a package in this format.
+     * @param key the key it was encrypted with.
+     * @return the open package. Close it when done.
+     * @throws IOException if the file can't be read, or isn't a complete package.
+     * @throws GeneralSecurityException if the index doesn't decrypt with this key.
+     */
+    static @NonNull SegmentedPackage open(@NonNull File f, @NonNull SecretKey key)
+            throws IOException, GeneralSecurityException {
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            file.readFully(header);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+                throw new IOException("Not a segmented package: " + f);
+            }
+            SegmentedPackage p = new SegmentedPackage(file, key, header);
+            p.entries = p.readIndex();
+            return p;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /** The images in the package, in the order they are stored. */
+    @NonNull List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Find an image by the name it was stored with.
+     * @param name the name of the image.
+     * @return the image, or null if the package doesn't have it.
+     */
+    @Nullable Entry find(@NonNull String name) {
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Plain text bytes in every segment but the last. */
+    int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /** The number of segments in the payload. */
+    int getSegmentCount() {
+        return (int) ((payloadLength + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * Read a single image. Only the segments that hold it are read and decrypted, as the
+     * stream is read. Streams can be read on different threads at the same time.
+     * @param entry an image in this package.
+     * @return the plain text of the image. A segment that fails to decrypt makes the stream
+     *          throw an IOException.
+     * @throws GeneralSecurityException if no cipher can be created.
+     */
+    @NonNull InputStream open(@NonNull Entry entry) throws GeneralSecurityException {
+        return new EntryStream(entry);
+    }
+
+    /**
+     * Read a whole image into memory, for decoders that read it more than once.
+     * @param entry an image in this package.
+     * @return the plain text of the image.
+     * @throws IOException if the image is too large, or a segment doesn't decrypt.
+     * @throws GeneralSecurityException if no cipher can be created.
+     */
+    @NonNull byte[] read(@NonNull Entry entry) throws IOException, GeneralSecurityException {
+        if (entry.length > Integer.MAX_VALUE) {
+            throw new IOException("Too large to read: " + entry.name);
+        }
+        byte[] plain = new byte[(int) entry.length];
+        InputStream in = open(entry);
+        try {
+            int done = 0;
+            while (done < plain.length) {
+                int count = in.read(plain, done, plain.length - done);
+                if (count < 0) {
+                    throw new EOFException("Ended early: " + entry.name);
+                }
+                done += count;
+            }
+        } finally {
+            in.close();
+        }
+        return plain;
+    }
+
+    /**
+     * Decrypt a single segment of the payload.
+     * @param index which segment, from 0.
+     * @param cipher a GCM cipher to use. Not used by anything else at the same time.
+     * @param out holds the plain text of the segment, from its start. At least
+     *            {@link #getSegmentSize()} bytes.
+     * @return the number of plain text bytes in the segment.
+     * @throws IOException if the segment can't be read, or doesn't decrypt.
+     */
+    int decryptSegment(int index, @NonNull Cipher cipher, @NonNull byte[] out)
+            throws IOException {
+        long start = (long) index * segmentSize;
+        int plainLength = (int) Math.min(segmentSize, payloadLength - start);
+        byte[] sealed = new byte[plainLength + TAG_SIZE];
+        readFully(HEADER_SIZE + (long) index * (segmentSize + TAG_SIZE), sealed);
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, index));
+            cipher.updateAAD(header);
+            return cipher.doFinal(sealed, 0, sealed.length, out, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Segment " + index + " did not decrypt", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /** Read and decrypt the index at the end of the package. */
+    private List<Entry> readIndex() throws IOException, GeneralSecurityException {
+        long at = HEADER_SIZE + cipherLength(payloadLength);
+        byte[] sealed = new byte[(int) (file.length() - at)];
+        readFully(at, sealed);
+        Cipher cipher = CryptoRoutines.borrowCipher(AES_GCM);
+        byte[] plain;
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, nonce(noncePrefix, INDEX_NONCE));
+            cipher.updateAAD(header);
+            plain = cipher.doFinal(sealed);
+        } finally {
+            CryptoRoutines.giveBack(cipher);
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plain));
+        int count = in.readInt();
+        List<Entry> read = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = new Entry(in.readUTF(), in.readLong(), in.readLong());
+            if (entry.offset < 0 || entry.length < 0
+                    || entry.offset + entry.length > payloadLength) {
+                throw new IOException("Entry outside the payload: " + entry);
+            }
+            read.add(entry);
+        }
+        return Collections.unmodifiableList(read);
+    }
+
+    /** Read bytes from a position in the file, from any thread. */
+    private void readFully(long position, byte[] into) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(into);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Segmented package ends at " + position);
+            }
+        }
+    }
+
+    /** The length of the encrypted payload, tags included. */
+    private long cipherLength(long plainLength) {
+        long segments = (plainLength + segmentSize - 1) / segmentSize;
+        return plainLength + segments * TAG_SIZE;
+    }
+
+    /** The GCM nonce of a segment: the prefix of the package, then the segment number. */
+    private static GCMParameterSpec nonce(byte[] prefix, int index) {
+        byte[] nonce = ByteBuffer.allocate(12).put(prefix).putInt(index).array();
+        return new GCMParameterSpec(TAG_SIZE * 8, nonce);
+    }
+
+    /** Reads one image, a segment at a time. */
+    private class EntryStream extends InputStream {
+        /** Given back when the stream is closed. */
+        private final Cipher cipher = CryptoRoutines.borrowCipher(AES_GCM);
+        private final byte[] plain = new byte[segmentSize];
+        /** Position in the payload of the next byte to return. */
+        private long position;
+        /** Position in the payload just after the image. */
+        private final long end;
+        /** The segment in {@link #plain}, or -1. */
+        private int loaded = -1;
+        /** Set once the cipher was given back. */
+        private boolean closed = false;
+
+        EntryStream(Entry entry) throws GeneralSecurityException {
+            this.position = entry.offset;
+            this.end = entry.offset + entry.length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (closed || position >= end) {
+                return -1;
+            }
+            int segment = (int) (position / segmentSize);
+            if (segment != loaded) {
+                decryptSegment(segment, cipher, plain);
+                loaded = segment;
+            }
+            int within = (int) (position - (long) segment * segmentSize);
+            int count = (int) Math.min(Math.min(len, segmentSize - within), end - position);
+            System.arraycopy(plain, within, b, off, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                CryptoRoutines.giveBack(cipher);
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            if (loaded < 0) {
+                return 0;
+            }
+            long inSegment = (long) (loaded + 1) * segmentSize - position;
+            return (int) Math.max(0, Math.min(inSegment, end - position));
+        }
+    }
+
+    /**
+     * Write files as a package in this format. This is what a publisher does: the app only
+     * reads packages.
+     * @param key the key to encrypt with.
+     * @param files the images, stored under their names without the directory.
+     * @param segmentSize plain text bytes in each segment.
+     * @param out where the package is written. Not closed.
+     * @throws IOException if a file can't be read, or the package can't be written.
+     * @throws GeneralSecurityException if the key can't be used with AES/GCM.
+     */
+    static void write(@NonNull SecretKey key, @NonNull List<File> files, int segmentSize,
+                      @NonNull OutputStream out) throws IOException, GeneralSecurityException {
+        // The header needs the length of everything, so the index is written first.
+        ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+        DataOutputStream index = new DataOutputStream(indexBytes);
+        index.writeInt(files.size());
+        long payloadLength = 0;
+        for (File f : files) {
+            index.writeUTF(f.getName());
+            index.writeLong(payloadLength);
+            index.writeLong(f.length());
+            payloadLength += f.length();
+        }
+        index.flush();
+
+        byte[] noncePrefix = new byte[8];
+        new SecureRandom().nextBytes(noncePrefix);
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(segmentSize)
+                .putLong(payloadLength).putInt(indexBytes.size()).put(noncePrefix).array();
+        out.write(header);
+
+        Cipher cipher = Cipher.getInstance(AES_GCM);
+        byte[] plain = new byte[segmentSize];
+        byte[] sealed = new byte[segmentSize + TAG_SIZE];
+        int filled = 0;
+        int segment = 0;
+        long written = 0;
+        for (File f : files) {
+            InputStream in = new FileInputStream(f);
+            try {
+                int count;
+                while ((count = in.read(plain, filled, segmentSize - filled)) > 0) {
+                    filled += count;
+                    written += count;
+                    if (filled == segmentSize) {
+                        seal(cipher, key, header, nonce(noncePrefix, segment++), plain, filled,
+                                sealed, out);
+                        filled = 0;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+        if (filled > 0) {
+            seal(cipher, key, header, nonce(noncePrefix, segment), plain, filled, sealed, out);
+        }
+        if (written != payloadLength) {
+            throw new IOException("Files changed while they were written");
+        }
+        cipher.init(Cipher.ENCRYPT_MODE, key, nonce(noncePrefix, INDEX_NONCE));
+        cipher.updateAAD(header);
+        out.write(cipher.doFinal(indexBytes.toByteArray()));
+    }
+
+    /** Encrypt a segment and write it out. */
+    private static void seal(Cipher cipher, SecretKey key, byte[] header, GCMParameterSpec nonce,
+                             byte[] plain, int length, byte[] sealed, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        cipher.init(Cipher.ENCRYPT_MODE, key, nonce);
+        cipher.updateAAD(header);
+        int count = cipher.doFinal(plain, 0, length, sealed, 0);
+        out.write(sealed, 0, count);
+    }
+}
@@ -0,0 +1,105 @@
+package com.eggwall.android.photoviewer;
+
+import android.util.Log;
+
+import java.io.File;
+
+import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Keeps track of disk space that ingests in progress have been promised, so that several albums
+ * downloading at the same time can't each see the same free space and together fill the disk.
+ *
+ * Before an album is downloaded, its size is reserved here, along with the size of the package
+ * that it comes in. The reservation is granted only if the free space on disk, less everything
+ * that is already reserved, can hold it. As the images are written out, they start showing up in
+ * the free space that the disk reports, so the reservation is drawn down by the same amount. The
+ * space for the package is given back when the package is deleted. Once the ingest is finished,
+ * successfully or not, whatever is left of the reservation is released.
+ *
+ * Reservations are only kept in memory: when the process dies, so do the ingests that held them.
+ *
+ * This is thread-safe.
+ */
+class SpaceLedger {
+    private static final String TAG = "SpaceLedger";
+
+    /** Bytes promised to ingests and not yet written. */
+    private long outstanding = 0;
+
+    /** Space promised to a single ingest. */
+    class Reservation {
+        /** Bytes of this reservation that haven't been written or released. */
+        private long remaining;
+
+        private Reservation(long bytes) {
+            remaining = bytes;
+        }
+
+        /**
+         * Record that some of the reserved space has been written to disk.
+         * @param bytes bytes just written. Anything beyond the reservation is ignored.
+         */
+        @AnyThread
+        void consume(long bytes) {
+            synchronized (SpaceLedger.this) {
+                long used = Math.min(bytes, remaining);
+                remaining -= used;
+                outstanding -= used;
+            }
+        }
+
+        /**
+         * Give back part of this reservation, for a file that it was held for and that is gone.
+         * @param bytes bytes to give back. Anything beyond what is left is ignored.
+         */
+        @AnyThread
+        void release(long bytes) {
+            synchronized (SpaceLedger.this) {
+                long released = Math.min(bytes, remaining);
+                remaining -= released;
+                outstanding -= released;
+            }
+        }
+
+        /** Give back the rest of this reservation. Can be called more than once. */
+        @AnyThread
+        void release() {
+            synchronized (SpaceLedger.this) {
+                outstanding -= remaining;
+                remaining = 0;
+            }
+        }
+    }
+
+    /**
+     * Reserve space for an ingest.
+     * @param dir a directory on the disk where the ingest writes.
+     * @param bytes how many bytes the ingest will write.
+     * @return a reservation that needs to be released once the ingest is finished, or null if
+     *          there isn't enough space.
+     */
+    @AnyThread
+    synchronized @Nullable Reservation reserve(@NonNull File dir, long bytes) {
+        long available = available(dir);
+        if (bytes > available) {
+            Log.d(TAG, "Cannot reserve " + bytes + " bytes, " + available + " available");
+            return null;
+        }
+        outstanding += bytes;
+        return new Reservation(bytes);
+    }
+
+    /**
+     * The free space on the disk that isn't promised to any ingest.
+     * @param dir a directory on the disk.
+     * @return bytes available for a new ingest, possibly negative if the disk filled up from
+     *          outside this process.
+     */
+    @AnyThread
+    synchronized long available(@NonNull File dir) {
+        return dir.getFreeSpace() - outstanding;
+    }
+}
@@ -27,12 +27,14 @@ import com.eggwall.android.photoviewer.data.Album;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.navigation.NavigationView;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.widget.AppCompatImageView;
 import androidx.core.view.GestureDetectorCompat;
 import androidx.core.view.GravityCompat;
@@ -418,8 +420,9 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
                 break;
 
             case R.id.nav_timer:
-                // Development-only, call the timer.
+                // Development-only, call the timer and read every beacon.
                 mainController.timer();
+                mainController.pollBeacons(true);
                 break;
 
             default:
@@ -468,10 +471,13 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
      * Update the image by providing an offset
      *
      * @param nextFile The path of the next file to display.
+     * @param encoded The image itself if it was decrypted from an album kept encrypted, or null
+     *                if the image is a plain file at nextFile.
      * @param offset  is either {@link UiConstants#NEXT} or {@link UiConstants#PREV}
      * @param showFab True if the Floating Action Bar should be shown, false if it should be hidden.
      */
-    void updateImage(String nextFile, final int offset, final boolean showFab) {
+    void updateImage(String nextFile, @Nullable byte[] encoded, final int offset,
+                     final boolean showFab) {
         // Dismiss the intro screen, if necessary
         dismissIntroScreen();
 
@@ -479,11 +485,12 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
 
         // Just calculate how big the file is to learn the sizes
         opts.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(nextFile, opts);
+        decode(nextFile, encoded, opts);
 
         ExifInterface exif;
         try {
-            exif = new ExifInterface(nextFile);
+            exif = (encoded != null) ? new ExifInterface(new ByteArrayInputStream(encoded))
+                    : new ExifInterface(nextFile);
         } catch (IOException e) {
             String message = "Failed to open file: " + nextFile;
             mainController.toast(message);
@@ -562,7 +569,7 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
         // being read without sampling any dimensions. So the entire Bitmap is being loaded into
         // memory after which the imageView has to do more work to actually fit the larger image
         // into the smaller display.
-        current = BitmapFactory.decodeFile(nextFile, opts);
+        current = decode(nextFile, encoded, opts);
         if (current == null) {
             // Try to use more memory. Ignore the previous memory, and allocate a fresh new
             // space. In practice, this should be fine, since we will possibly do two large
@@ -570,14 +577,14 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
             // letter-boxing and so some images are shown at a very high sampling rate, and others
             // won't fit with a lower degree of sampling.
             opts.inBitmap = null;
-            current = BitmapFactory.decodeFile(nextFile, opts);
+            current = decode(nextFile, encoded, opts);
             if (current != null) {
                 Log.d(TAG, "Fixed on the second try: using more memory!");
             } else {
                 // Still failed. Try increasing the scaling factor and see if that fixes
                 // the problem.
                 opts.inSampleSize *= 2;
-                current = BitmapFactory.decodeFile(nextFile, opts);
+                current = decode(nextFile, encoded, opts);
 
                 if (current != null) {
                     Log.d(TAG, "Fixed on the third try: lower quality / sampling!");
@@ -644,6 +651,21 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
         // End of updateImage, the runnable above runs on the main thread and nothing more here.
     }
 
+    /**
+     * Decode an image, either from the file or from its bytes.
+     * @param file the path of the image.
+     * @param encoded the image if it was already read, or null to read the file.
+     * @param opts how to decode it.
+     * @return the image, or null if it can't be decoded or only the bounds were asked for.
+     */
+    private static Bitmap decode(String file, @Nullable byte[] encoded,
+                                 BitmapFactory.Options opts) {
+        if (encoded != null) {
+            return BitmapFactory.decodeByteArray(encoded, 0, encoded.length, opts);
+        }
+        return BitmapFactory.decodeFile(file, opts);
+    }
+
     /**
      * Get a rotated image.
      * @param sourceBitmap The original bitmap to rotate.
@@ -932,6 +954,7 @@ class UiController implements NavigationView.OnNavigationItemSelectedListener,
     private void setSlideshow(boolean slideShow, MenuItem item) {
         // Only this method allowed to set slideShowPlaying.
         slideShowPlaying = slideShow;
+        mainController.slideshowChanged(slideShowPlaying);
 
         if (slideShowPlaying) {
             // Start it in 300 ms from now.
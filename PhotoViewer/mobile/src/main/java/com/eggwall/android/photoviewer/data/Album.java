@@ -3,11 +3,13 @@ package com.eggwall.android.photoviewer.data;
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 import android.os.SystemClock;
 
 // A single Album entry.
-@Entity(tableName = "album")
+@Entity(tableName = "album",
+        indices = {@Index("hash"), @Index({"remote_location", "name"})})
 public class Album {
     /**
      * An opaque ID that uniquely defines this entry for all time.
@@ -48,6 +50,21 @@ public class Album {
     @ColumnInfo(name = "download_time")
     private long downloadTimeMs;
 
+    /**
+     * SHA-256 of the package this album was unpacked from, as lowercase hex. Null if the
+     * publisher didn't provide one. Albums with the same hash have the same content, and share
+     * a local location.
+     */
+    @ColumnInfo(name = "hash")
+    private String hash;
+
+    /**
+     * UUID of the key the images of this album are encrypted with, if they are kept encrypted
+     * on disk. Null if the images are plain files in the local location.
+     */
+    @ColumnInfo(name = "key_uid")
+    private String keyUid;
+
     public long getLastViewedTimeMs() {
         return lastViewedTimeMs;
     }
@@ -56,7 +73,7 @@ public class Album {
         return downloadTimeMs;
     }
 
-    String getRemoteLocation() {
+    public String getRemoteLocation() {
         return remoteLocation;
     }
 
@@ -94,6 +111,22 @@ public class Album {
                 + " localLocation = " + localLocation + " lastViewed = " + lastViewedTimeMs;
     }
 
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public String getKeyUid() {
+        return keyUid;
+    }
+
+    public void setKeyUid(String keyUid) {
+        this.keyUid = keyUid;
+    }
+
     public String getLocalLocation() {
         return localLocation;
     }
@@ -34,6 +34,32 @@ public interface AlbumDao {
     @Query("SELECT * FROM album WHERE name = :name AND remote_location = :remoteLocation")
     Album find(String remoteLocation, String name);
 
+    /**
+     * The remote location and name of every album, including the ones that aren't unpacked,
+     * joined by a newline. Nulls are empty. This is what {@link #find(String, String)} looks
+     * for, in a form that is cheap to hold in memory.
+     * @return one entry for every album.
+     */
+    @Query("SELECT IFNULL(remote_location, '') || char(10) || IFNULL(name, '') FROM album")
+    List<String> getLocationNames();
+
+    /**
+     * Find an unpacked album (if any) in the database with the specified content hash.
+     * @param hash SHA-256 of the package, as lowercase hex.
+     * @return an Album with a local location, if one is found, and null otherwise.
+     */
+    @Query("SELECT * FROM album WHERE hash = :hash AND local_location not null LIMIT 1")
+    Album findByHash(String hash);
+
+    /**
+     * Count the albums that are unpacked at this local location. More than one album can share
+     * a location when they have the same content.
+     * @param localLocation the absolute path of a gallery directory.
+     * @return the number of albums that use this directory.
+     */
+    @Query("SELECT COUNT(*) FROM album WHERE local_location = :localLocation")
+    int countAt(String localLocation);
+
     //    /**
 //     * Get a list of all the IDs that match any in the list provided
 //     * @param ids an array of IDs to look for
@@ -53,8 +79,13 @@ public interface AlbumDao {
     @Update
     void update(Album album);
 
+    /**
+     * Remove an album from the database.
+     * @param album an album with the id of the row to remove.
+     * @return the number of albums removed: 0 if there was no such row, 1 otherwise.
+     */
     @Delete
-    void delete(Album album);
+    int delete(Album album);
 
     /**
      * Return the most recently viewed album.
@@ -1,11 +1,13 @@
 package com.eggwall.android.photoviewer.data;
 
+import androidx.sqlite.db.SupportSQLiteDatabase;
 import androidx.sqlite.db.SupportSQLiteOpenHelper;
 import androidx.room.Database;
 import androidx.room.DatabaseConfiguration;
 import androidx.room.InvalidationTracker;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
 import android.content.Context;
 import androidx.annotation.NonNull;
 
@@ -14,14 +16,105 @@ import androidx.annotation.NonNull;
  * and other metadata associated with a download that is later unpacked into a file.
  *
  * Once the download is completed, it becomes a collection of Albums that exist on the device,
- * and a way for the LRU cache to purge out old entries.
+ * and a way for the LRU cache to purge out old entries. Downloads that haven't completed are
+ * also kept here as {@link IngestJob}s, and the {@link Beacon}s that new albums come from.
  */
-@Database(entities = {Album.class}, version = 1)
+@Database(entities = {Album.class, IngestJob.class, Beacon.class}, version = 7)
 public abstract class AlbumDatabase extends RoomDatabase {
     public abstract AlbumDao albumDao();
 
+    public abstract IngestJobDao ingestJobDao();
+
+    public abstract BeaconDao beaconDao();
+
     private static volatile AlbumDatabase INSTANCE;
 
+    /**
+     * Version 2 adds the content hash of the package, with an index so that duplicates can be
+     * found before downloading.
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE album ADD COLUMN hash TEXT");
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_album_hash ON album (hash)");
+        }
+    };
+
+    /**
+     * Version 3 adds the ingest jobs, so that downloads continue after the process dies.
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS ingest_job ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "album_id INTEGER NOT NULL, "
+                    + "state INTEGER NOT NULL, "
+                    + "download_id INTEGER NOT NULL, "
+                    + "location TEXT, "
+                    + "path_on_disk TEXT, "
+                    + "name TEXT, "
+                    + "is_encrypted INTEGER NOT NULL, "
+                    + "iv TEXT, "
+                    + "key_uid TEXT, "
+                    + "extracted_size INTEGER NOT NULL, "
+                    + "content_hash TEXT)");
+        }
+    };
+
+    /**
+     * Version 4 adds the beacons, so that content can come from more than one of them.
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS beacon ("
+                    + "id INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "url TEXT, "
+                    + "etag TEXT, "
+                    + "last_modified TEXT, "
+                    + "hash TEXT, "
+                    + "interval_ms INTEGER NOT NULL, "
+                    + "next_poll_ms INTEGER NOT NULL)");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS index_beacon_url ON beacon (url)");
+        }
+    };
+
+    /**
+     * Version 5 adds the mirrors of a package to its ingest job. Jobs from before are left with
+     * null mirrors, which is read like an empty list: only the location of the job.
+     */
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE ingest_job ADD COLUMN mirrors TEXT");
+        }
+    };
+
+    /**
+     * Version 6 adds an index for {@link AlbumDao#find(String, String)}, which runs before every
+     * download and used to read the whole table.
+     */
+    static final Migration MIGRATION_5_6 = new Migration(5, 6) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS index_album_remote_location_name "
+                    + "ON album (remote_location, name)");
+        }
+    };
+
+    /**
+     * Version 7 adds the key that an album is encrypted with, for albums that stay encrypted
+     * on disk.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE album ADD COLUMN key_uid TEXT");
+        }
+    };
+
     /**
      * Get or create a database.
      *
@@ -35,6 +128,8 @@ public abstract class AlbumDatabase extends RoomDatabase {
                 if (INSTANCE == null) {
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
                             AlbumDatabase.class, "album")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4,
+                                    MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7)
                             .build();
                 }
             }
@@ -0,0 +1,108 @@
+package com.eggwall.android.photoviewer.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * A URL that is monitored for new keys or content. It points to a manifest that lists one URI
+ * on every line. Every beacon is read on its own schedule, and remembers the validators from
+ * the last time it was read so that it can be read conditionally.
+ */
+@Entity(tableName = "beacon", indices = {@Index(value = "url", unique = true)})
+public class Beacon {
+    /**
+     * An opaque ID that uniquely defines this entry for all time.
+     */
+    @PrimaryKey(autoGenerate = true)
+    private long id;
+
+    /** The URL of the manifest. */
+    @ColumnInfo(name = "url")
+    private String url;
+
+    /** The ETag the server sent the last time this was read, or empty. */
+    @ColumnInfo(name = "etag")
+    private String etag = "";
+
+    /** The Last-Modified time the server sent the last time this was read, or empty. */
+    @ColumnInfo(name = "last_modified")
+    private String lastModified = "";
+
+    /** SHA-256 of the manifest the last time it was read, or empty. */
+    @ColumnInfo(name = "hash")
+    private String hash = "";
+
+    /** The interval between reads, without jitter, in milliseconds. */
+    @ColumnInfo(name = "interval_ms")
+    private long intervalMs;
+
+    /** When this is read next, in milliseconds since the epoch. */
+    @ColumnInfo(name = "next_poll_ms")
+    private long nextPollMs;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public long getNextPollMs() {
+        return nextPollMs;
+    }
+
+    public void setNextPollMs(long nextPollMs) {
+        this.nextPollMs = nextPollMs;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "Beacon: " + url + ", id: " + id + ", every " + intervalMs + "ms, next at "
+                + nextPollMs;
+    }
+}
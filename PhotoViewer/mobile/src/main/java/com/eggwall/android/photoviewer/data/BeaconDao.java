@@ -0,0 +1,42 @@
+package com.eggwall.android.photoviewer.data;
+
+import androidx.room.Dao;
+import androidx.room.Delete;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+import androidx.room.Update;
+
+import java.util.List;
+
+@Dao
+public interface BeaconDao {
+    /**
+     * Returns every beacon.
+     * @return all the beacons, oldest first.
+     */
+    @Query("SELECT * FROM beacon ORDER BY id")
+    List<Beacon> getAll();
+
+    /**
+     * Returns the beacons that are due to be read.
+     * @param nowMs the current time, in milliseconds since the epoch.
+     * @return the beacons whose next read is at or before this time.
+     */
+    @Query("SELECT * FROM beacon WHERE next_poll_ms <= :nowMs ORDER BY next_poll_ms")
+    List<Beacon> getDue(long nowMs);
+
+    /**
+     * Insert a new beacon, unless one with the same URL exists.
+     * @param beacon a beacon in which the id is unspecified (0 is fine).
+     * @return the id that was assigned to this beacon, or -1 if the URL is already monitored.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    long insert(Beacon beacon);
+
+    @Update
+    void update(Beacon beacon);
+
+    @Delete
+    void delete(Beacon beacon);
+}
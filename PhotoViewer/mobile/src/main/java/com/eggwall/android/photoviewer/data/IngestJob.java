@@ -0,0 +1,205 @@
+package com.eggwall.android.photoviewer.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * A single package on its way to becoming an album: downloaded, then decrypted if required, and
+ * then unpacked. The job is written to disk before anything starts, and every time it moves to
+ * the next stage, so that a process which dies part of the way can continue from the stage it
+ * reached instead of downloading again or leaving files behind.
+ *
+ * This has everything needed to create the download information again, along with the
+ * {@link Album} that the package is unpacked into.
+ */
+@Entity(tableName = "ingest_job")
+public class IngestJob {
+    /** Waiting for a download slot. Nothing has been written to disk yet. */
+    public static final int QUEUED = 0;
+
+    /** The package is being downloaded, by the DownloadManager or in process. */
+    public static final int DOWNLOADING = 1;
+
+    /** The package is on disk, and is being decrypted. */
+    public static final int DECRYPTING = 2;
+
+    /** The package is on disk, and images are being written to the gallery. */
+    public static final int UNPACKING = 3;
+
+    /** The album is complete. */
+    public static final int DONE = 4;
+
+    /**
+     * An opaque ID that uniquely defines this entry for all time.
+     */
+    @PrimaryKey(autoGenerate = true)
+    private long id;
+
+    /** The id of the {@link Album} that the package is unpacked into. */
+    @ColumnInfo(name = "album_id")
+    private long albumId;
+
+    /** One of {@link #QUEUED}, {@link #DOWNLOADING}, {@link #UNPACKING} and so on. */
+    @ColumnInfo(name = "state")
+    private int state;
+
+    /**
+     * The id that the DownloadManager gave the download, or -1 if the package is downloaded in
+     * process or the download hasn't started.
+     */
+    @ColumnInfo(name = "download_id")
+    private long downloadId = -1;
+
+    /** Where the package is downloaded from. */
+    @ColumnInfo(name = "location")
+    private String location;
+
+    /** Where the package is downloaded to, relative to the Pictures directory. */
+    @ColumnInfo(name = "path_on_disk")
+    private String pathOnDisk;
+
+    /** Human-readable name of the album. */
+    @ColumnInfo(name = "name")
+    private String name;
+
+    /** True if the package needs to be decrypted. */
+    @ColumnInfo(name = "is_encrypted")
+    private boolean encrypted;
+
+    /** The initialization vector for an encrypted package, base64. Empty otherwise. */
+    @ColumnInfo(name = "iv")
+    private String iv;
+
+    /** The UUID of the key for an encrypted package. Empty otherwise. */
+    @ColumnInfo(name = "key_uid")
+    private String keyUid;
+
+    /** Size of the images once they are unpacked, in bytes. */
+    @ColumnInfo(name = "extracted_size")
+    private long extractedSize;
+
+    /** SHA-256 of the package, lowercase hex, or empty if it isn't known. */
+    @ColumnInfo(name = "content_hash")
+    private String contentHash;
+
+    /**
+     * Every place the package can be downloaded from, one URL on every line, starting with
+     * {@link #location}. Null for jobs that were written before mirrors were known, which means
+     * the same as empty: the package is only at {@link #location}.
+     */
+    @ColumnInfo(name = "mirrors")
+    private String mirrors;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getAlbumId() {
+        return albumId;
+    }
+
+    public void setAlbumId(long albumId) {
+        this.albumId = albumId;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    public long getDownloadId() {
+        return downloadId;
+    }
+
+    public void setDownloadId(long downloadId) {
+        this.downloadId = downloadId;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public String getPathOnDisk() {
+        return pathOnDisk;
+    }
+
+    public void setPathOnDisk(String pathOnDisk) {
+        this.pathOnDisk = pathOnDisk;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public String getIv() {
+        return iv;
+    }
+
+    public void setIv(String iv) {
+        this.iv = iv;
+    }
+
+    public String getKeyUid() {
+        return keyUid;
+    }
+
+    public void setKeyUid(String keyUid) {
+        this.keyUid = keyUid;
+    }
+
+    public long getExtractedSize() {
+        return extractedSize;
+    }
+
+    public void setExtractedSize(long extractedSize) {
+        this.extractedSize = extractedSize;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getMirrors() {
+        return mirrors;
+    }
+
+    public void setMirrors(String mirrors) {
+        this.mirrors = mirrors;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return "IngestJob: " + id + " for album " + albumId + ", state " + state + " from "
+                + location + " to " + pathOnDisk + ", download " + downloadId;
+    }
+}
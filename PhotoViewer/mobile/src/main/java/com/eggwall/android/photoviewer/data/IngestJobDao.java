@@ -0,0 +1,40 @@
+package com.eggwall.android.photoviewer.data;
+
+import androidx.room.Dao;
+import androidx.room.Delete;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Update;
+
+import java.util.List;
+
+@Dao
+public interface IngestJobDao {
+    /**
+     * Returns every job that hasn't finished, oldest first. These are the jobs to continue when
+     * the process starts.
+     * @return jobs that are in any state other than {@link IngestJob#DONE}.
+     */
+    @Query("SELECT * FROM ingest_job WHERE state != " + IngestJob.DONE + " ORDER BY id")
+    List<IngestJob> getUnfinished();
+
+    /**
+     * Insert a new job.
+     * @param job a job in which the id is unspecified (0 is fine).
+     * @return the id that was assigned to this job.
+     */
+    @Insert
+    long insert(IngestJob job);
+
+    @Update
+    void update(IngestJob job);
+
+    @Delete
+    void delete(IngestJob job);
+
+    /**
+     * Remove the jobs that have finished. They are only kept till the next routine cleanup.
+     */
+    @Query("DELETE FROM ingest_job WHERE state = " + IngestJob.DONE)
+    void deleteDone();
+}
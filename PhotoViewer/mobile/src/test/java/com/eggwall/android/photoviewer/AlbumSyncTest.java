@@ -0,0 +1,147 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link AlbumSync} against a local HTTP server.
+ */
+public class AlbumSyncTest {
+    public static final String TAG = "AlbumSyncTest";
+
+    private LocalHttpServer server;
+    private File workDir;
+    private File galleryDir;
+    private final Random random = new Random(42);
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer(new byte[0]);
+        workDir = Files.createTempDirectory(TAG).toFile();
+        galleryDir = new File(workDir, "gal_0001");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        delete(workDir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private byte[] image(int size) {
+        byte[] content = new byte[size];
+        random.nextBytes(content);
+        return content;
+    }
+
+    /** A manifest line for this image, and serve the image next to the manifest. */
+    private String publish(String name, byte[] content) {
+        server.setBody("/al/" + name, content);
+        return CryptoRoutines.sha256(content, content.length) + " " + content.length + " " + name
+                + "\n";
+    }
+
+    private AlbumSync albumSync() throws IOException {
+        return new AlbumSync(server.url("/al/manifest"), galleryDir, workDir, null,
+                new SpaceLedger());
+    }
+
+    @Test
+    public void fetchesOnlyMissingAndChangedImages() throws Exception {
+        byte[] one = image(10 * 1024);
+        byte[] two = image(20 * 1024);
+        byte[] three = image(30 * 1024);
+        server.setBody("/al/manifest", (publish("one.jpg", one) + publish("two.jpg", two))
+                .getBytes(StandardCharsets.UTF_8));
+
+        AlbumSync.Result first = albumSync().sync();
+        assertEquals(2, first.fetched);
+        assertEquals(0, first.unchanged);
+
+        // The album gains an image, and another one changes.
+        byte[] twoEdited = image(20 * 1024);
+        server.setBody("/al/manifest", ("# Updated\n" + publish("one.jpg", one)
+                + publish("two.jpg", twoEdited) + publish("three photo.jpg", three))
+                .getBytes(StandardCharsets.UTF_8));
+        server.paths.clear();
+
+        AlbumSync.Result second = albumSync().sync();
+        assertEquals(2, second.fetched);
+        assertEquals(1, second.unchanged);
+        assertEquals(50 * 1024, second.bytesFetched);
+        assertEquals(Arrays.asList("/al/manifest", "/al/two.jpg", "/al/three photo.jpg"),
+                server.paths);
+
+        assertArrayEquals(one, Files.readAllBytes(new File(galleryDir, "one.jpg").toPath()));
+        assertArrayEquals(twoEdited,
+                Files.readAllBytes(new File(galleryDir, "two.jpg").toPath()));
+        assertArrayEquals(three,
+                Files.readAllBytes(new File(galleryDir, "three photo.jpg").toPath()));
+        // No temporary files are left behind.
+        assertEquals(1, workDir.list().length);
+    }
+
+    @Test
+    public void rejectsImageThatDoesNotMatchItsHash() throws Exception {
+        byte[] one = image(10 * 1024);
+        String line = publish("one.jpg", one);
+        server.setBody("/al/one.jpg", image(10 * 1024));
+        server.setBody("/al/manifest", line.getBytes(StandardCharsets.UTF_8));
+
+        try {
+            albumSync().sync();
+            fail("Corrupt image was accepted");
+        } catch (IOException expected) {
+            // Expected.
+        }
+        assertFalse(new File(galleryDir, "one.jpg").exists());
+        assertEquals(1, workDir.list().length);
+    }
+
+    @Test
+    public void parsesManifestLines() {
+        String hash = CryptoRoutines.sha256(new byte[0], 0);
+        List<AlbumSync.Entry> entries = AlbumSync.parseManifest(Arrays.asList(
+                hash + " 12 a.jpg",
+                hash + " 12 with space.jpg",
+                hash + " twelve b.jpg",
+                hash + " 12 ../escape.jpg",
+                hash + " 12 .hidden",
+                "abc 12 short-hash.jpg",
+                hash + " 12"), false);
+        assertEquals(2, entries.size());
+        assertEquals("a.jpg", entries.get(0).name);
+        assertEquals(12, entries.get(0).size);
+        assertEquals("with space.jpg", entries.get(1).name);
+
+        List<AlbumSync.Entry> encrypted = AlbumSync.parseManifest(Arrays.asList(
+                hash + " 12 aXY= c d.jpg", hash + " 12 e.jpg"), true);
+        assertEquals(1, encrypted.size());
+        assertEquals("aXY=", encrypted.get(0).iv);
+        assertEquals("c d.jpg", encrypted.get(0).name);
+        assertEquals(hash, encrypted.get(0).hash);
+    }
+}
@@ -0,0 +1,170 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BandwidthGovernor}.
+ */
+public class BandwidthGovernorTest {
+    private static final int PIECE = 16 * 1024;
+
+    /** Consume this many bytes in pieces, and return how long it took. */
+    private static long consume(BandwidthGovernor.Meter meter, int bytes)
+            throws InterruptedIOException {
+        long startMs = System.currentTimeMillis();
+        for (int done = 0; done < bytes; done += PIECE) {
+            meter.consume(PIECE);
+        }
+        return System.currentTimeMillis() - startMs;
+    }
+
+    @Test
+    public void unlimitedNeverWaits() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        assertFalse(governor.isLimited());
+        assertTrue(consume(governor.newMeter(), 64 * 1024 * 1024) < 200);
+    }
+
+    @Test
+    public void playingRateOnlyLimitsWhilePlaying() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        // The defaults in Pref: only the playing rate is set.
+        governor.setRates(BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED,
+                2048 * 1024L);
+        assertFalse(governor.isLimited());
+        assertTrue(consume(governor.newMeter(), 64 * 1024 * 1024) < 200);
+
+        governor.setPlaying(true);
+        assertTrue(governor.isLimited());
+        governor.setPlaying(false);
+        assertFalse(governor.isLimited());
+    }
+
+    @Test
+    public void eachDownloadIsLimited() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(BandwidthGovernor.UNLIMITED, 1024 * 1024, BandwidthGovernor.UNLIMITED);
+        assertTrue(governor.isLimited());
+
+        // Half a second at the rate, less the burst.
+        long elapsedMs = consume(governor.newMeter(), 512 * 1024);
+        assertTrue("Took " + elapsedMs + "ms", elapsedMs >= 200 && elapsedMs < 1000);
+
+        // Another download has its own limit, and starts with a full burst.
+        assertTrue(consume(governor.newMeter(), 128 * 1024) < 100);
+    }
+
+    @Test
+    public void globalRateIsShared() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(1024 * 1024, BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED);
+        final BandwidthGovernor.Meter first = governor.newMeter();
+        final BandwidthGovernor.Meter second = governor.newMeter();
+
+        long startMs = System.currentTimeMillis();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    consume(second, 512 * 1024);
+                } catch (InterruptedIOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        other.start();
+        consume(first, 512 * 1024);
+        other.join();
+        // A whole second for both together, less the burst.
+        long elapsedMs = System.currentTimeMillis() - startMs;
+        assertTrue("Took " + elapsedMs + "ms", elapsedMs >= 700 && elapsedMs < 2000);
+    }
+
+    @Test
+    public void slowsDownWhilePlaying() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED, 256 * 1024);
+        BandwidthGovernor.Meter meter = governor.newMeter();
+        assertEquals(BandwidthGovernor.UNLIMITED, governor.getGlobalRate());
+
+        governor.setPlaying(true);
+        assertEquals(256 * 1024, governor.getGlobalRate());
+        long elapsedMs = consume(meter, 128 * 1024);
+        assertTrue("Took " + elapsedMs + "ms", elapsedMs >= 200 && elapsedMs < 1000);
+
+        // The same download speeds up once the slideshow stops.
+        governor.setPlaying(false);
+        assertTrue(consume(meter, 16 * 1024 * 1024) < 200);
+    }
+
+    @Test
+    public void newRatesWakeDownloadsThatAreWaiting() throws Exception {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(BandwidthGovernor.UNLIMITED, 1024, BandwidthGovernor.UNLIMITED);
+        final BandwidthGovernor.Meter meter = governor.newMeter();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread download = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // A minute at this rate.
+                    meter.consume(60 * 1024);
+                    done.countDown();
+                } catch (InterruptedIOException e) {
+                    // Fails the test below.
+                }
+            }
+        });
+        download.start();
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+
+        governor.setRates(BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED,
+                BandwidthGovernor.UNLIMITED);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // And the bytes taken at the old rate don't hold up the new one.
+        assertTrue(consume(meter, 1024 * 1024) < 200);
+    }
+
+    @Test
+    public void slideshowStoppingWakesDownloadsThatAreWaiting() throws Exception {
+        final BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED, 1024);
+        governor.setPlaying(true);
+        final BandwidthGovernor.Meter meter = governor.newMeter();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread download = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    meter.consume(60 * 1024);
+                    done.countDown();
+                } catch (InterruptedIOException e) {
+                    // Fails the test below.
+                }
+            }
+        });
+        download.start();
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+
+        governor.setPlaying(false);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void playingNeverAllowsMoreThanIdle() {
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(100, BandwidthGovernor.UNLIMITED, 200);
+        governor.setPlaying(true);
+        assertEquals(100, governor.getGlobalRate());
+        governor.setRates(100, BandwidthGovernor.UNLIMITED, BandwidthGovernor.UNLIMITED);
+        assertEquals(100, governor.getGlobalRate());
+    }
+}
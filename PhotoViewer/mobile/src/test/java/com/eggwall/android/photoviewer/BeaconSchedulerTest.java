@@ -0,0 +1,69 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static com.eggwall.android.photoviewer.BeaconScheduler.MAX_FAILURE_INTERVAL_MS;
+import static com.eggwall.android.photoviewer.BeaconScheduler.MAX_QUIET_INTERVAL_MS;
+import static com.eggwall.android.photoviewer.BeaconScheduler.MIN_INTERVAL_MS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link BeaconScheduler}.
+ */
+public class BeaconSchedulerTest {
+    private final BeaconScheduler scheduler = new BeaconScheduler(0, new Random(42));
+
+    @Test
+    public void quietBeaconBacksOffToTheHourlyInterval() {
+        assertEquals(MIN_INTERVAL_MS, scheduler.getIntervalMs());
+        scheduler.next(BeaconScheduler.UNCHANGED);
+        assertEquals(2 * MIN_INTERVAL_MS, scheduler.getIntervalMs());
+        for (int i = 0; i < 10; i++) {
+            scheduler.next(BeaconScheduler.UNCHANGED);
+        }
+        assertEquals(MAX_QUIET_INTERVAL_MS, scheduler.getIntervalMs());
+
+        // A change brings it right back down.
+        scheduler.next(BeaconScheduler.CHANGED);
+        assertEquals(MIN_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void failuresBackOffFurtherThanQuietReads() {
+        for (int i = 0; i < 20; i++) {
+            scheduler.next(BeaconScheduler.FAILED);
+        }
+        assertEquals(MAX_FAILURE_INTERVAL_MS, scheduler.getIntervalMs());
+
+        // Once the server answers again, it is read at least hourly.
+        scheduler.next(BeaconScheduler.UNCHANGED);
+        assertEquals(MAX_QUIET_INTERVAL_MS, scheduler.getIntervalMs());
+    }
+
+    @Test
+    public void delaysAreSpreadAroundTheInterval() {
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        for (int i = 0; i < 1000; i++) {
+            long delay = scheduler.next(BeaconScheduler.NO_BEACON);
+            shortest = Math.min(shortest, delay);
+            longest = Math.max(longest, delay);
+        }
+        double jitter = BeaconScheduler.JITTER * MAX_QUIET_INTERVAL_MS;
+        assertTrue(shortest >= MAX_QUIET_INTERVAL_MS - jitter);
+        assertTrue(longest <= MAX_QUIET_INTERVAL_MS + jitter);
+        // The delays really are spread out, not all the same.
+        assertTrue(longest - shortest > jitter);
+    }
+
+    @Test
+    public void continuesFromAnEarlierInterval() {
+        assertEquals(10 * 60 * 1000,
+                new BeaconScheduler(10 * 60 * 1000, new Random()).getIntervalMs());
+        assertEquals(MAX_FAILURE_INTERVAL_MS,
+                new BeaconScheduler(Long.MAX_VALUE / 4, new Random()).getIntervalMs());
+    }
+}
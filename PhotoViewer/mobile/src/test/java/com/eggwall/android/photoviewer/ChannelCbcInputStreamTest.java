@@ -0,0 +1,171 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ChannelCbcInputStream}.
+ */
+public class ChannelCbcInputStreamTest {
+    public static final String TAG = "ChannelCbcInputStreamTest";
+
+    private static final int BUFFER = CryptoRoutines.NIO_BUFFER_SIZE;
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    private final byte[] iv = new byte[16];
+    private final Random random = new Random(42);
+    private File cipherFile;
+
+    @Before
+    public void setUp() throws Exception {
+        cipherFile = File.createTempFile(TAG, ".asc");
+        random.nextBytes(iv);
+    }
+
+    @After
+    public void tearDown() {
+        cipherFile.delete();
+    }
+
+    /** Encrypt some random bytes into {@link #cipherFile}, and return the bytes. */
+    private byte[] writeEncrypted(int size) throws Exception {
+        byte[] plain = new byte[size];
+        random.nextBytes(plain);
+        Cipher cipher = Cipher.getInstance(CryptoRoutines.AES_CBC_PKCS5_PADDING);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        Files.write(cipherFile.toPath(), cipher.doFinal(plain));
+        return plain;
+    }
+
+    private InputStream open(SecretKey key) throws Exception {
+        return new ChannelCbcInputStream(cipherFile, iv, key);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decrypts() throws Exception {
+        // Shorter than a block, whole blocks, and files that end inside a buffer of cipher
+        // text, at the end of one, and with the padding in a buffer of its own.
+        int[] sizes = {0, 5, 16, 100000, BUFFER - 16, BUFFER - 1, BUFFER, 3 * BUFFER + 7};
+        for (int size : sizes) {
+            byte[] plain = writeEncrypted(size);
+            assertArrayEquals("Size " + size, plain, readAll(open(key)));
+        }
+    }
+
+    @Test
+    public void readsSingleBytes() throws Exception {
+        byte[] plain = writeEncrypted(5000);
+        InputStream in = open(key);
+        for (byte b : plain) {
+            assertEquals(b & 0xff, in.read());
+        }
+        assertEquals(-1, in.read());
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void rejectsWrongKey() throws Exception {
+        writeEncrypted(5000);
+        byte[] other = new byte[16];
+        other[0] = 1;
+        try {
+            readAll(open(new SecretKeySpec(other, "AES")));
+            fail("Decrypted with the wrong key");
+        } catch (IOException expected) {
+            // The padding is wrong.
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws Exception {
+        writeEncrypted(5000);
+        RandomAccessFile f = new RandomAccessFile(cipherFile, "rw");
+        try {
+            f.setLength(f.length() - 1);
+        } finally {
+            f.close();
+        }
+        try {
+            readAll(open(key));
+            fail("Decrypted a file that isn't whole blocks");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void streamsOpenTogetherDontShareBuffers() throws Exception {
+        byte[] plain = writeEncrypted(2 * BUFFER + 100);
+        InputStream one = open(key);
+        InputStream two = open(key);
+        ByteArrayOutputStream outOne = new ByteArrayOutputStream();
+        ByteArrayOutputStream outTwo = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100000];
+        int count;
+        // Read in turns, so that both are in the middle of the file at once.
+        while ((count = one.read(buffer)) > 0) {
+            outOne.write(buffer, 0, count);
+            count = two.read(buffer);
+            if (count > 0) {
+                outTwo.write(buffer, 0, count);
+            }
+        }
+        while ((count = two.read(buffer)) > 0) {
+            outTwo.write(buffer, 0, count);
+        }
+        one.close();
+        two.close();
+        assertArrayEquals(plain, outOne.toByteArray());
+        assertArrayEquals(plain, outTwo.toByteArray());
+
+        // The buffers that were given back decrypt the next file correctly.
+        plain = writeEncrypted(5000);
+        assertArrayEquals(plain, readAll(open(key)));
+    }
+
+    @Test
+    public void closesEarly() throws Exception {
+        writeEncrypted(100000);
+        InputStream in = open(key);
+        assertEquals(100, in.read(new byte[100]));
+        in.close();
+        // Closing again does nothing.
+        in.close();
+        try {
+            in.read();
+            fail("Read after close");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+}
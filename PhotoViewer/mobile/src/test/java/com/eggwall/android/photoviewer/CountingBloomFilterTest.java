@@ -0,0 +1,90 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CountingBloomFilter}.
+ */
+public class CountingBloomFilterTest {
+    private static String album(int i) {
+        return "https://example.com/albums/" + i + ".zip\nAlbum " + i;
+    }
+
+    @Test
+    public void neverMissesWhatWasAdded() {
+        CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(album(i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(album(i)));
+        }
+        assertEquals(10000, filter.size());
+    }
+
+    @Test
+    public void falsePositivesAreRare() {
+        CountingBloomFilter filter = new CountingBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(album(i));
+        }
+        int falsePositives = 0;
+        for (int i = 10000; i < 110000; i++) {
+            if (filter.mightContain(album(i))) {
+                falsePositives++;
+            }
+        }
+        // 1% of 100,000, with room for chance.
+        assertTrue("False positives: " + falsePositives, falsePositives < 1500);
+    }
+
+    @Test
+    public void removedStringsAreForgotten() {
+        CountingBloomFilter filter = new CountingBloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add(album(i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            filter.remove(album(i));
+        }
+        int remembered = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (i % 2 == 1) {
+                // Removing others never hides what is still there.
+                assertTrue(filter.mightContain(album(i)));
+            } else if (filter.mightContain(album(i))) {
+                remembered++;
+            }
+        }
+        assertTrue("Still remembered: " + remembered, remembered < 25);
+        assertEquals(500, filter.size());
+    }
+
+    @Test
+    public void duplicatesNeedAsManyRemovals() {
+        CountingBloomFilter filter = new CountingBloomFilter(100, 0.01);
+        filter.add(album(1));
+        filter.add(album(1));
+        filter.remove(album(1));
+        assertTrue(filter.mightContain(album(1)));
+        filter.remove(album(1));
+        assertFalse(filter.mightContain(album(1)));
+    }
+
+    @Test
+    public void fullCountersStayFull() {
+        CountingBloomFilter filter = new CountingBloomFilter(100, 0.01);
+        for (int i = 0; i < CountingBloomFilter.MAX_COUNT + 10; i++) {
+            filter.add(album(1));
+        }
+        for (int i = 0; i < CountingBloomFilter.MAX_COUNT + 10; i++) {
+            filter.remove(album(1));
+        }
+        // The counters lost count, so they can't go back to zero.
+        assertTrue(filter.mightContain(album(1)));
+    }
+}
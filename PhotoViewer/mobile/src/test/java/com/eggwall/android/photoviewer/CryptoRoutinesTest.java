@@ -0,0 +1,151 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the file decryption in {@link CryptoRoutines}.
+ */
+public class CryptoRoutinesTest {
+    public static final String TAG = "CryptoRoutinesTest";
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    private final byte[] iv = new byte[16];
+    private final Random random = new Random(42);
+    private File cipherFile;
+    private File plainFile;
+
+    @Before
+    public void setUp() throws Exception {
+        cipherFile = File.createTempFile(TAG, ".asc");
+        plainFile = File.createTempFile(TAG, ".zip");
+        random.nextBytes(iv);
+    }
+
+    @After
+    public void tearDown() {
+        cipherFile.delete();
+        plainFile.delete();
+    }
+
+    /** Encrypt some random bytes into {@link #cipherFile}, and return the bytes. */
+    private byte[] writeEncrypted(int size) throws Exception {
+        byte[] plain = new byte[size];
+        random.nextBytes(plain);
+        Cipher cipher = Cipher.getInstance(CryptoRoutines.AES_CBC_PKCS5_PADDING);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        Files.write(cipherFile.toPath(), cipher.doFinal(plain));
+        return plain;
+    }
+
+    /** Decrypt {@link #cipherFile} into {@link #plainFile} between channels. */
+    private long decryptChannels(SecretKey key) throws Exception {
+        FileInputStream in = new FileInputStream(cipherFile);
+        FileOutputStream out = new FileOutputStream(plainFile);
+        try {
+            return CryptoRoutines.decrypt(in.getChannel(), out.getChannel(), iv, key);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    @Test
+    public void decryptsBetweenChannels() throws Exception {
+        // Shorter than a block, whole blocks, and across several buffers.
+        int buffer = CryptoRoutines.NIO_BUFFER_SIZE;
+        int[] sizes = {0, 5, 16, buffer - 1, buffer, buffer + 1, 3 * buffer + 100};
+        for (int size : sizes) {
+            byte[] plain = writeEncrypted(size);
+            assertEquals(size, decryptChannels(key));
+            assertArrayEquals(plain, Files.readAllBytes(plainFile.toPath()));
+        }
+    }
+
+    @Test
+    public void decryptsFiles() throws Exception {
+        byte[] plain = writeEncrypted(100000);
+        plainFile.delete();
+        CryptoRoutines.decrypt(cipherFile.getPath(), iv, key, plainFile.getPath());
+        assertArrayEquals(plain, Files.readAllBytes(plainFile.toPath()));
+    }
+
+    @Test
+    public void rejectsWrongKey() throws Exception {
+        writeEncrypted(100000);
+        byte[] other = new byte[16];
+        other[0] = 1;
+        try {
+            decryptChannels(new SecretKeySpec(other, "AES"));
+            fail("Decrypted with the wrong key");
+        } catch (GeneralSecurityException expected) {
+            // The padding is wrong.
+        }
+    }
+
+    @Test
+    public void reusesCiphersThatWereGivenBack() throws Exception {
+        // A transformation nothing else uses, so that no other cipher was given back.
+        String transformation = "AES/CTR/NoPadding";
+        Cipher first = CryptoRoutines.borrowCipher(transformation);
+        Cipher second = CryptoRoutines.borrowCipher(transformation);
+        assertNotSame(first, second);
+        CryptoRoutines.giveBack(first);
+        assertSame(first, CryptoRoutines.borrowCipher(transformation));
+        CryptoRoutines.giveBack(first);
+        CryptoRoutines.giveBack(second);
+    }
+
+    @Test
+    public void streamsOpenTogetherDontShareCiphers() throws Exception {
+        byte[] plain = writeEncrypted(10000);
+        byte[] cipherText = Files.readAllBytes(cipherFile.toPath());
+        InputStream one = CryptoRoutines.decryptingStream(
+                new ByteArrayInputStream(cipherText), iv, key);
+        InputStream two = CryptoRoutines.decryptingStream(
+                new ByteArrayInputStream(cipherText), iv, key);
+        ByteArrayOutputStream outOne = new ByteArrayOutputStream();
+        ByteArrayOutputStream outTwo = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        // Read in turns, so that both ciphers are in the middle of the file at once.
+        while ((count = one.read(buffer)) > 0) {
+            outOne.write(buffer, 0, count);
+            count = two.read(buffer);
+            if (count > 0) {
+                outTwo.write(buffer, 0, count);
+            }
+        }
+        while ((count = two.read(buffer)) > 0) {
+            outTwo.write(buffer, 0, count);
+        }
+        one.close();
+        two.close();
+        // Closing again does nothing.
+        one.close();
+        assertArrayEquals(plain, outOne.toByteArray());
+        assertArrayEquals(plain, outTwo.toByteArray());
+    }
+}
@@ -0,0 +1,143 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link DownloadScheduler}.
+ */
+public class DownloadSchedulerTest {
+    /** Holds the downloads the scheduler starts, till the test runs them. */
+    private static class HeldExecutor implements Executor {
+        final List<Runnable> held = new ArrayList<>();
+
+        @Override
+        public synchronized void execute(Runnable command) {
+            held.add(command);
+        }
+
+        /** Run everything that was started so far. */
+        void runAll() {
+            List<Runnable> toRun;
+            synchronized (this) {
+                toRun = new ArrayList<>(held);
+                held.clear();
+            }
+            for (Runnable r : toRun) {
+                r.run();
+            }
+        }
+    }
+
+    private final HeldExecutor executor = new HeldExecutor();
+    private final DownloadScheduler scheduler = new DownloadScheduler(executor);
+    /** The names of the downloads, in the order they started. */
+    private final List<String> started = new ArrayList<>();
+
+    /** Queue a download that records its name when it starts. */
+    private void schedule(final String name) {
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                started.add(name);
+            }
+        });
+    }
+
+    @Test
+    public void newestStartsFirst() {
+        scheduler.setLimit(1);
+        schedule("a");
+        schedule("b");
+        schedule("c");
+        schedule("d");
+        executor.runAll();
+        assertEquals(Arrays.asList("a"), started);
+
+        scheduler.finished();
+        executor.runAll();
+        scheduler.finished();
+        executor.runAll();
+        scheduler.finished();
+        executor.runAll();
+        assertEquals(Arrays.asList("a", "d", "c", "b"), started);
+    }
+
+    @Test
+    public void neverRunsMoreThanTheLimit() {
+        scheduler.setLimit(2);
+        for (int i = 0; i < 5; i++) {
+            schedule("" + i);
+        }
+        executor.runAll();
+        assertEquals(2, started.size());
+
+        scheduler.finished();
+        executor.runAll();
+        assertEquals(3, started.size());
+
+        // Nothing more starts till another one finishes.
+        executor.runAll();
+        assertEquals(3, started.size());
+    }
+
+    @Test
+    public void raisingTheLimitStartsWaitingDownloads() {
+        scheduler.setLimit(1);
+        schedule("a");
+        schedule("b");
+        schedule("c");
+        executor.runAll();
+        assertEquals(1, started.size());
+
+        scheduler.setLimit(3);
+        executor.runAll();
+        assertEquals(Arrays.asList("a", "c", "b"), started);
+    }
+
+    @Test
+    public void loweringTheLimitLetsRunningDownloadsFinish() {
+        scheduler.setLimit(2);
+        schedule("a");
+        schedule("b");
+        schedule("c");
+        executor.runAll();
+        assertEquals(2, started.size());
+
+        scheduler.setLimit(1);
+        scheduler.finished();
+        executor.runAll();
+        // One is still running, which is the limit.
+        assertEquals(2, started.size());
+        scheduler.finished();
+        executor.runAll();
+        assertEquals(3, started.size());
+    }
+
+    @Test
+    public void startsDownloadsOnAnotherThread() throws Exception {
+        DownloadScheduler shared = new DownloadScheduler();
+        final Thread[] ranOn = new Thread[1];
+        final CountDownLatch ran = new CountDownLatch(1);
+        shared.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ranOn[0] = Thread.currentThread();
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), ranOn[0]);
+        shared.finished();
+    }
+}
@@ -0,0 +1,71 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Tests that {@link HttpConnections} gives connections back for reuse.
+ */
+public class HttpConnectionsTest {
+    private LocalHttpServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] content = new byte[16 * 1024];
+        new Random(42).nextBytes(content);
+        server = new LocalHttpServer(content);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    /** Make a request, reading this many bytes of the response before releasing it. */
+    private void request(String path, int toRead, boolean keep) throws IOException {
+        HttpURLConnection connection = HttpConnections.open(server.url(path));
+        InputStream body = null;
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+            InputStream in = connection.getInputStream();
+            for (int i = 0; i < toRead && in.read() != -1; i++) {
+                // Skip over the bytes.
+            }
+            if (keep) {
+                body = in;
+            }
+        } finally {
+            HttpConnections.release(connection, body);
+        }
+    }
+
+    @Test
+    public void reusesConnectionForSameHost() throws IOException {
+        request("/beacon", Integer.MAX_VALUE, true);
+        // The rest of this response is drained when it is released.
+        request("/al/manifest", 10, true);
+        request("/al/one.jpg", 0, true);
+
+        assertEquals(3, server.clientPorts.size());
+        assertEquals(server.clientPorts.get(0), server.clientPorts.get(1));
+        assertEquals(server.clientPorts.get(0), server.clientPorts.get(2));
+    }
+
+    @Test
+    public void dropsAbandonedConnection() throws IOException {
+        request("/beacon", 10, false);
+        request("/al/manifest", 0, true);
+
+        assertEquals(2, server.clientPorts.size());
+        assertNotEquals(server.clientPorts.get(0), server.clientPorts.get(1));
+    }
+}
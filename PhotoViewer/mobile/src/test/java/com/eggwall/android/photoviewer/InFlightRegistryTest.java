@@ -0,0 +1,81 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link InFlightRegistry}.
+ */
+public class InFlightRegistryTest {
+    private final InFlightRegistry<String> registry = new InFlightRegistry<>();
+
+    @Test
+    public void secondRequestJoinsTheFirst() {
+        InFlightRegistry<String>.Claim claim =
+                registry.claim(Arrays.asList("location:a", "hash:1"), "first");
+        assertNotNull(claim);
+        // Same location, and a different location with the same content.
+        assertNull(registry.claim(Collections.singletonList("location:a"), "again"));
+        assertNull(registry.claim(Arrays.asList("location:b", "hash:1"), "mirror"));
+        // Something else entirely.
+        assertNotNull(registry.claim(Collections.singletonList("location:c"), "other"));
+
+        assertEquals(Arrays.asList("again", "mirror"), claim.release());
+        assertTrue(claim.release().isEmpty());
+
+        // Once released, the package can be claimed again.
+        assertNotNull(registry.claim(Collections.singletonList("location:b"), "later"));
+    }
+
+    @Test
+    public void emptyIdentitiesAreIgnored() {
+        assertNotNull(registry.claim(Arrays.asList("location:a", ""), "first"));
+        assertNotNull(registry.claim(Arrays.asList("location:b", ""), "second"));
+    }
+
+    @Test
+    public void onlyOneOfManyConcurrentRequestsClaims() throws Exception {
+        final int threads = 16;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger claimed = new AtomicInteger();
+        final InFlightRegistry<String>.Claim[] winner = new InFlightRegistry.Claim[1];
+        for (int i = 0; i < threads; i++) {
+            final String name = "request " + i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        InFlightRegistry<String>.Claim claim =
+                                registry.claim(Arrays.asList("location:a", "hash:1"), name);
+                        if (claim != null) {
+                            claimed.incrementAndGet();
+                            winner[0] = claim;
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(1, claimed.get());
+        List<String> joined = winner[0].release();
+        assertEquals(threads - 1, joined.size());
+    }
+}
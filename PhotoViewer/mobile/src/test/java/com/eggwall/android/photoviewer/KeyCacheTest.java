@@ -0,0 +1,171 @@
+package com.eggwall.android.photoviewer;
+
+import com.eggwall.android.photoviewer.data.Key;
+import com.eggwall.android.photoviewer.data.KeyDao;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.SecretKey;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link KeyCache}, over a {@link KeyDao} that keeps its keys in memory.
+ */
+public class KeyCacheTest {
+    /** A key table in memory, that counts its lookups. */
+    private static class FakeKeyDao implements KeyDao {
+        final Map<String, Key> keys = new ConcurrentHashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+        /** Run by every lookup after it has read the row, if set. */
+        volatile Runnable afterRead = null;
+
+        @Override
+        public List<Key> getAll() {
+            return new ArrayList<>(keys.values());
+        }
+
+        @Override
+        public Key findById(int id) {
+            for (Key key : keys.values()) {
+                if (key.getId() == id) {
+                    return key;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Key forUuid(String uuid) {
+            lookups.incrementAndGet();
+            Key row = (uuid == null) ? null : keys.get(uuid);
+            Runnable hook = afterRead;
+            if (hook != null) {
+                hook.run();
+            }
+            return row;
+        }
+
+        @Override
+        public long insert(Key key) {
+            keys.put(key.getUuid(), key);
+            return keys.size();
+        }
+
+        @Override
+        public void delete(Key key) {
+            keys.remove(key.getUuid());
+        }
+    }
+
+    private final FakeKeyDao dao = new FakeKeyDao();
+    private final KeyCache cache = new KeyCache(dao);
+
+    /** A key with a secret of 16 copies of a byte. */
+    private static Key key(String uuid, int fill) {
+        byte[] secret = new byte[16];
+        Arrays.fill(secret, (byte) fill);
+        return new Key(uuid, CryptoRoutines.bToS(secret), "Key " + fill);
+    }
+
+    @Test
+    public void readsEachKeyOnce() {
+        cache.insert(key("a", 1));
+        SecretKey first = cache.secretKey("a");
+        assertNotNull(first);
+        assertSame(first, cache.secretKey("a"));
+        assertNotNull(cache.forUuid("a"));
+        assertEquals(1, dao.lookups.get());
+
+        // Keys that aren't there are asked for every time: one could be imported any moment.
+        assertNull(cache.secretKey("b"));
+        assertNull(cache.secretKey("b"));
+        assertEquals(3, dao.lookups.get());
+    }
+
+    @Test
+    public void insertDropsTheCachedKey() {
+        cache.insert(key("a", 1));
+        SecretKey first = cache.secretKey("a");
+        assertNotNull(first);
+
+        // The same UUID again, with a different secret.
+        cache.insert(key("a", 2));
+        SecretKey second = cache.secretKey("a");
+        assertNotNull(second);
+        byte[] expected = new byte[16];
+        Arrays.fill(expected, (byte) 2);
+        assertArrayEquals(expected, second.getEncoded());
+        assertEquals(2, cache.forUuid("a").getKey().getEncoded()[0]);
+    }
+
+    @Test
+    public void deleteDropsEveryCachedKey() {
+        Key a = key("a", 1);
+        cache.insert(a);
+        cache.insert(key("b", 2));
+        assertNotNull(cache.secretKey("a"));
+        assertNotNull(cache.secretKey("b"));
+
+        cache.delete(a);
+        assertNull(cache.secretKey("a"));
+        assertNull(cache.forUuid("a"));
+        // Still there, but read again since rows are deleted by id.
+        int lookups = dao.lookups.get();
+        assertNotNull(cache.secretKey("b"));
+        assertEquals(lookups + 1, dao.lookups.get());
+    }
+
+    @Test
+    public void lookupRacingWithDeleteDoesNotCacheTheKey() throws Exception {
+        final Key a = key("a", 1);
+        cache.insert(a);
+        final CountDownLatch read = new CountDownLatch(1);
+        final CountDownLatch deleted = new CountDownLatch(1);
+        dao.afterRead = new Runnable() {
+            @Override
+            public void run() {
+                // Hold the lookup between reading the row and caching it, till it is deleted.
+                read.countDown();
+                try {
+                    assertTrue(deleted.await(5, TimeUnit.SECONDS));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        final SecretKey[] found = new SecretKey[1];
+        Thread lookup = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                found[0] = cache.secretKey("a");
+            }
+        });
+        lookup.start();
+        assertTrue(read.await(5, TimeUnit.SECONDS));
+        dao.afterRead = null;
+        cache.delete(a);
+        deleted.countDown();
+        lookup.join(5000);
+
+        // The lookup started before the delete, so it still gets the key it read.
+        assertNotNull(found[0]);
+        // But it didn't keep it: the key is gone.
+        assertNull(cache.secretKey("a"));
+        assertNull(cache.forUuid("a"));
+    }
+}
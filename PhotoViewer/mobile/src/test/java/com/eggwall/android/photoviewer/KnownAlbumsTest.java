@@ -0,0 +1,207 @@
+package com.eggwall.android.photoviewer;
+
+import com.eggwall.android.photoviewer.data.Album;
+import com.eggwall.android.photoviewer.data.AlbumDao;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link KnownAlbums}, over an {@link AlbumDao} that keeps its albums in memory.
+ */
+public class KnownAlbumsTest {
+    /** An album table in memory, that counts the queries by location and name. */
+    private static class FakeAlbumDao implements AlbumDao {
+        final Map<Long, Album> albums = new ConcurrentHashMap<>();
+        final AtomicInteger finds = new AtomicInteger();
+        final AtomicInteger loads = new AtomicInteger();
+        private final AtomicLong nextId = new AtomicLong(1);
+
+        @Override
+        public List<Album> getAll() {
+            return new ArrayList<>(albums.values());
+        }
+
+        @Override
+        public Album findbyId(long id) {
+            return albums.get(id);
+        }
+
+        @Override
+        public Album find(String remoteLocation, String name) {
+            finds.incrementAndGet();
+            String wanted = KnownAlbums.key(remoteLocation, name);
+            for (Album album : albums.values()) {
+                if (KnownAlbums.key(album.getRemoteLocation(), album.getName()).equals(wanted)) {
+                    return album;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<String> getLocationNames() {
+            loads.incrementAndGet();
+            List<String> keys = new ArrayList<>();
+            for (Album album : albums.values()) {
+                keys.add(KnownAlbums.key(album.getRemoteLocation(), album.getName()));
+            }
+            return keys;
+        }
+
+        @Override
+        public Album findByHash(String hash) {
+            return null;
+        }
+
+        @Override
+        public int countAt(String localLocation) {
+            return 0;
+        }
+
+        @Override
+        public long insert(Album album) {
+            long id = nextId.getAndIncrement();
+            album.setId(id);
+            albums.put(id, album);
+            return id;
+        }
+
+        @Override
+        public void update(Album album) {
+            albums.put(album.getId(), album);
+        }
+
+        @Override
+        public int delete(Album album) {
+            return (albums.remove(album.getId()) == null) ? 0 : 1;
+        }
+
+        @Override
+        public Album findRecent() {
+            return null;
+        }
+    }
+
+    private final FakeAlbumDao dao = new FakeAlbumDao();
+    private final KnownAlbums known = new KnownAlbums(dao);
+
+    /** An album at a location and name, not yet in the database. */
+    private static Album album(String remoteLocation, String name) {
+        Album album = new Album();
+        album.setRemoteLocation(remoteLocation);
+        album.setName(name);
+        return album;
+    }
+
+    @Test
+    public void newAlbumsAreNotLookedUp() {
+        assertNull(known.find("http://a/", "one"));
+        assertNull(known.find("http://a/", "two"));
+        assertEquals(0, dao.finds.get());
+        assertEquals(1, dao.loads.get());
+    }
+
+    @Test
+    public void loadsWhatIsAlreadyThere() {
+        dao.insert(album("http://a/", "one"));
+        dao.insert(album(null, null));
+
+        assertNotNull(known.find("http://a/", "one"));
+        assertNotNull(known.find(null, null));
+        assertEquals(2, dao.finds.get());
+        assertNull(known.find("http://a/", "two"));
+        assertEquals(2, dao.finds.get());
+    }
+
+    @Test
+    public void insertedAlbumsAreLookedUp() {
+        assertNull(known.find("http://a/", "one"));
+        known.insert(album("http://a/", "one"));
+
+        assertNotNull(known.find("http://a/", "one"));
+        assertEquals(1, dao.finds.get());
+        // Inserts keep the filter up to date, so it isn't read again.
+        assertEquals(1, dao.loads.get());
+    }
+
+    @Test
+    public void deletedAlbumsAreNotKnown() {
+        Album one = album("http://a/", "one");
+        known.insert(one);
+        known.insert(album("http://a/", "two"));
+        assertNotNull(known.find("http://a/", "one"));
+        int finds = dao.finds.get();
+
+        assertEquals(1, known.delete(one));
+        assertNull(known.find("http://a/", "one"));
+        assertEquals(finds, dao.finds.get());
+        // The other album is still there.
+        assertNotNull(known.find("http://a/", "two"));
+        assertEquals(finds + 1, dao.finds.get());
+    }
+
+    @Test
+    public void deletingOneOfTwoAlbumsWithTheSameNameKeepsTheOther() {
+        Album first = album("http://a/", "one");
+        known.insert(first);
+        known.insert(album("http://a/", "one"));
+
+        assertEquals(1, known.delete(first));
+        assertNotNull(known.find("http://a/", "one"));
+    }
+
+    @Test
+    public void deletingAnAlbumThatIsNotThereChangesNothing() {
+        Album one = album("http://a/", "one");
+        known.insert(one);
+        assertEquals(1, known.delete(one));
+        // Deleted twice: the second time the database has nothing, so neither does the filter.
+        assertEquals(0, known.delete(one));
+        known.insert(album("http://a/", "one"));
+        assertNotNull(known.find("http://a/", "one"));
+
+        // An album that was never inserted, with the id of one that was.
+        Album stranger = album("http://b/", "other");
+        stranger.setId(99);
+        assertEquals(0, known.delete(stranger));
+        assertNotNull(known.find("http://a/", "one"));
+    }
+
+    @Test
+    public void deleteRemovesWhatTheDatabaseHad() {
+        Album one = album("http://a/", "one");
+        known.insert(one);
+
+        // The caller's copy has a different name from the row: the row's name is taken out.
+        Album renamed = album("http://a/", "renamed");
+        renamed.setId(one.getId());
+        assertEquals(1, known.delete(renamed));
+        int finds = dao.finds.get();
+        assertNull(known.find("http://a/", "one"));
+        assertEquals(finds, dao.finds.get());
+    }
+
+    @Test
+    public void reloadsOnceFull() {
+        for (int i = 0; i <= KnownAlbums.MIN_CAPACITY; i++) {
+            known.insert(album("http://a/", "album " + i));
+        }
+        assertEquals(1, dao.loads.get());
+        // Over capacity: the next use reads the database again, with a larger filter.
+        assertNotNull(known.find("http://a/", "album 0"));
+        assertEquals(2, dao.loads.get());
+        assertNotNull(known.find("http://a/", "album " + KnownAlbums.MIN_CAPACITY));
+        assertEquals(2, dao.loads.get());
+    }
+}
@@ -0,0 +1,271 @@
+package com.eggwall.android.photoviewer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+
+/**
+ * A stand-in for the web servers that host packages and beacons. Serves a single byte array at
+ * every path unless a path was given content of its own, understands Range requests, and can
+ * misbehave on demand: truncate responses, throttle each connection or delay its answers. It can
+ * also hold conditional requests that ask to wait, till new content is published.
+ *
+ * Only for tests, runs on an ephemeral port on localhost.
+ */
+class LocalHttpServer implements HttpHandler {
+    /** The ETag served with {@link #body}. */
+    static final String ETAG = "\"v1\"";
+
+    private final HttpServer server;
+
+    /** The content served at every path. */
+    private volatile byte[] body;
+
+    /** Content served at specific paths instead of {@link #body}. */
+    private final Map<String, byte[]> bodies = new ConcurrentHashMap<>();
+
+    /** Number of upcoming responses that are cut short after {@link #truncateAt} bytes. */
+    private volatile int truncateCount = 0;
+
+    /** Position at which truncated responses stop sending. */
+    private volatile long truncateAt = 0;
+
+    /** Number of upcoming responses that are each cut short after {@link #truncateAfter}. */
+    private int truncateEachCount = 0;
+
+    /** Bytes that responses cut short by {@link #truncateEach(int, long)} send. */
+    private long truncateAfter = 0;
+
+    /** Bytes per second sent on each connection. Zero means unlimited. */
+    private volatile int bytesPerSecond = 0;
+
+    /** Milliseconds to wait before answering each request. */
+    private volatile long delayMs = 0;
+
+    /** The ETag of the content served now. Changes with every {@link #publish(byte[])}. */
+    private volatile String etag = ETAG;
+
+    /** Number of times {@link #publish(byte[])} was called. Guarded by this. */
+    private int version = 1;
+
+    /** True to hold requests with {@code Prefer: wait} till something is published. */
+    private volatile boolean holdRequests = false;
+
+    /** Range headers of all the requests received, or "" if the request had none. */
+    final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Client port of every request received: requests on the same connection share a port. */
+    final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+
+    /** Paths of all the requests received. */
+    final List<String> paths = Collections.synchronizedList(new ArrayList<String>());
+
+    /** Request headers of interest, in the order requests were received. */
+    final List<String> ifNoneMatch = Collections.synchronizedList(new ArrayList<String>());
+
+    LocalHttpServer(byte[] body) throws IOException {
+        this.body = body;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    /** Change the content that is served. */
+    void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /** Serve this content at a single path. */
+    void setBody(String path, byte[] body) {
+        bodies.put(path, body);
+    }
+
+    /** Cut the next {@code count} responses short once they reach byte {@code at}. */
+    void truncate(int count, long at) {
+        truncateAt = at;
+        truncateCount = count;
+    }
+
+    /**
+     * Cut the next {@code count} responses that are longer than {@code bytes} short, each after
+     * that many bytes of its body. Unlike {@link #truncate(int, long)}, a request that continues
+     * from where the last one stopped is cut short again.
+     */
+    synchronized void truncateEach(int count, long bytes) {
+        truncateAfter = bytes;
+        truncateEachCount = count;
+    }
+
+    /** Limit every connection to this many bytes per second. */
+    void throttle(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** Wait this long before answering each request. */
+    void delay(long delayMs) {
+        this.delayMs = delayMs;
+    }
+
+    /**
+     * Serve new content under a new ETag, and answer the requests that were held for it.
+     */
+    synchronized void publish(byte[] body) {
+        this.body = body;
+        version++;
+        etag = "\"v" + version + "\"";
+        notifyAll();
+    }
+
+    /**
+     * Hold conditional requests for content that hasn't changed, for as long as their
+     * {@code Prefer: wait} header asks, or till {@link #publish(byte[])} is called.
+     */
+    void holdRequests(boolean hold) {
+        holdRequests = hold;
+    }
+
+    /**
+     * Wait till this many requests were received in all.
+     * @return false if they didn't arrive in time.
+     */
+    synchronized boolean awaitRequests(int count, long timeoutMs) throws InterruptedException {
+        long untilMs = System.currentTimeMillis() + timeoutMs;
+        long leftMs = timeoutMs;
+        while (paths.size() < count && leftMs > 0) {
+            wait(leftMs);
+            leftMs = untilMs - System.currentTimeMillis();
+        }
+        return paths.size() >= count;
+    }
+
+    /** A URL on this server. */
+    URL url(String path) throws MalformedURLException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+
+    /** Wait till the content no longer has this ETag, or for this long. */
+    private synchronized void holdWhileUnchanged(String inm, long waitMs) {
+        long untilMs = System.currentTimeMillis() + waitMs;
+        long leftMs = waitMs;
+        while (etag.equals(inm) && leftMs > 0) {
+            try {
+                wait(leftMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            leftMs = untilMs - System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        paths.add(path);
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        ranges.add(range == null ? "" : range);
+        String inm = exchange.getRequestHeaders().getFirst("If-None-Match");
+        ifNoneMatch.add(inm == null ? "" : inm);
+        synchronized (this) {
+            notifyAll();
+        }
+
+        if (delayMs > 0) {
+            try {
+                Thread.sleep(delayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+        if (holdRequests && prefer != null && prefer.startsWith("wait=")) {
+            holdWhileUnchanged(inm, Long.parseLong(prefer.substring("wait=".length())) * 1000);
+        }
+
+        byte[] content = bodies.get(path);
+        if (content == null) {
+            content = body;
+        }
+        String current = etag;
+        exchange.getResponseHeaders().add("ETag", current);
+        exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+
+        if (current.equals(inm)) {
+            exchange.sendResponseHeaders(304, -1);
+            exchange.close();
+            return;
+        }
+
+        long start = 0;
+        long end = content.length - 1;
+        int code = 200;
+        if (range != null && range.startsWith("bytes=")) {
+            String[] parts = range.substring("bytes=".length()).split("-", -1);
+            start = Long.parseLong(parts[0]);
+            if (parts.length > 1 && parts[1].length() > 0) {
+                end = Math.min(end, Long.parseLong(parts[1]));
+            }
+            if (start >= content.length) {
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            code = 206;
+            exchange.getResponseHeaders().add("Content-Range",
+                    "bytes " + start + "-" + end + "/" + content.length);
+        }
+        long length = end - start + 1;
+        exchange.sendResponseHeaders(code, length);
+
+        long stopAt = end + 1;
+        synchronized (this) {
+            if (truncateCount > 0 && truncateAt > start && truncateAt < stopAt) {
+                truncateCount--;
+                stopAt = truncateAt;
+            }
+            if (truncateEachCount > 0 && stopAt - start > truncateAfter) {
+                truncateEachCount--;
+                stopAt = start + truncateAfter;
+            }
+        }
+
+        OutputStream out = exchange.getResponseBody();
+        try {
+            int chunk = 8 * 1024;
+            for (long pos = start; pos < stopAt; pos += chunk) {
+                int n = (int) Math.min(chunk, stopAt - pos);
+                out.write(content, (int) pos, n);
+                out.flush();
+                if (bytesPerSecond > 0) {
+                    Thread.sleep(n * 1000L / bytesPerSecond);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client went away, which is fine.
+        } finally {
+            // Closing early leaves the client with fewer bytes than Content-Length promised.
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link LongPoller}, against a server that holds requests till something changes.
+ */
+public class LongPollerTest {
+    private static final byte[] FIRST = "one\n".getBytes();
+    private static final byte[] SECOND = "one\ntwo\n".getBytes();
+
+    private LocalHttpServer server;
+    private LongPoller poller;
+
+    /** Every read, as "outcome: entries". */
+    private final LinkedBlockingQueue<String> reads = new LinkedBlockingQueue<>();
+
+    /** When every read was handed to the listener, in milliseconds. */
+    private final List<Long> readTimesMs = Collections.synchronizedList(new ArrayList<Long>());
+
+    /** Reads that are left to throw from the listener, once they are recorded. */
+    private volatile int listenerFailures = 0;
+
+    private final LongPoller.Listener listener = new LongPoller.Listener() {
+        @Override
+        public boolean onRead(@NonNull LongPoller p, int outcome,
+                              @NonNull List<String> entries) {
+            readTimesMs.add(System.currentTimeMillis());
+            reads.add(outcome + ": " + entries);
+            if (listenerFailures > 0) {
+                listenerFailures--;
+                throw new IllegalStateException("Listener failed");
+            }
+            return true;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new LocalHttpServer(FIRST);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (poller != null) {
+            poller.stop();
+            Thread thread = poller.getThread();
+            thread.join(2000);
+            assertFalse(thread.isAlive());
+        }
+        server.stop();
+    }
+
+    private LongPoller start(URL url, int waitSeconds) {
+        return start(new BeaconReader(url, "", "", ""), waitSeconds);
+    }
+
+    private LongPoller start(BeaconReader reader, int waitSeconds) {
+        poller = new LongPoller(reader, waitSeconds, listener, new Random(42));
+        poller.setMinCycle(200);
+        poller.setBackoff(50, 400);
+        poller.start();
+        return poller;
+    }
+
+    private String nextRead() throws InterruptedException {
+        String read = reads.poll(5, TimeUnit.SECONDS);
+        assertNotNull(read);
+        return read;
+    }
+
+    /** Milliseconds between two reads handed to the listener. */
+    private long between(int first, int last) {
+        return readTimesMs.get(last) - readTimesMs.get(first);
+    }
+
+    @Test
+    public void publishedContentArrivesWhileHeld() throws Exception {
+        server.holdRequests(true);
+        // Held for far longer than nextRead() waits, so what arrives was published meanwhile.
+        start(server.url("/beacon"), 30);
+        assertEquals(BeaconScheduler.CHANGED + ": [one]", nextRead());
+
+        // The next request is held by the server. Publish while it is waiting.
+        assertTrue(server.awaitRequests(2, 5000));
+        assertTrue(reads.isEmpty());
+        server.publish(SECOND);
+        assertEquals(BeaconScheduler.CHANGED + ": [one, two]", nextRead());
+
+        // One read to get the beacon, one held till it changed, and one held now.
+        assertTrue(server.awaitRequests(3, 5000));
+        assertEquals(Arrays.asList("", LocalHttpServer.ETAG, "\"v2\""), server.ifNoneMatch);
+    }
+
+    @Test
+    public void serverThatDoesNotHoldIsNotAskedContinuously() throws Exception {
+        start(server.url("/beacon"), 5);
+        assertEquals(BeaconScheduler.CHANGED + ": [one]", nextRead());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(BeaconScheduler.UNCHANGED + ": []", nextRead());
+        }
+        // The first unchanged read follows the change right away. Every one after that starts
+        // at least 200ms after the one before it, less a little for reads that took longer
+        // than the ones after them.
+        long spanMs = between(1, 3);
+        assertTrue("Read twice more in " + spanMs + "ms", spanMs >= 350);
+    }
+
+    @Test
+    public void failuresBackOff() throws Exception {
+        URL url = server.url("/beacon");
+        server.stop();
+        start(url, 5);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(BeaconScheduler.FAILED + ": []", nextRead());
+        }
+        // 50, 100, 200ms, less up to a fifth for jitter: far longer than reconnecting right away.
+        long spanMs = between(0, 3);
+        assertTrue("Failed three times in " + spanMs + "ms", spanMs >= 280);
+    }
+
+    @Test
+    public void keepsReadingAfterTheListenerThrows() throws Exception {
+        listenerFailures = 2;
+        start(server.url("/beacon"), 5);
+        assertEquals(BeaconScheduler.CHANGED + ": [one]", nextRead());
+        assertEquals(BeaconScheduler.UNCHANGED + ": []", nextRead());
+        assertEquals(BeaconScheduler.UNCHANGED + ": []", nextRead());
+        assertTrue(poller.getThread().isAlive());
+    }
+
+    @Test
+    public void keepsReadingAfterTheReaderThrows() throws Exception {
+        final CountDownLatch thrown = new CountDownLatch(2);
+        BeaconReader reader = new BeaconReader(server.url("/beacon"), "", "", "") {
+            @Override
+            int read(int waitSeconds, @NonNull List<String> entries) {
+                if (thrown.getCount() > 0) {
+                    thrown.countDown();
+                    entries.add("partial");
+                    throw new IllegalStateException("Reader failed");
+                }
+                return super.read(waitSeconds, entries);
+            }
+        };
+        start(reader, 5);
+        // Failures are handed on without what was read before the throw, and backed off from.
+        assertEquals(BeaconScheduler.FAILED + ": []", nextRead());
+        assertEquals(BeaconScheduler.FAILED + ": []", nextRead());
+        assertEquals(BeaconScheduler.CHANGED + ": [one]", nextRead());
+    }
+
+    @Test
+    public void stopDropsTheHeldRequest() throws Exception {
+        server.holdRequests(true);
+        start(server.url("/beacon"), 30);
+        nextRead();
+        assertTrue(server.awaitRequests(2, 5000));
+        poller.stop();
+        // The request was held for 30 seconds, so the thread only ends this soon if it dropped it.
+        poller.getThread().join(5000);
+        assertFalse(poller.getThread().isAlive());
+        assertTrue(reads.isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link MirrorSelector} against local servers that are slow in different ways.
+ */
+public class MirrorSelectorTest {
+    private LocalHttpServer fast;
+    private LocalHttpServer distant;
+    private LocalHttpServer narrow;
+
+    @Before
+    public void setUp() throws IOException {
+        byte[] content = new byte[256 * 1024];
+        new Random(42).nextBytes(content);
+        fast = new LocalHttpServer(content);
+        // Answers late, but then quickly.
+        distant = new LocalHttpServer(content);
+        distant.delay(500);
+        // Answers right away, but slowly.
+        narrow = new LocalHttpServer(content);
+        narrow.throttle(256 * 1024);
+    }
+
+    @After
+    public void tearDown() {
+        fast.stop();
+        distant.stop();
+        narrow.stop();
+    }
+
+    @Test
+    public void fastestMirrorFirstAndUnreachableLast() throws Exception {
+        LocalHttpServer gone = new LocalHttpServer(new byte[1]);
+        URL unreachable = gone.url("/p.zip");
+        gone.stop();
+
+        List<URL> ranked = MirrorSelector.rank(Arrays.asList(unreachable, narrow.url("/p.zip"),
+                distant.url("/p.zip"), fast.url("/p.zip")), 1024 * 1024);
+        assertEquals(Arrays.asList(fast.url("/p.zip"), distant.url("/p.zip"),
+                narrow.url("/p.zip"), unreachable), ranked);
+        // Only the probe was asked for.
+        assertEquals("bytes=0-" + (MirrorSelector.PROBE_BYTES - 1), fast.ranges.get(0));
+    }
+
+    @Test
+    public void latencyMattersMoreForSmallPackages() throws Exception {
+        List<URL> mirrors = Arrays.asList(distant.url("/p.zip"), narrow.url("/p.zip"));
+        // Waiting half a second for the distant mirror isn't worth it for a tiny package that
+        // the narrow one sends in a quarter of a second.
+        assertEquals(narrow.url("/p.zip"), MirrorSelector.rank(mirrors, 0).get(0));
+        // But it is for a large one, which would take a minute from the narrow one.
+        assertEquals(distant.url("/p.zip"),
+                MirrorSelector.rank(mirrors, 16 * 1024 * 1024).get(0));
+    }
+}
@@ -4,6 +4,12 @@ import android.net.Uri;
 
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 
@@ -15,4 +21,56 @@ import static org.junit.Assert.assertFalse;
 public class NetworkTest {
     public static final String TAG = "NetworkTest";
 
+    private static List<String> manifest(String text) throws IOException {
+        return NetworkRoutines.readManifest(new BufferedReader(new StringReader(text)));
+    }
+
+    @Test
+    public void manifestSkipsCommentsBlanksAndDuplicates() throws IOException {
+        List<String> entries = manifest("# Albums\n"
+                + "photoviewer://eggwall/download?src=a\r\n"
+                + "\n"
+                + "   \n"
+                + "photoviewer://eggwall/key?k=b\n"
+                + "photoviewer://eggwall/download?src=a\n"
+                + "photoviewer://eggwall/download?src=c");
+        assertEquals(Arrays.asList("photoviewer://eggwall/download?src=a",
+                "photoviewer://eggwall/key?k=b",
+                "photoviewer://eggwall/download?src=c"), entries);
+    }
+
+    @Test
+    public void manifestDropsLinesThatAreTooLong() throws IOException {
+        StringBuilder text = new StringBuilder("photoviewer://eggwall/download?src=");
+        for (int i = 0; i < NetworkController.MAX_BEACON_SIZE; i++) {
+            text.append('x');
+        }
+        text.append("\nphotoviewer://eggwall/download?src=short\n");
+        List<String> entries = manifest(text.toString());
+        assertEquals(1, entries.size());
+        assertEquals("photoviewer://eggwall/download?src=short", entries.get(0));
+    }
+
+    @Test
+    public void manifestDropsLongLinesThatAreMostlyBlank() throws IOException {
+        // Cut short, but only a short token is left once the blanks are trimmed.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < NetworkController.MAX_BEACON_SIZE - 100; i++) {
+            text.append(' ');
+        }
+        text.append("abc");
+        for (int i = 0; i < 200; i++) {
+            text.append(' ');
+        }
+        text.append("\nphotoviewer://eggwall/download?src=short\n");
+        List<String> entries = manifest(text.toString());
+        assertEquals(1, entries.size());
+        assertEquals("photoviewer://eggwall/download?src=short", entries.get(0));
+    }
+
+    @Test
+    public void emptyManifest() throws IOException {
+        assertEquals(0, manifest("").size());
+        assertEquals(0, manifest("\n\n# nothing here\n").size());
+    }
 }
\ No newline at end of file
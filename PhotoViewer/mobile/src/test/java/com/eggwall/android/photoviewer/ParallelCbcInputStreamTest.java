@@ -0,0 +1,138 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link ParallelCbcInputStream}.
+ */
+public class ParallelCbcInputStreamTest {
+    public static final String TAG = "ParallelCbcInputStreamTest";
+
+    /** Small chunks, so that short files still have many of them. */
+    private static final int CHUNK_SIZE = 1000;
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    private final byte[] iv = new byte[16];
+    private final Random random = new Random(42);
+    private ExecutorService executor;
+    private File cipherFile;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(4);
+        cipherFile = File.createTempFile(TAG, ".asc");
+        random.nextBytes(iv);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        cipherFile.delete();
+    }
+
+    /** Encrypt some random bytes into {@link #cipherFile}, and return the bytes. */
+    private byte[] writeEncrypted(int size) throws Exception {
+        byte[] plain = new byte[size];
+        random.nextBytes(plain);
+        Cipher cipher = Cipher.getInstance(CryptoRoutines.AES_CBC_PKCS5_PADDING);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        Files.write(cipherFile.toPath(), cipher.doFinal(plain));
+        return plain;
+    }
+
+    private ParallelCbcInputStream open(SecretKey key) throws IOException {
+        return new ParallelCbcInputStream(cipherFile, iv, key, CHUNK_SIZE, executor, 3);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void decryptsInOrder() throws Exception {
+        // Chunks of 1008 bytes: files that end inside a chunk, at the end of one, with a whole
+        // block of padding in a chunk of its own, and shorter than a block.
+        int[] sizes = {0, 5, 16, 1007, 1008, 10 * 1008 - 1, 10 * 1008, 100000};
+        for (int size : sizes) {
+            byte[] plain = writeEncrypted(size);
+            assertArrayEquals("Size " + size, plain, readAll(open(key)));
+        }
+    }
+
+    @Test
+    public void readsSingleBytes() throws Exception {
+        byte[] plain = writeEncrypted(5000);
+        InputStream in = open(key);
+        for (byte b : plain) {
+            assertEquals(b & 0xff, in.read());
+        }
+        assertEquals(-1, in.read());
+        in.close();
+    }
+
+    @Test
+    public void rejectsWrongKey() throws Exception {
+        writeEncrypted(5000);
+        byte[] other = new byte[16];
+        other[0] = 1;
+        try {
+            readAll(open(new SecretKeySpec(other, "AES")));
+            fail("Decrypted with the wrong key");
+        } catch (IOException expected) {
+            // The padding is wrong.
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws Exception {
+        writeEncrypted(5000);
+        RandomAccessFile f = new RandomAccessFile(cipherFile, "rw");
+        try {
+            f.setLength(f.length() - 1);
+        } finally {
+            f.close();
+        }
+        try {
+            open(key).close();
+            fail("Opened a file that isn't whole blocks");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void closesEarly() throws Exception {
+        writeEncrypted(100000);
+        InputStream in = open(key);
+        assertEquals(100, in.read(new byte[100]));
+        in.close();
+    }
+}
@@ -0,0 +1,216 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ParallelRangeDownloader} against a local HTTP server that throttles every
+ * connection, like a link with high latency.
+ */
+public class ParallelRangeDownloaderTest {
+    public static final String TAG = "ParallelRangeDownloaderTest";
+
+    /** Bytes per second that each connection is limited to. */
+    private static final int PER_CONNECTION = 200 * 1024;
+
+    private byte[] content;
+    private LocalHttpServer server;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+        server = new LocalHttpServer(content);
+        dir = Files.createTempDirectory(TAG).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private ParallelRangeDownloader downloader(File destination) throws IOException {
+        ParallelRangeDownloader downloader =
+                new ParallelRangeDownloader(server.url("/p.zip"), destination);
+        downloader.setChunkSize(64 * 1024);
+        downloader.setMinParallelSize(256 * 1024);
+        return downloader;
+    }
+
+    @Test
+    public void addsConnectionsWhileTheyHelp() throws Exception {
+        server.throttle(PER_CONNECTION);
+        File destination = new File(dir, "gal_0001.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+
+        assertTrue(downloader.download());
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertFalse(new File(dir, "gal_0001.zip" + RangeDownloader.PARTIAL_SUFFIX).exists());
+        // Every connection is throttled, so more connections are faster till the maximum.
+        assertEquals(ParallelRangeDownloader.DEFAULT_MAX_CONNECTIONS,
+                downloader.getPeakConnections());
+    }
+
+    @Test
+    public void retriesAChunkThatIsCutShortRepeatedly() throws Exception {
+        // Two chunks and three failures: at least one chunk is cut short twice in a row, each
+        // time continuing from where it stopped.
+        server.truncateEach(3, 40 * 1024);
+        File destination = new File(dir, "gal_0007.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+        downloader.setChunkSize(content.length / 2);
+
+        assertTrue(downloader.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        int half = content.length / 2;
+        assertTrue(server.ranges.toString(),
+                server.ranges.contains("bytes=" + (80 * 1024) + "-" + (half - 1))
+                || server.ranges.contains("bytes=" + (half + 80 * 1024) + "-"
+                        + (content.length - 1)));
+    }
+
+    @Test
+    public void interruptStopsEveryConnection() throws Exception {
+        // Slow enough that a single chunk takes over six seconds.
+        server.throttle(10 * 1024);
+        File destination = new File(dir, "gal_0008.zip");
+        final ParallelRangeDownloader downloader = downloader(destination);
+        final boolean[] result = new boolean[2];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = downloader.download();
+                result[1] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+        // The probe, and the first chunk.
+        assertTrue(server.awaitRequests(2, 5000));
+        thread.interrupt();
+        // Only ends this soon if the chunk that was being fetched was dropped.
+        thread.join(3000);
+
+        assertFalse(thread.isAlive());
+        assertFalse(result[0]);
+        assertTrue("The interrupt was cleared", result[1]);
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void interruptStopsASingleConnection() throws Exception {
+        File destination = new File(dir, "gal_0009.zip");
+        final ParallelRangeDownloader downloader = downloader(destination);
+        // Too small to split, so a single connection downloads it, slowly.
+        downloader.setMinParallelSize(2 * content.length);
+        BandwidthGovernor governor = new BandwidthGovernor();
+        governor.setRates(BandwidthGovernor.UNLIMITED, 64 * 1024, BandwidthGovernor.UNLIMITED);
+        downloader.setMeter(governor.newMeter());
+        final boolean[] result = new boolean[2];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = downloader.download();
+                result[1] = Thread.currentThread().isInterrupted();
+            }
+        });
+        thread.start();
+        // The probe, and the download.
+        assertTrue(server.awaitRequests(2, 5000));
+        thread.interrupt();
+        thread.join(3000);
+
+        assertFalse(thread.isAlive());
+        assertFalse(result[0]);
+        assertTrue("The interrupt was cleared", result[1]);
+        // No mirror was asked again, and what was downloaded can be resumed.
+        assertEquals(server.paths.toString(), 2, server.paths.size());
+        assertTrue(new File(dir, "gal_0009.zip" + RangeDownloader.CHECKPOINT_SUFFIX).exists());
+        assertFalse(destination.exists());
+    }
+
+    @Test
+    public void resumesChunksAfterDroppedConnections() throws Exception {
+        server.truncate(3, 100 * 1024);
+        File destination = new File(dir, "gal_0002.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+        downloader.setChunkSize(256 * 1024);
+
+        assertTrue(downloader.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void failsOverToMirrorWithinAChunk() throws Exception {
+        LocalHttpServer mirror = new LocalHttpServer(content);
+        try {
+            // The chunk holding this byte never comes through from the first server.
+            server.truncate(100, 100 * 1024);
+            File destination = new File(dir, "gal_0004.zip");
+            ParallelRangeDownloader downloader = new ParallelRangeDownloader(
+                    Arrays.asList(server.url("/p.zip"), mirror.url("/p.zip")), destination);
+            downloader.setChunkSize(64 * 1024);
+            downloader.setMinParallelSize(256 * 1024);
+
+            assertTrue(downloader.download());
+            assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+            // The broken chunk continued on the mirror from where it stopped.
+            assertTrue(mirror.ranges.contains("bytes=" + (100 * 1024) + "-" + (128 * 1024 - 1)));
+        } finally {
+            mirror.stop();
+        }
+    }
+
+    @Test
+    public void checksHashWhileChunksArrive() throws Exception {
+        server.truncate(3, 100 * 1024);
+        File destination = new File(dir, "gal_0005.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+        downloader.setExpectedHash(CryptoRoutines.sha256(new ByteArrayInputStream(content)));
+
+        assertTrue(downloader.download());
+        assertFalse(downloader.isCorrupt());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void discardsFileWithWrongHash() throws Exception {
+        File destination = new File(dir, "gal_0006.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+        downloader.setExpectedHash(CryptoRoutines.sha256(new ByteArrayInputStream(new byte[1])));
+
+        assertFalse(downloader.download());
+        assertTrue(downloader.isCorrupt());
+        assertFalse(destination.exists());
+        assertFalse(new File(dir, "gal_0006.zip" + RangeDownloader.PARTIAL_SUFFIX).exists());
+    }
+
+    @Test
+    public void smallFilesUseSingleConnection() throws Exception {
+        File destination = new File(dir, "gal_0003.zip");
+        ParallelRangeDownloader downloader = downloader(destination);
+        downloader.setMinParallelSize(content.length + 1);
+
+        assertTrue(downloader.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(1, downloader.getPeakConnections());
+    }
+}
@@ -0,0 +1,149 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RangeDownloader} against a local HTTP server that drops connections.
+ */
+public class RangeDownloaderTest {
+    public static final String TAG = "RangeDownloaderTest";
+
+    private byte[] content;
+    private LocalHttpServer server;
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[300 * 1024];
+        new Random(42).nextBytes(content);
+        server = new LocalHttpServer(content);
+        dir = Files.createTempDirectory(TAG).toFile();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void downloadsWholeFile() throws Exception {
+        File destination = new File(dir, "gal_0001.zip");
+        RangeDownloader downloader = new RangeDownloader(server.url("/p.zip"), destination);
+
+        assertTrue(downloader.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertFalse(new File(dir, "gal_0001.zip" + RangeDownloader.PARTIAL_SUFFIX).exists());
+        assertFalse(new File(dir, "gal_0001.zip" + RangeDownloader.CHECKPOINT_SUFFIX).exists());
+    }
+
+    @Test
+    public void resumesAfterDroppedConnection() throws Exception {
+        server.truncate(1, 100 * 1024);
+        File destination = new File(dir, "gal_0002.zip");
+        RangeDownloader downloader = new RangeDownloader(server.url("/p.zip"), destination);
+
+        assertTrue(downloader.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        // The second request asked only for the bytes that were missing.
+        assertEquals(2, server.ranges.size());
+        assertEquals("", server.ranges.get(0));
+        assertEquals("bytes=" + (100 * 1024) + "-", server.ranges.get(1));
+    }
+
+    @Test
+    public void resumesInNewObjectAfterProcessDeath() throws Exception {
+        server.truncate(1, 200 * 1024);
+        File destination = new File(dir, "gal_0003.zip");
+
+        // The first process gets a single, truncated, connection and dies.
+        RangeDownloader first = new RangeDownloader(server.url("/p.zip"), destination);
+        first.setMaxAttempts(1);
+        assertFalse(first.download());
+        assertFalse(destination.exists());
+
+        // The next process starts from the checkpoint on disk.
+        RangeDownloader second = new RangeDownloader(server.url("/p.zip"), destination);
+        assertTrue(second.download());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals("bytes=" + (200 * 1024) + "-", server.ranges.get(1));
+    }
+
+    @Test
+    public void failsOverToMirrorWithoutStartingOver() throws Exception {
+        LocalHttpServer mirror = new LocalHttpServer(content);
+        try {
+            // Every response from the first server is cut short.
+            server.truncate(100, 100 * 1024);
+            File destination = new File(dir, "gal_0004.zip");
+            RangeDownloader downloader = new RangeDownloader(
+                    Arrays.asList(server.url("/p.zip"), mirror.url("/p.zip")), destination);
+
+            assertTrue(downloader.download());
+            assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+            // The mirror was only asked for the bytes the first server didn't send.
+            assertEquals(1, mirror.ranges.size());
+            assertEquals("bytes=" + (100 * 1024) + "-", mirror.ranges.get(0));
+        } finally {
+            mirror.stop();
+        }
+    }
+
+    @Test
+    public void checksHashAcrossProcessDeath() throws Exception {
+        server.truncate(1, 200 * 1024);
+        File destination = new File(dir, "gal_0005.zip");
+        String hash = CryptoRoutines.sha256(new ByteArrayInputStream(content));
+
+        RangeDownloader first = new RangeDownloader(server.url("/p.zip"), destination);
+        first.setMaxAttempts(1);
+        first.setExpectedHash(hash);
+        assertFalse(first.download());
+        assertFalse(first.isCorrupt());
+
+        // The bytes from the first process are hashed along with the rest.
+        RangeDownloader second = new RangeDownloader(server.url("/p.zip"), destination);
+        second.setExpectedHash(hash);
+        assertTrue(second.download());
+        assertFalse(second.isCorrupt());
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void discardsFileWithWrongHash() throws Exception {
+        File destination = new File(dir, "gal_0006.zip");
+        RangeDownloader downloader = new RangeDownloader(server.url("/p.zip"), destination);
+        downloader.setExpectedHash(CryptoRoutines.sha256(new ByteArrayInputStream(new byte[1])));
+
+        assertFalse(downloader.download());
+        assertTrue(downloader.isCorrupt());
+        assertFalse(destination.exists());
+        assertFalse(new File(dir, "gal_0006.zip" + RangeDownloader.PARTIAL_SUFFIX).exists());
+        assertFalse(new File(dir, "gal_0006.zip" + RangeDownloader.CHECKPOINT_SUFFIX).exists());
+    }
+
+    @Test
+    public void parsesContentRange() {
+        assertEquals(100, RangeDownloader.rangeStart("bytes 100-199/1000"));
+        assertEquals(1000, RangeDownloader.rangeTotal("bytes 100-199/1000"));
+        assertEquals(-1, RangeDownloader.rangeTotal("bytes 100-199/*"));
+        assertEquals(5000000000L, RangeDownloader.rangeTotal("bytes 0-9/5000000000"));
+    }
+}
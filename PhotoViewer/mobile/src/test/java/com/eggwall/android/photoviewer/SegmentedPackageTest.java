@@ -0,0 +1,190 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link SegmentedPackage}.
+ */
+public class SegmentedPackageTest {
+    public static final String TAG = "SegmentedPackageTest";
+
+    /** Small segments, so that every image spans several of them. */
+    private static final int SEGMENT_SIZE = 4 * 1024;
+
+    private final SecretKey key = new SecretKeySpec(new byte[16], "AES");
+    private File dir;
+    private File packageFile;
+    private final List<byte[]> images = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory(TAG).toFile();
+        Random random = new Random(42);
+        // Sizes that end in the middle of segments, at the end of one, and an empty image.
+        int[] sizes = {10000, 3 * SEGMENT_SIZE, 0, 12345};
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] image = new byte[sizes[i]];
+            random.nextBytes(image);
+            images.add(image);
+            File f = new File(dir, "img_" + i + ".jpg");
+            Files.write(f.toPath(), image);
+            files.add(f);
+        }
+        packageFile = new File(dir, "gal_0001.asc");
+        FileOutputStream out = new FileOutputStream(packageFile);
+        try {
+            SegmentedPackage.write(key, files, SEGMENT_SIZE, out);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /** Flip a bit at this position in the package. */
+    private void corrupt(long position) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(packageFile, "rw");
+        try {
+            f.seek(position);
+            int b = f.read();
+            f.seek(position);
+            f.write(b ^ 1);
+        } finally {
+            f.close();
+        }
+    }
+
+    @Test
+    public void readsEveryImage() throws Exception {
+        assertTrue(SegmentedPackage.isSegmented(packageFile));
+        SegmentedPackage p = SegmentedPackage.open(packageFile, key);
+        try {
+            assertEquals(images.size(), p.getEntries().size());
+            for (int i = 0; i < images.size(); i++) {
+                SegmentedPackage.Entry entry = p.find("img_" + i + ".jpg");
+                assertArrayEquals(images.get(i), readAll(p.open(entry)));
+            }
+            assertNull(p.find("missing.jpg"));
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void readsWholeImagesIntoMemory() throws Exception {
+        SegmentedPackage p = SegmentedPackage.open(packageFile, key);
+        try {
+            for (int i = 0; i < images.size(); i++) {
+                assertArrayEquals(images.get(i), p.read(p.find("img_" + i + ".jpg")));
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void readsOneImageWithoutTheRest() throws Exception {
+        // Break the first segment, which only holds the first image.
+        corrupt(SegmentedPackage.HEADER_SIZE + 10);
+        SegmentedPackage p = SegmentedPackage.open(packageFile, key);
+        try {
+            assertArrayEquals(images.get(3), readAll(p.open(p.find("img_3.jpg"))));
+            try {
+                readAll(p.open(p.find("img_0.jpg")));
+                fail("Read a corrupt segment");
+            } catch (IOException expected) {
+                // The broken segment doesn't decrypt.
+            }
+        } finally {
+            p.close();
+        }
+    }
+
+    @Test
+    public void rejectsChangedHeader() throws Exception {
+        // The nonce prefix is the last part of the header.
+        corrupt(SegmentedPackage.HEADER_SIZE - 1);
+        try {
+            SegmentedPackage.open(packageFile, key).close();
+            fail("Opened a package with a changed header");
+        } catch (GeneralSecurityException expected) {
+            // The index is authenticated along with the header.
+        }
+    }
+
+    @Test
+    public void rejectsWrongKey() throws Exception {
+        byte[] other = new byte[16];
+        other[0] = 1;
+        try {
+            SegmentedPackage.open(packageFile, new SecretKeySpec(other, "AES")).close();
+            fail("Opened a package with the wrong key");
+        } catch (GeneralSecurityException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPackage() throws Exception {
+        RandomAccessFile f = new RandomAccessFile(packageFile, "rw");
+        try {
+            f.setLength(f.length() - 1);
+        } finally {
+            f.close();
+        }
+        try {
+            SegmentedPackage.open(packageFile, key).close();
+            fail("Opened a truncated package");
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void otherFilesAreNotSegmented() throws Exception {
+        assertFalse(SegmentedPackage.isSegmented(new File(dir, "img_0.jpg")));
+        assertFalse(SegmentedPackage.isSegmented(new File(dir, "img_2.jpg")));
+    }
+}
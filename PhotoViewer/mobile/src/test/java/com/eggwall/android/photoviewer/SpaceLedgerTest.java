@@ -0,0 +1,67 @@
+package com.eggwall.android.photoviewer;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for {@link SpaceLedger}, reserving fractions of the real free space in the temporary
+ * directory.
+ */
+public class SpaceLedgerTest {
+    private final File dir = new File(System.getProperty("java.io.tmpdir"));
+
+    @Test
+    public void concurrentReservationsCannotOvercommit() {
+        SpaceLedger ledger = new SpaceLedger();
+        long large = dir.getFreeSpace() / 10 * 6;
+
+        SpaceLedger.Reservation first = ledger.reserve(dir, large);
+        assertNotNull(first);
+        // A second album of the same size doesn't fit alongside the first.
+        assertNull(ledger.reserve(dir, large));
+
+        first.release();
+        assertNotNull(ledger.reserve(dir, large));
+    }
+
+    @Test
+    public void writtenBytesAreNoLongerReserved() {
+        SpaceLedger ledger = new SpaceLedger();
+        long free = dir.getFreeSpace();
+
+        SpaceLedger.Reservation first = ledger.reserve(dir, free / 10 * 6);
+        assertNotNull(first);
+        // Pretend most of it has been written: the disk would now report that as used, so the
+        // ledger stops counting it.
+        first.consume(free / 10 * 5);
+        assertNotNull(ledger.reserve(dir, free / 10 * 3));
+    }
+
+    @Test
+    public void partOfAReservationCanBeGivenBack() {
+        SpaceLedger ledger = new SpaceLedger();
+        long tenth = dir.getFreeSpace() / 10;
+
+        // Room for a package and the images it unpacks to.
+        SpaceLedger.Reservation first = ledger.reserve(dir, tenth * 8);
+        assertNotNull(first);
+        assertNull(ledger.reserve(dir, tenth * 3));
+        // The package is deleted: its half is free again, the images' half isn't.
+        first.release(tenth * 4);
+        assertNotNull(ledger.reserve(dir, tenth * 4));
+        assertNull(ledger.reserve(dir, tenth * 3));
+        // Giving back more than is left only gives back what is left.
+        first.release(tenth * 8);
+        assertNotNull(ledger.reserve(dir, tenth * 3));
+    }
+
+    @Test
+    public void sizesBeyondTwoGigabytes() {
+        SpaceLedger ledger = new SpaceLedger();
+        assertNull(ledger.reserve(dir, Long.MAX_VALUE / 2));
+    }
+}